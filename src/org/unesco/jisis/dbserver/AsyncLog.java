@@ -0,0 +1,455 @@
+package org.unesco.jisis.dbserver;
+
+import java.io.PrintWriter;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.slf4j.LoggerFactory;
+
+/**
+ * AsyncLog takes the ServerManager's log and error lines off the caller's
+ * thread. Callers copy their message into a preallocated ring buffer and
+ * return; a single background writer drains the buffer in batches, formats
+ * the lines, writes them to the log and error writers and to SLF4J, and
+ * flushes once per batch rather than once per line.
+ *
+ * <P>When the buffer is full the {@link Policy} decides what happens to new
+ * lines. Lines that are thrown away are counted, and the writer notes how
+ * many it lost.
+ */
+public final class AsyncLog {
+
+    /**
+     * What to do with a new line when the buffer can't take it
+     */
+    public enum Policy {
+        /** throw the new line away */
+        DROP,
+        /** wait until the writer makes room */
+        BLOCK,
+        /**
+         * once the buffer is three-quarters full, keep only one line in
+         * <code>sampleRate</code>; throw lines away when it is full
+         */
+        SAMPLE
+    }
+
+    private static final org.slf4j.Logger LOGGER
+        = LoggerFactory.getLogger(ServerManager.class);
+
+    /**
+     * One line waiting to be written
+     */
+    private static final class Slot {
+
+        long time;
+        String threadName;
+        int threadPriority;
+        String threadGroup;
+        boolean error;
+        String msg;
+        Throwable ex;
+
+        void copyFrom(Slot other) {
+            time = other.time;
+            threadName = other.threadName;
+            threadPriority = other.threadPriority;
+            threadGroup = other.threadGroup;
+            error = other.error;
+            msg = other.msg;
+            ex = other.ex;
+        }
+
+        void set(long time, Thread thread, boolean error, String msg,
+            Throwable ex) {
+            ThreadGroup group = thread.getThreadGroup();
+            this.time = time;
+            this.threadName = thread.getName();
+            this.threadPriority = thread.getPriority();
+            this.threadGroup = group == null ? "" : group.getName();
+            this.error = error;
+            this.msg = msg;
+            this.ex = ex;
+        }
+
+        void clear() {
+            threadName = null;
+            threadGroup = null;
+            msg = null;
+            ex = null;
+        }
+    }
+
+    // Internal data
+    //
+    private final Slot[] ring_;
+    private final int mask_;
+    private final Slot[] batch_;
+    private final Policy policy_;
+    private final int sampleRate_;
+
+    private final ReentrantLock lock_ = new ReentrantLock();
+    private final Condition notEmpty_ = lock_.newCondition();
+    private final Condition notFull_ = lock_.newCondition();
+    private final Condition written_ = lock_.newCondition();
+    private long head_ = 0;         // next slot to drain
+    private long tail_ = 0;         // next slot to fill
+    private long writtenCount_ = 0; // lines fully written
+    private long sampleCounter_ = 0;
+    private volatile boolean running_ = true;
+
+    private final AtomicLong dropped_ = new AtomicLong();
+    private long droppedReported_ = 0;
+
+    private volatile PrintWriter log_ = null;
+    private volatile PrintWriter err_ = null;
+    private volatile boolean console_ = false;
+    private volatile boolean slf4j_ = true;
+
+    private final Thread writer_;
+
+    // Used by the writer thread only
+    private final Date date_ = new Date();
+    private long dateSecond_ = -1;
+    private String dateString_ = null;
+
+    /**
+     *
+     * @param capacity lines the buffer holds; rounded up to a power of two
+     * @param batchSize most lines written between two flushes
+     * @param policy what to do when the buffer is full
+     * @param sampleRate one line in this many is kept under SAMPLE
+     */
+    public AsyncLog(int capacity, int batchSize, Policy policy, int sampleRate) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        ring_ = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            ring_[i] = new Slot();
+        }
+        mask_ = size - 1;
+
+        batch_ = new Slot[Math.max(1, Math.min(batchSize, size))];
+        for (int i = 0; i < batch_.length; i++) {
+            batch_[i] = new Slot();
+        }
+
+        policy_ = policy;
+        sampleRate_ = Math.max(1, sampleRate);
+
+        writer_ = new Thread(this::drain, "ServerManager-log");
+        writer_.setDaemon(true);
+        writer_.start();
+    }
+
+    /**
+     * Build an AsyncLog from the <code>jisis.log.buffer</code>,
+     * <code>jisis.log.batch</code>, <code>jisis.log.policy</code> (DROP,
+     * BLOCK or SAMPLE) and <code>jisis.log.sample</code> system properties.
+     *
+     * @return the new AsyncLog
+     */
+    public static AsyncLog fromSystemProperties() {
+        Policy policy;
+        try {
+            policy = Policy.valueOf(
+                System.getProperty("jisis.log.policy", "BLOCK").toUpperCase());
+        } catch (IllegalArgumentException iaEx) {
+            policy = Policy.BLOCK;
+        }
+
+        AsyncLog log = new AsyncLog(
+            Integer.getInteger("jisis.log.buffer", 8192),
+            Integer.getInteger("jisis.log.batch", 256),
+            policy,
+            Integer.getInteger("jisis.log.sample", 10));
+        log.setSlf4j(Boolean.parseBoolean(
+            System.getProperty("jisis.log.slf4j", "true")));
+        log.setConsole(Boolean.parseBoolean(
+            System.getProperty("jisis.log.console", "false")));
+        return log;
+    }
+
+    /**
+     * Set the writer log lines go to; null turns it off.
+     */
+    public void setLogWriter(PrintWriter log) {
+        log_ = log;
+    }
+
+    /**
+     * Set the writer error lines go to; null turns it off.
+     */
+    public void setErrWriter(PrintWriter err) {
+        err_ = err;
+    }
+
+    /**
+     * Echo log lines on System.out as well.
+     */
+    public void setConsole(boolean console) {
+        console_ = console;
+    }
+
+    /**
+     * Route lines to SLF4J as well (logged against ServerManager).
+     */
+    public void setSlf4j(boolean slf4j) {
+        slf4j_ = slf4j;
+    }
+
+    public boolean isSlf4j() {
+        return slf4j_;
+    }
+
+    /**
+     * Queue a line.
+     *
+     * @param error true for an error line, false for a log line
+     * @param msg the message
+     * @param ex exception whose stack trace follows the line, may be null
+     */
+    public void append(boolean error, String msg, Throwable ex) {
+        long now = System.currentTimeMillis();
+        Thread thread = Thread.currentThread();
+        if (msg == null) {
+            msg = "null";
+        }
+
+        if (!running_) {
+            // Nobody is draining; write it ourselves
+            Slot slot = new Slot();
+            slot.set(now, thread, error, msg, ex);
+            synchronized (batch_) {
+                write(slot);
+                flushWriters();
+            }
+            return;
+        }
+
+        lock_.lock();
+        try {
+            int used = (int) (tail_ - head_);
+            if (used >= ring_.length) {
+                if (policy_ != Policy.BLOCK) {
+                    dropped_.incrementAndGet();
+                    return;
+                }
+                while (tail_ - head_ >= ring_.length && running_) {
+                    notFull_.awaitUninterruptibly();
+                }
+                used = (int) (tail_ - head_);
+                if (used >= ring_.length) {
+                    // Closed while we waited
+                    dropped_.incrementAndGet();
+                    return;
+                }
+            } else if (policy_ == Policy.SAMPLE
+                && used >= ring_.length - (ring_.length >> 2)
+                && sampleCounter_++ % sampleRate_ != 0) {
+                dropped_.incrementAndGet();
+                return;
+            }
+
+            ring_[(int) (tail_ & mask_)].set(now, thread, error, msg, ex);
+            tail_++;
+            if (used == 0) {
+                notEmpty_.signal();
+            }
+        } finally {
+            lock_.unlock();
+        }
+    }
+
+    /**
+     * Wait until every line queued so far has been written, or until
+     * <code>timeoutMs</code> has passed.
+     *
+     * @param timeoutMs
+     * @return true if everything was written
+     */
+    public boolean flush(long timeoutMs) {
+        long deadline = System.nanoTime()
+            + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        lock_.lock();
+        try {
+            long target = tail_;
+            while (writtenCount_ < target && running_) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    return false;
+                }
+                written_.awaitNanos(left);
+            }
+            return writtenCount_ >= target;
+        } catch (InterruptedException iEx) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            lock_.unlock();
+        }
+    }
+
+    /**
+     * Write what is queued, then stop the writer thread; later lines are
+     * written on the caller's thread.
+     */
+    public void close() {
+        flush(5 * 1000);
+        lock_.lock();
+        try {
+            running_ = false;
+            notEmpty_.signalAll();
+            notFull_.signalAll();
+            written_.signalAll();
+        } finally {
+            lock_.unlock();
+        }
+        try {
+            writer_.join(5 * 1000);
+        } catch (InterruptedException iEx) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return number of lines waiting to be written
+     */
+    public int getQueueDepth() {
+        lock_.lock();
+        try {
+            return (int) (tail_ - head_);
+        } finally {
+            lock_.unlock();
+        }
+    }
+
+    /**
+     * @return number of lines thrown away by the DROP or SAMPLE policies
+     */
+    public long getDroppedCount() {
+        return dropped_.get();
+    }
+
+    public Policy getPolicy() {
+        return policy_;
+    }
+
+    /**
+     * Writer thread body
+     */
+    private void drain() {
+        while (true) {
+            int n = 0;
+            lock_.lock();
+            try {
+                while (head_ == tail_ && running_) {
+                    notEmpty_.awaitUninterruptibly();
+                }
+                if (head_ == tail_) {
+                    return;
+                }
+                n = (int) Math.min(tail_ - head_, batch_.length);
+                for (int i = 0; i < n; i++) {
+                    Slot slot = ring_[(int) ((head_ + i) & mask_)];
+                    batch_[i].copyFrom(slot);
+                    slot.clear();
+                }
+                head_ += n;
+                notFull_.signalAll();
+            } finally {
+                lock_.unlock();
+            }
+
+            synchronized (batch_) {
+                long dropped = dropped_.get();
+                if (dropped != droppedReported_) {
+                    Slot note = new Slot();
+                    note.set(System.currentTimeMillis(), writer_, false,
+                        (dropped - droppedReported_)
+                        + " log line(s) dropped (" + policy_ + " policy)",
+                        null);
+                    droppedReported_ = dropped;
+                    write(note);
+                }
+                for (int i = 0; i < n; i++) {
+                    try {
+                        write(batch_[i]);
+                    } catch (RuntimeException ex) {
+                        // A broken sink must not kill the writer
+                    }
+                    batch_[i].clear();
+                }
+                flushWriters();
+            }
+
+            lock_.lock();
+            try {
+                writtenCount_ += n;
+                written_.signalAll();
+            } finally {
+                lock_.unlock();
+            }
+        }
+    }
+
+    /**
+     * Format one line and hand it to the sinks; called with batch_ held.
+     */
+    private void write(Slot slot) {
+        StringBuilder m = new StringBuilder(64 + slot.msg.length());
+        m.append(formatDate(slot.time));
+        m.append(" [Thread[");
+        m.append(slot.threadName).append(',');
+        m.append(slot.threadPriority).append(',');
+        m.append(slot.threadGroup).append(']');
+        m.append(slot.error ? "]: *** ERROR *** " : "]: ");
+        m.append(slot.msg);
+
+        PrintWriter out = slot.error ? err_ : log_;
+        if (out != null) {
+            out.println(m);
+            if (slot.ex != null) {
+                out.println(formatDate(slot.time) + " Exception raised: "
+                    + slot.ex.toString());
+                slot.ex.printStackTrace(out);
+            }
+        }
+        if (console_ && !slot.error) {
+            System.out.println(m);
+        }
+        if (slf4j_) {
+            String line = "[" + slot.threadName + "]: " + slot.msg;
+            if (slot.error) {
+                LOGGER.error(line, slot.ex);
+            } else {
+                LOGGER.info(line, slot.ex);
+            }
+        }
+    }
+
+    private void flushWriters() {
+        PrintWriter log = log_;
+        if (log != null) {
+            log.flush();
+        }
+        PrintWriter err = err_;
+        if (err != null) {
+            err.flush();
+        }
+    }
+
+    /**
+     * Same format as Date.toString(), rebuilt at most once a second
+     */
+    private String formatDate(long time) {
+        long second = time / 1000;
+        if (second != dateSecond_) {
+            date_.setTime(time);
+            dateString_ = date_.toString();
+            dateSecond_ = second;
+        }
+        return dateString_;
+    }
+}
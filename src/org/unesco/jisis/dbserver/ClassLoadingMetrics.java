@@ -0,0 +1,253 @@
+package org.unesco.jisis.dbserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.unesco.jisis.dbserver.classloader.CachingClassLoaderStrategy;
+import org.unesco.jisis.dbserver.classloader.CompositeClassLoader;
+import org.unesco.jisis.dbserver.classloader.IClassLoaderStrategy;
+
+/**
+ * ClassLoadingMetrics collects, per deployed IClassLoaderStrategy, how
+ * often each lookup found something, found nothing or threw, how many
+ * class bytes it returned, and how long it took. It is filled in by
+ * {@link InstrumentedClassLoaderStrategy}.
+ *
+ * <P>Strategies are named after the Service they were deployed for; the
+ * delegates of a deployed CompositeClassLoader are measured one by one,
+ * as "service/index:Class", so the slow link in a chain shows up on its
+ * own line.
+ */
+public final class ClassLoadingMetrics {
+
+    /**
+     * The IClassLoaderStrategy lookups that are measured
+     */
+    public enum Operation {
+        FIND_CLASS, FIND_RESOURCE, FIND_RESOURCES, FIND_LIBRARY
+    }
+
+    /**
+     * Metrics for one strategy
+     */
+    public static final class StrategyMetrics {
+
+        private final String name_;
+        private final Map<Operation, LatencyHistogram> latency_
+            = new EnumMap<>(Operation.class);
+        private final Map<Operation, AtomicLong> hits_
+            = new EnumMap<>(Operation.class);
+        private final Map<Operation, AtomicLong> misses_
+            = new EnumMap<>(Operation.class);
+        private final Map<Operation, AtomicLong> errors_
+            = new EnumMap<>(Operation.class);
+        private final AtomicLong bytes_ = new AtomicLong();
+        private volatile String lastErrorClass_ = null;
+
+        StrategyMetrics(String name) {
+            name_ = name;
+            for (Operation op : Operation.values()) {
+                latency_.put(op, new LatencyHistogram());
+                hits_.put(op, new AtomicLong());
+                misses_.put(op, new AtomicLong());
+                errors_.put(op, new AtomicLong());
+            }
+        }
+
+        /**
+         * Record one lookup that returned.
+         *
+         * @param op the lookup made
+         * @param nanos how long it took
+         * @param found false if it returned null
+         * @param bytes class bytes returned
+         */
+        void record(Operation op, long nanos, boolean found, int bytes) {
+            latency_.get(op).recordNanos(nanos);
+            (found ? hits_ : misses_).get(op).incrementAndGet();
+            if (bytes > 0) {
+                bytes_.addAndGet(bytes);
+            }
+        }
+
+        /**
+         * Record one lookup that threw.
+         */
+        void recordError(Operation op, long nanos, Throwable error) {
+            latency_.get(op).recordNanos(nanos);
+            errors_.get(op).incrementAndGet();
+            lastErrorClass_ = error.getClass().getName();
+        }
+
+        public String getName() {
+            return name_;
+        }
+
+        public LatencyHistogram getLatency(Operation op) {
+            return latency_.get(op);
+        }
+
+        public long getHitCount(Operation op) {
+            return hits_.get(op).get();
+        }
+
+        public long getMissCount(Operation op) {
+            return misses_.get(op).get();
+        }
+
+        public long getErrorCount(Operation op) {
+            return errors_.get(op).get();
+        }
+
+        /**
+         * @return class bytes returned so far
+         */
+        public long getBytes() {
+            return bytes_.get();
+        }
+
+        void reset() {
+            for (Operation op : Operation.values()) {
+                latency_.get(op).reset();
+                hits_.get(op).set(0);
+                misses_.get(op).set(0);
+                errors_.get(op).set(0);
+            }
+            bytes_.set(0);
+            lastErrorClass_ = null;
+        }
+
+        /**
+         * @return class name of the last error thrown, or null
+         */
+        public String getLastErrorClass() {
+            return lastErrorClass_;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(name_)
+                .append(" bytes=").append(bytes_.get()).append('\n');
+            for (Operation op : Operation.values()) {
+                LatencyHistogram h = latency_.get(op);
+                if (h.getCount() == 0) {
+                    continue;
+                }
+                sb.append(String.format("   %-15s %s hits=%d misses=%d errors=%d%n",
+                    op, h, getHitCount(op), getMissCount(op), getErrorCount(op)));
+            }
+            if (lastErrorClass_ != null) {
+                sb.append("   last error: ").append(lastErrorClass_).append('\n');
+            }
+            return sb.toString();
+        }
+    }
+
+    // Internal data
+    //
+    private final ConcurrentHashMap<String, StrategyMetrics> strategies_
+        = new ConcurrentHashMap<>();
+
+    /**
+     *
+     * @param name strategy name
+     * @return the metrics for that strategy, created on first use
+     */
+    public StrategyMetrics forStrategy(String name) {
+        return strategies_.computeIfAbsent(name, StrategyMetrics::new);
+    }
+
+    /**
+     * Wrap a strategy so its lookups are recorded under the given name.
+     * If it is (or caches) a CompositeClassLoader, the Composite's
+     * delegates are replaced, in place, by measured ones too.
+     *
+     * @param name strategy name, usually the Service name
+     * @param strategy the strategy to measure
+     * @return the measured strategy
+     */
+    public IClassLoaderStrategy instrument(String name,
+        IClassLoaderStrategy strategy) {
+        if (strategy == null) {
+            return null;
+        }
+        instrumentDelegates(name, strategy);
+        if (strategy instanceof InstrumentedClassLoaderStrategy) {
+            return strategy;
+        }
+        return new InstrumentedClassLoaderStrategy(strategy, forStrategy(name));
+    }
+
+    private void instrumentDelegates(String name, IClassLoaderStrategy strategy) {
+        if (strategy instanceof InstrumentedClassLoaderStrategy) {
+            strategy = ((InstrumentedClassLoaderStrategy) strategy).getStrategy();
+        }
+        if (strategy instanceof CachingClassLoaderStrategy) {
+            strategy = ((CachingClassLoaderStrategy) strategy).getDelegate();
+        }
+        if (!(strategy instanceof CompositeClassLoader)) {
+            return;
+        }
+
+        CompositeClassLoader composite = (CompositeClassLoader) strategy;
+        List<IClassLoaderStrategy> loaders = composite.getLoaders();
+        for (int i = 0; i < loaders.size(); i++) {
+            IClassLoaderStrategy delegate = loaders.get(i);
+            IClassLoaderStrategy inner = delegate;
+            if (inner instanceof InstrumentedClassLoaderStrategy) {
+                inner = ((InstrumentedClassLoaderStrategy) inner).getStrategy();
+            }
+            String type = inner.getClass().getSimpleName();
+            if (type.isEmpty()) {
+                type = inner.getClass().getName();
+            }
+            String delegateName = name + "/" + i + ":" + type;
+            instrumentDelegates(delegateName, inner);
+            if (delegate == inner) {
+                composite.replaceLoader(delegate,
+                    new InstrumentedClassLoaderStrategy(delegate,
+                        forStrategy(delegateName)));
+            }
+        }
+    }
+
+    /**
+     *
+     * @return snapshot of every strategy's metrics, sorted by name
+     */
+    public List<StrategyMetrics> getAll() {
+        List<StrategyMetrics> all = new ArrayList<>(strategies_.values());
+        all.sort((a, b) -> a.getName().compareTo(b.getName()));
+        return Collections.unmodifiableList(all);
+    }
+
+    /**
+     * Forget everything recorded so far.
+     */
+    public void reset() {
+        for (StrategyMetrics m : strategies_.values()) {
+            m.reset();
+        }
+    }
+
+    /**
+     *
+     * @return every strategy's metrics, as text
+     */
+    public String dump() {
+        StringBuilder sb = new StringBuilder();
+        for (StrategyMetrics m : getAll()) {
+            sb.append(m);
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return dump();
+    }
+}
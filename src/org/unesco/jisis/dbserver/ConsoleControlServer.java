@@ -137,11 +137,16 @@ class ConsoleThread extends Thread {
                         //return;
                     } else if (line.trim().startsWith("start")) {
                         jisisDbServer_ = new JisisDbServer();
-                        jisisDbServer_.start();
-                        try {
-                            connection_ = ConnectionNIO.connect(hostname, Integer.valueOf(port), username, password);
-                        } catch (DbException ex) {
-                            LOGGER.error("Cannot establish connection", ex);
+                        if (!jisisDbServer_.start()) {
+                            // start() has stopped whatever came up
+                            LOGGER.error("J-ISIS Database Server did not start");
+                            jisisDbServer_ = null;
+                        } else {
+                            try {
+                                connection_ = ConnectionNIO.connect(hostname, Integer.valueOf(port), username, password);
+                            } catch (DbException ex) {
+                                LOGGER.error("Cannot establish connection", ex);
+                            }
                         }
 
                     } else if (line.trim().startsWith("list")) {
@@ -152,6 +157,28 @@ class ConsoleThread extends Thread {
                             System.out.println("    " + svc);
                         }
                         System.out.println("}");
+                    } else if (line.trim().startsWith("classmetrics")) {
+                        // Dump class-loading figures per deployed strategy
+                        //
+                        if (ServerManager.instance() == null) {
+                            System.out.println("No ServerManager running");
+                        } else {
+                            System.out.print(ServerManager.getClassLoadingMetrics().dump());
+                        }
+                    } else if (line.trim().startsWith("webmetrics")) {
+                        // Jetty thread pool saturation and queue waits
+                        //
+                        String metrics = JisisDbServer.getWebMetrics();
+                        System.out.println(metrics == null
+                                ? "Web server not started" : metrics);
+                    } else if (line.trim().startsWith("metrics")) {
+                        // Dump lifecycle latency histograms per Service
+                        //
+                        if (ServerManager.instance() == null) {
+                            System.out.println("No ServerManager running");
+                        } else {
+                            System.out.print(ServerManager.getLifecycleMetrics().dump());
+                        }
                     } else if (line.trim().startsWith("remove ")) {
                         // Parse argument, confirm removal,
                         // call ServerManager.removeService()
@@ -249,7 +276,12 @@ class ConsoleThread extends Thread {
     
     private void startServer(){
         jisisDbServer_ = new JisisDbServer();
-        jisisDbServer_.start();
+        if (!jisisDbServer_.start()) {
+            // start() has stopped whatever came up
+            LOGGER.error("J-ISIS Database Server did not start");
+            jisisDbServer_ = null;
+            return;
+        }
         try {
             try {
                 connection_ = ConnectionNIO.connect(hostname, Integer.valueOf(port), username, password);
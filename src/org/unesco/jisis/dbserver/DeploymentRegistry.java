@@ -0,0 +1,216 @@
+package org.unesco.jisis.dbserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.unesco.jisis.dbserver.classloader.IClassLoaderStrategy;
+import org.unesco.jisis.dbserver.classloader.StrategyClassLoader;
+
+/**
+ * DeploymentRegistry holds the Services deployed to a ServerManager with
+ * <code>deployService</code>, one {@link Deployment} per Service name.
+ *
+ * <P>Each Deployment owns a single StrategyClassLoader, created on first
+ * use, so every instance started from it shares one set of defined classes.
+ * Deploying a name again creates a new version with a fresh loader; the
+ * instances already running keep the old version (which is then
+ * <i>retired</i>) until they are removed, after which its loader and classes
+ * can be collected.
+ */
+public final class DeploymentRegistry {
+
+    /**
+     * One version of a deployed Service
+     */
+    public static final class Deployment {
+
+        private final String serviceName_;
+        private final int version_;
+        private final IClassLoaderStrategy strategy_;
+        private final long deployedAt_ = System.currentTimeMillis();
+        private final Set<String> instanceIDs_ = ConcurrentHashMap.newKeySet();
+        private volatile StrategyClassLoader loader_ = null;
+
+        Deployment(String serviceName, int version,
+            IClassLoaderStrategy strategy) {
+            serviceName_ = serviceName;
+            version_ = version;
+            strategy_ = strategy;
+        }
+
+        public String getServiceName() {
+            return serviceName_;
+        }
+
+        /**
+         * @return 1 for the first deployment of the name, then counting up
+         */
+        public int getVersion() {
+            return version_;
+        }
+
+        public IClassLoaderStrategy getStrategy() {
+            return strategy_;
+        }
+
+        public long getDeployedAt() {
+            return deployedAt_;
+        }
+
+        /**
+         *
+         * @return the loader every instance of this version is loaded
+         *         through, created on the first call
+         */
+        public StrategyClassLoader getLoader() {
+            StrategyClassLoader loader = loader_;
+            if (loader == null) {
+                synchronized (this) {
+                    loader = loader_;
+                    if (loader == null) {
+                        loader = new StrategyClassLoader(strategy_);
+                        loader_ = loader;
+                    }
+                }
+            }
+            return loader;
+        }
+
+        /**
+         *
+         * @return instance IDs of the Servers started from this version
+         */
+        public String[] getInstanceIDs() {
+            return instanceIDs_.toArray(new String[0]);
+        }
+
+        @Override
+        public String toString() {
+            return serviceName_ + " v" + version_ + " ("
+                + instanceIDs_.size() + " instance(s), deployed "
+                + new java.util.Date(deployedAt_) + ")";
+        }
+    }
+
+    // Internal data
+    //
+    private final ConcurrentHashMap<String, Deployment> current_
+        = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Deployment> byInstance_
+        = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, AtomicInteger> versions_
+        = new ConcurrentHashMap<>();
+
+    /**
+     * Deploy a new version of <code>serviceName</code>; later lookups get
+     * this version.
+     *
+     * @param serviceName
+     * @param strategy where the Service's classes come from
+     * @return the new Deployment
+     */
+    public Deployment deploy(String serviceName, IClassLoaderStrategy strategy) {
+        int version = versions_.computeIfAbsent(serviceName,
+            (name) -> new AtomicInteger()).incrementAndGet();
+        Deployment deployment = new Deployment(serviceName, version, strategy);
+        current_.put(serviceName, deployment);
+        return deployment;
+    }
+
+    /**
+     * Stop handing out <code>serviceName</code>. Its running instances are
+     * left alone; see {@link #getInstanceIDs(String)}.
+     *
+     * @param serviceName
+     * @return the Deployment removed, or null if none was deployed
+     */
+    public Deployment undeploy(String serviceName) {
+        return current_.remove(serviceName);
+    }
+
+    /**
+     *
+     * @param serviceName
+     * @return the current Deployment of serviceName, or null
+     */
+    public Deployment get(String serviceName) {
+        return current_.get(serviceName);
+    }
+
+    /**
+     * Record that a Server was started from a Deployment.
+     *
+     * @param deployment
+     * @param instanceID
+     */
+    public void instanceAdded(Deployment deployment, String instanceID) {
+        deployment.instanceIDs_.add(instanceID);
+        byInstance_.put(instanceID, deployment);
+    }
+
+    /**
+     * Record that a Server is gone; does nothing for Servers that weren't
+     * started from a Deployment.
+     *
+     * @param instanceID
+     */
+    public void instanceRemoved(String instanceID) {
+        Deployment deployment = byInstance_.remove(instanceID);
+        if (deployment != null) {
+            deployment.instanceIDs_.remove(instanceID);
+        }
+    }
+
+    /**
+     *
+     * @param instanceID
+     * @return the Deployment the Server was started from, or null
+     */
+    public Deployment getDeployment(String instanceID) {
+        return byInstance_.get(instanceID);
+    }
+
+    /**
+     *
+     * @param serviceName
+     * @return instance IDs started from any version of serviceName
+     */
+    public String[] getInstanceIDs(String serviceName) {
+        List<String> ids = new ArrayList<>();
+        byInstance_.forEach((id, deployment) -> {
+            if (deployment.getServiceName().equals(serviceName)) {
+                ids.add(id);
+            }
+        });
+        return ids.toArray(new String[0]);
+    }
+
+    /**
+     *
+     * @return the current Deployment of every deployed name, by name
+     */
+    public List<Deployment> getDeployments() {
+        List<Deployment> all = new ArrayList<>(current_.values());
+        all.sort((a, b) -> a.getServiceName().compareTo(b.getServiceName()));
+        return Collections.unmodifiableList(all);
+    }
+
+    /**
+     *
+     * @return superseded or undeployed versions that still have instances
+     */
+    public List<Deployment> getRetired() {
+        Set<Deployment> retired = Collections.newSetFromMap(
+            new IdentityHashMap<>());
+        for (Deployment deployment : byInstance_.values()) {
+            if (current_.get(deployment.getServiceName()) != deployment) {
+                retired.add(deployment);
+            }
+        }
+        return new ArrayList<>(retired);
+    }
+}
@@ -0,0 +1,15 @@
+package org.unesco.jisis.dbserver;
+
+/**
+ * Implemented by Services that need other Services running before they
+ * start. The ServerManager starts the named Services first and stops them
+ * only after this one has stopped; Services with no ordering between them
+ * are started and stopped concurrently.
+ */
+public interface IDependentService {
+
+    /**
+     * Returns the class names of the Services this one depends on.
+     */
+    public String[] getDependencies();
+}
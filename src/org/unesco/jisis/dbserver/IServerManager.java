@@ -34,6 +34,11 @@ public interface IServerManager
      */
     public void deployService(String serviceName, 
                               IClassLoaderStrategy strategy);
+    /**
+     * Undeploy a Service name, stopping and removing every instance
+     * started from it; returns false if the name wasn't deployed.
+     */
+    public boolean undeployService(String serviceName);
     
     
     /**
@@ -69,6 +74,16 @@ public interface IServerManager
      *
      */
     public IServer getService(String instanceID);
+    /**
+     * Per-Service latency, failure and timeout figures for the lifecycle
+     * calls made through this ServerManager's Servers.
+     */
+    public LifecycleMetrics getLifecycleMetrics();
+    /**
+     * Per-strategy hit, miss, error, byte and latency figures for the
+     * class and resource lookups of deployed Services.
+     */
+    public ClassLoadingMetrics getClassLoadingMetrics();
 
 
     /**
@@ -0,0 +1,19 @@
+package org.unesco.jisis.dbserver;
+
+/**
+ * Implemented by Services that publish their state through a
+ * {@link ServiceState}. Servers read the holder directly instead of making a
+ * guarded call on the Service, so the holder must always reflect the state
+ * the Service would return from <code>getState</code>.
+ *
+ * <P>Services whose state is expensive to compute should not implement this
+ * interface; they keep going through the guarded call.
+ */
+public interface IStatePublisher {
+
+    /**
+     * Returns the holder this Service publishes its state through, or null
+     * if, for this instance, the guarded call must be made after all.
+     */
+    public ServiceState getStateHolder();
+}
@@ -0,0 +1,154 @@
+package org.unesco.jisis.dbserver;
+
+import java.net.URL;
+import java.util.Enumeration;
+import org.unesco.jisis.dbserver.ClassLoadingMetrics.Operation;
+import org.unesco.jisis.dbserver.ClassLoadingMetrics.StrategyMetrics;
+import org.unesco.jisis.dbserver.classloader.IClassLoaderStrategy;
+import org.unesco.jisis.dbserver.classloader.IPrefetchingStrategy;
+import org.unesco.jisis.dbserver.classloader.IReleasingStrategy;
+
+
+/**
+ * InstrumentedClassLoaderStrategy decorates any IClassLoaderStrategy,
+ * timing each lookup and recording the result in a
+ * {@link ClassLoadingMetrics.StrategyMetrics}. A lookup is a hit if it
+ * returns something, a miss if it returns null, and an error if it throws
+ * (the exception is passed on). Prefetching and releasing are passed
+ * through to strategies that support them.
+ */
+public class InstrumentedClassLoaderStrategy
+    implements IClassLoaderStrategy, IPrefetchingStrategy, IReleasingStrategy
+{
+    // Internal data
+    //
+    private final IClassLoaderStrategy m_strategy;
+    private final transient StrategyMetrics m_metrics;
+
+
+    /**
+     *
+     * @param strategy the strategy to measure
+     * @param metrics where to record the measurements
+     */
+    public InstrumentedClassLoaderStrategy(IClassLoaderStrategy strategy,
+        StrategyMetrics metrics)
+    {
+        m_strategy = strategy;
+        m_metrics = metrics;
+    }
+
+
+    /**
+     * Returns the strategy being measured.
+     */
+    public IClassLoaderStrategy getStrategy()
+    {
+        return m_strategy;
+    }
+
+    public StrategyMetrics getMetrics()
+    {
+        return m_metrics;
+    }
+
+    public byte[] findClassBytes(String className)
+    {
+        long begin = System.nanoTime();
+        byte[] bytes;
+        try
+        {
+            bytes = m_strategy.findClassBytes(className);
+        }
+        catch (RuntimeException | Error ex)
+        {
+            m_metrics.recordError(Operation.FIND_CLASS,
+                System.nanoTime() - begin, ex);
+            throw ex;
+        }
+        m_metrics.record(Operation.FIND_CLASS, System.nanoTime() - begin,
+            bytes != null, bytes == null ? 0 : bytes.length);
+        return bytes;
+    }
+
+    public URL findResourceURL(String resourceName)
+    {
+        long begin = System.nanoTime();
+        URL url;
+        try
+        {
+            url = m_strategy.findResourceURL(resourceName);
+        }
+        catch (RuntimeException | Error ex)
+        {
+            m_metrics.recordError(Operation.FIND_RESOURCE,
+                System.nanoTime() - begin, ex);
+            throw ex;
+        }
+        m_metrics.record(Operation.FIND_RESOURCE, System.nanoTime() - begin,
+            url != null, 0);
+        return url;
+    }
+
+    public Enumeration findResourcesEnum(String resourceName)
+    {
+        long begin = System.nanoTime();
+        Enumeration e;
+        try
+        {
+            e = m_strategy.findResourcesEnum(resourceName);
+        }
+        catch (RuntimeException | Error ex)
+        {
+            m_metrics.recordError(Operation.FIND_RESOURCES,
+                System.nanoTime() - begin, ex);
+            throw ex;
+        }
+        m_metrics.record(Operation.FIND_RESOURCES, System.nanoTime() - begin,
+            e != null && e.hasMoreElements(), 0);
+        return e;
+    }
+
+    public String findLibraryPath(String libraryName)
+    {
+        long begin = System.nanoTime();
+        String path;
+        try
+        {
+            path = m_strategy.findLibraryPath(libraryName);
+        }
+        catch (RuntimeException | Error ex)
+        {
+            m_metrics.recordError(Operation.FIND_LIBRARY,
+                System.nanoTime() - begin, ex);
+            throw ex;
+        }
+        m_metrics.record(Operation.FIND_LIBRARY, System.nanoTime() - begin,
+            path != null, 0);
+        return path;
+    }
+
+    public int prefetch()
+        throws Exception
+    {
+        if (m_strategy instanceof IPrefetchingStrategy)
+        {
+            return ((IPrefetchingStrategy)m_strategy).prefetch();
+        }
+        return 0;
+    }
+
+    public void classDefined(String className)
+    {
+        if (m_strategy instanceof IReleasingStrategy)
+        {
+            ((IReleasingStrategy)m_strategy).classDefined(className);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Instrumented[" + m_strategy + "]";
+    }
+}
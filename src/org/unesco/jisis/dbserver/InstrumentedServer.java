@@ -0,0 +1,125 @@
+package org.unesco.jisis.dbserver;
+
+import org.unesco.jisis.corelib.server.ConfigProperties;
+import org.unesco.jisis.dbserver.LifecycleMetrics.Operation;
+import org.unesco.jisis.dbserver.LifecycleMetrics.ServiceMetrics;
+
+
+/**
+ * InstrumentedServer decorates any IServer, timing each lifecycle call and
+ * recording the result in a {@link LifecycleMetrics.ServiceMetrics}. A call
+ * counts as failed if it returns false (or null for the getters), and as
+ * timed out if it leaves a TimeoutException as the Server's last error.
+ */
+public class InstrumentedServer
+    implements IServer
+{
+    // Internal data
+    //
+    private final IServer m_server;
+    private final transient ServiceMetrics m_metrics;
+
+
+    /**
+     *
+     * @param server the Server to measure
+     * @param metrics where to record the measurements
+     */
+    public InstrumentedServer(IServer server, ServiceMetrics metrics)
+    {
+        m_server = server;
+        m_metrics = metrics;
+    }
+
+
+    /**
+     * Returns the Server being measured.
+     */
+    public IServer getServer()
+    {
+        return m_server;
+    }
+
+    public boolean start()
+    {
+        Exception before = m_server.getLastError();
+        long begin = System.nanoTime();
+        boolean ok = m_server.start();
+        m_metrics.record(Operation.START, System.nanoTime() - begin, ok,
+            before, m_server.getLastError());
+        return ok;
+    }
+
+    public boolean stop()
+    {
+        Exception before = m_server.getLastError();
+        long begin = System.nanoTime();
+        boolean ok = m_server.stop();
+        m_metrics.record(Operation.STOP, System.nanoTime() - begin, ok,
+            before, m_server.getLastError());
+        return ok;
+    }
+
+    public boolean pause()
+    {
+        Exception before = m_server.getLastError();
+        long begin = System.nanoTime();
+        boolean ok = m_server.pause();
+        m_metrics.record(Operation.PAUSE, System.nanoTime() - begin, ok,
+            before, m_server.getLastError());
+        return ok;
+    }
+
+    public boolean resume()
+    {
+        Exception before = m_server.getLastError();
+        long begin = System.nanoTime();
+        boolean ok = m_server.resume();
+        m_metrics.record(Operation.RESUME, System.nanoTime() - begin, ok,
+            before, m_server.getLastError());
+        return ok;
+    }
+
+    public void kill()
+    {
+        long begin = System.nanoTime();
+        m_server.kill();
+        m_metrics.record(Operation.KILL, System.nanoTime() - begin, true,
+            null, null);
+    }
+
+    public String getState()
+    {
+        Exception before = m_server.getLastError();
+        long begin = System.nanoTime();
+        String state = m_server.getState();
+        m_metrics.record(Operation.GET_STATE, System.nanoTime() - begin,
+            state != null, before, m_server.getLastError());
+        return state;
+    }
+
+    public String getInstanceID()
+    {
+        Exception before = m_server.getLastError();
+        long begin = System.nanoTime();
+        String id = m_server.getInstanceID();
+        m_metrics.record(Operation.GET_INSTANCE_ID, System.nanoTime() - begin,
+            id != null, before, m_server.getLastError());
+        return id;
+    }
+
+    public Exception getLastError()
+    {
+        return m_server.getLastError();
+    }
+
+    public ConfigProperties getConfigInfo()
+    {
+        return m_server.getConfigInfo();
+    }
+
+    public void setConfigInfo(ConfigProperties info)
+    {
+        m_server.setConfigInfo(info);
+    }
+}
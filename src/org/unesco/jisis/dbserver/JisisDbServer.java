@@ -4,6 +4,10 @@ package org.unesco.jisis.dbserver;
 
 
 import java.io.File;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.prefs.Preferences;
 import org.apache.shiro.SecurityUtils;
 import org.apache.shiro.config.IniSecurityManagerFactory;
@@ -13,7 +17,9 @@ import org.slf4j.LoggerFactory;
 import org.unesco.jisis.corelib.common.Global;
 import org.unesco.jisis.corelib.server.DbServerService;
 import org.unesco.jisis.corelib.server.HomeManager;
+import org.unesco.jisis.jetty.webserver.JettyConfig;
 import org.unesco.jisis.jetty.webserver.JettyRunner;
+import org.unesco.jisis.jetty.webserver.JettyServer;
 //import org.unesco.jisis.jisisutils.gui.SwingUtils;
 
 
@@ -50,7 +56,11 @@ public class JisisDbServer  {
          String[] homes = DbServerService.getDbHomeManager().getDbHomeNames();
          String homePath = DbServerService.getDbHomeManager().getDbHomePath(homes[0]);
          
-         jettyRunner = new JettyRunner(homePath);
+         JettyConfig jettyConfig = JettyConfig.load(new File(
+             DbServerService.getJIsisHome() + File.separator + "conf"
+                 + File.separator + "server.conf"));
+         // Jetty starts in the background while the rest comes up
+         jettyRunner = new JettyRunner(homePath, jettyConfig);
 
          initServerEnvironment();
          
@@ -66,12 +76,19 @@ public class JisisDbServer  {
       
          LOGGER.info("Server Thread successfully started");
 
+         if (!awaitWebServer(jettyConfig.getStartTimeout())) {
+            // Don't leave the NIO server running without its web server
+            close();
+            return false;
+         }
+
          /**
           * Should be enable to re-create the users database
           */
         //UserDB.createUserDatabase();
       } catch (Exception ex) {
          LOGGER.error("Exception when starting server", ex);
+         close();
          return false;
       }
       LOGGER.debug("exiting start()");
@@ -90,15 +107,26 @@ public class JisisDbServer  {
 
   
   public boolean close() {
+      // Each in its own try, so the web server is stopped even when the
+      // NIO server fails to
+      boolean closed = true;
       try {
           if (dbServer_ != null) {
               dbServer_.stop();
           }
+      } catch (Exception ex) {
+         LOGGER.error("Exception when closing the NIO server",ex);
+         closed = false;
+      }
+      try {
           if (jettyRunner != null) {
               jettyRunner.stop();
           }
       } catch (Exception ex) {
-         LOGGER.error("Exception when closing servers",ex);
+         LOGGER.error("Exception when closing the web server",ex);
+         closed = false;
+      }
+      if (!closed) {
          return false;
       }
      
@@ -130,6 +158,46 @@ public class JisisDbServer  {
         Global.setClientTempPath(getClientTempPath());
     }
 
+    /**
+     * Wait for the web server's connector to listen.
+     *
+     * @param timeoutMs
+     * @return false if it failed to start or didn't within the timeout
+     */
+    private static boolean awaitWebServer(long timeoutMs) {
+        try {
+            jettyRunner.getReady().get(timeoutMs, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (ExecutionException ex) {
+            LOGGER.error("Jetty Web Server failed to start", ex.getCause());
+        } catch (TimeoutException ex) {
+            LOGGER.error("Jetty Web Server not listening after {} ms", timeoutMs);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    /**
+     * Completes when the web server is listening, exceptionally if it
+     * could not start; null before start()
+     */
+    public static CompletableFuture<JettyServer> getWebServerReady() {
+        JettyRunner runner = jettyRunner;
+        return runner == null ? null : runner.getReady();
+    }
+
+    /**
+     * Thread pool saturation and queue-wait figures of the web server,
+     * or null if it isn't running
+     */
+    public static String getWebMetrics() {
+        JettyRunner runner = jettyRunner;
+        return runner == null ? null
+            : "startup=" + runner.getServer().getStartupMillis() + "ms "
+                + runner.getServer().getThreadPool().toString();
+    }
+
     /** User's current working directory */
     public static String getHome() {
         return System.getProperty("user.dir");
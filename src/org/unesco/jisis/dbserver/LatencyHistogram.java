@@ -0,0 +1,111 @@
+package org.unesco.jisis.dbserver;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LatencyHistogram counts latencies, in microseconds, in power-of-two
+ * buckets. Recording is lock-free and costs a few atomic adds, so it can sit
+ * on every call; percentiles are reported as the upper bound of the bucket
+ * they fall in.
+ */
+public final class LatencyHistogram {
+
+    // Bucket 0 holds 0; bucket i holds [2^(i-1), 2^i - 1]
+    private static final int BUCKETS = 64;
+
+    // Internal data
+    //
+    private final AtomicLongArray counts_ = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count_ = new AtomicLong();
+    private final AtomicLong totalMicros_ = new AtomicLong();
+    private final AtomicLong maxMicros_ = new AtomicLong();
+
+    /**
+     *
+     * @param micros the latency to record
+     */
+    public void record(long micros) {
+        if (micros < 0) {
+            micros = 0;
+        }
+        counts_.incrementAndGet(64 - Long.numberOfLeadingZeros(micros));
+        count_.incrementAndGet();
+        totalMicros_.addAndGet(micros);
+
+        long max = maxMicros_.get();
+        while (micros > max && !maxMicros_.compareAndSet(max, micros)) {
+            max = maxMicros_.get();
+        }
+    }
+
+    /**
+     * Convenience for timings taken with System.nanoTime()
+     *
+     * @param nanos the latency to record
+     */
+    public void recordNanos(long nanos) {
+        record(nanos / 1000);
+    }
+
+    public long getCount() {
+        return count_.get();
+    }
+
+    public long getTotalMicros() {
+        return totalMicros_.get();
+    }
+
+    public long getMeanMicros() {
+        long n = count_.get();
+        return n == 0 ? 0 : totalMicros_.get() / n;
+    }
+
+    public long getMaxMicros() {
+        return maxMicros_.get();
+    }
+
+    /**
+     *
+     * @param fraction between 0 and 1, e.g. 0.99
+     * @return the upper bound of the bucket holding that percentile
+     */
+    public long getPercentileMicros(double fraction) {
+        long n = count_.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(fraction * n);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts_.get(i);
+            if (seen >= rank) {
+                long upper = i == 0 ? 0 : (i >= 63 ? Long.MAX_VALUE : (1L << i) - 1);
+                return Math.min(upper, maxMicros_.get());
+            }
+        }
+        return maxMicros_.get();
+    }
+
+    /**
+     * Forget everything recorded so far.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts_.set(i, 0);
+        }
+        count_.set(0);
+        totalMicros_.set(0);
+        maxMicros_.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "n=" + getCount()
+            + " mean=" + getMeanMicros() + "us"
+            + " p50<=" + getPercentileMicros(0.50) + "us"
+            + " p90<=" + getPercentileMicros(0.90) + "us"
+            + " p99<=" + getPercentileMicros(0.99) + "us"
+            + " max=" + getMaxMicros() + "us";
+    }
+}
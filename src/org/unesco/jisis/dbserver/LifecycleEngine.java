@@ -0,0 +1,254 @@
+package org.unesco.jisis.dbserver;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * LifecycleEngine starts or stops a set of registered Servers concurrently
+ * while respecting the dependencies they declared (see
+ * {@link IDependentService}): a Service starts only after the Services it
+ * depends on have started, and stops only after the Services depending on it
+ * have stopped. Servers with no ordering between them run at the same time
+ * on a bounded pool, and the whole run has a deadline.
+ *
+ * <P>The pool size and deadline default to the
+ * <code>jisis.lifecycle.parallelism</code> and
+ * <code>jisis.lifecycle.deadline</code> (milliseconds) system properties.
+ */
+public final class LifecycleEngine {
+
+    /**
+     * Which way the dependencies are followed
+     */
+    public enum Order {
+        /** dependencies first (startup); a failed dependency skips its dependents */
+        DEPENDENCIES_FIRST,
+        /** dependents first (shutdown); every Server is called regardless */
+        DEPENDENTS_FIRST
+    }
+
+    private static final int DEFAULT_PARALLELISM
+        = Integer.getInteger("jisis.lifecycle.parallelism",
+            Math.max(4, Runtime.getRuntime().availableProcessors()));
+    private static final long DEFAULT_DEADLINE_MS
+        = Long.getLong("jisis.lifecycle.deadline", 120 * 1000);
+
+    // Internal data
+    //
+    private final ServiceRegistry registry_;
+    private final int parallelism_;
+    private final long deadlineMs_;
+
+    /**
+     *
+     * @param registry where the Servers and their dependencies are found
+     */
+    public LifecycleEngine(ServiceRegistry registry) {
+        this(registry, DEFAULT_PARALLELISM, DEFAULT_DEADLINE_MS);
+    }
+
+    /**
+     *
+     * @param registry where the Servers and their dependencies are found
+     * @param parallelism maximum number of calls running at once
+     * @param deadlineMs time allowed for the whole run
+     */
+    public LifecycleEngine(ServiceRegistry registry, int parallelism,
+        long deadlineMs) {
+        registry_ = registry;
+        parallelism_ = parallelism;
+        deadlineMs_ = deadlineMs;
+    }
+
+    /**
+     * Call <code>action</code> once for each instance ID, in dependency
+     * order, and wait for all of them or for the deadline, whichever comes
+     * first. Calls still running at the deadline are reported as TIMED_OUT
+     * and left to finish on their own.
+     *
+     * @param operation name of the run, for the report
+     * @param instanceIDs Servers to call
+     * @param order which way the dependencies are followed
+     * @param action the call to make; returns true on success
+     * @return the report of the run
+     */
+    public LifecycleReport run(String operation, String[] instanceIDs,
+        Order order, Predicate<String> action) {
+        LifecycleReport report = new LifecycleReport(operation);
+        long deadline = System.nanoTime()
+            + TimeUnit.MILLISECONDS.toNanos(deadlineMs_);
+
+        Map<String, Set<String>> waitsFor = waitsFor(instanceIDs, order);
+        List<String> sorted = sort(waitsFor, report);
+
+        final AtomicInteger threadNumber = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(parallelism_,
+            (Runnable r) -> {
+                Thread t = new Thread(r, "LifecycleEngine-" + operation + "-"
+                    + threadNumber.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+
+        Map<String, CompletableFuture<Boolean>> futures = new HashMap<>();
+        try {
+            for (String id : sorted) {
+                List<CompletableFuture<Boolean>> prereqs = new ArrayList<>();
+                for (String before : waitsFor.get(id)) {
+                    prereqs.add(futures.get(before));
+                }
+
+                CompletableFuture<Boolean> future = CompletableFuture
+                    .allOf(prereqs.toArray(new CompletableFuture<?>[0]))
+                    .thenApplyAsync((ignored) -> {
+                        long begin = System.nanoTime();
+                        if (order == Order.DEPENDENCIES_FIRST
+                            && !allSucceeded(prereqs)) {
+                            report.record(id, LifecycleReport.Outcome.SKIPPED,
+                                begin, 0);
+                            return false;
+                        }
+                        if (begin - deadline > 0) {
+                            report.record(id, LifecycleReport.Outcome.TIMED_OUT,
+                                begin, 0);
+                            return false;
+                        }
+
+                        boolean ok;
+                        try {
+                            ok = action.test(id);
+                        } catch (RuntimeException ex) {
+                            ServerManager.error(ex);
+                            ok = false;
+                        }
+                        report.record(id, ok ? LifecycleReport.Outcome.OK
+                            : LifecycleReport.Outcome.FAILED, begin,
+                            (System.nanoTime() - begin) / 1000000);
+                        return ok;
+                    }, pool);
+                futures.put(id, future);
+            }
+
+            CompletableFuture.allOf(futures.values()
+                .toArray(new CompletableFuture<?>[0]))
+                .get(Math.max(0, deadline - System.nanoTime()),
+                    TimeUnit.NANOSECONDS);
+        } catch (TimeoutException tEx) {
+            report.note("deadline of " + deadlineMs_ + " ms passed");
+        } catch (InterruptedException iEx) {
+            Thread.currentThread().interrupt();
+            report.note("interrupted");
+        } catch (ExecutionException exEx) {
+            // Cannot happen; the stages catch everything themselves
+            ServerManager.error(exEx);
+        } finally {
+            pool.shutdown();
+        }
+
+        // Anything not yet recorded didn't make it in time
+        long now = System.nanoTime();
+        for (String id : sorted) {
+            report.record(id, LifecycleReport.Outcome.TIMED_OUT, now, 0);
+        }
+        report.finish();
+        return report;
+    }
+
+    private static boolean allSucceeded(List<CompletableFuture<Boolean>> futures) {
+        for (CompletableFuture<Boolean> f : futures) {
+            if (!f.join()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * For each instance ID, the instance IDs whose call must finish first.
+     */
+    private Map<String, Set<String>> waitsFor(String[] instanceIDs,
+        Order order) {
+        Set<String> members = new HashSet<>(Arrays.asList(instanceIDs));
+        Map<String, Set<String>> waitsFor = new HashMap<>();
+        for (String id : instanceIDs) {
+            waitsFor.put(id, new LinkedHashSet<>());
+        }
+
+        for (String id : instanceIDs) {
+            for (String depClass : registry_.getDependencies(id)) {
+                for (String depId : registry_.getInstanceIDsByClass(depClass)) {
+                    if (depId.equals(id) || !members.contains(depId)) {
+                        continue;
+                    }
+                    if (order == Order.DEPENDENCIES_FIRST) {
+                        waitsFor.get(id).add(depId);
+                    } else {
+                        waitsFor.get(depId).add(id);
+                    }
+                }
+            }
+        }
+        return waitsFor;
+    }
+
+    /**
+     * Topological sort of the waits-for graph. Servers caught in a
+     * dependency cycle lose the edges inside the cycle and are appended at
+     * the end, so a bad declaration can't hang a shutdown.
+     */
+    private static List<String> sort(Map<String, Set<String>> waitsFor,
+        LifecycleReport report) {
+        Map<String, Integer> pending = new HashMap<>();
+        Map<String, List<String>> unblocks = new HashMap<>();
+        Deque<String> ready = new ArrayDeque<>();
+        for (Map.Entry<String, Set<String>> e : waitsFor.entrySet()) {
+            pending.put(e.getKey(), e.getValue().size());
+            if (e.getValue().isEmpty()) {
+                ready.add(e.getKey());
+            }
+            for (String before : e.getValue()) {
+                unblocks.computeIfAbsent(before, (k) -> new ArrayList<>())
+                    .add(e.getKey());
+            }
+        }
+
+        List<String> sorted = new ArrayList<>(waitsFor.size());
+        Set<String> done = new HashSet<>();
+        while (!ready.isEmpty()) {
+            String id = ready.poll();
+            sorted.add(id);
+            done.add(id);
+            for (String next : unblocks.getOrDefault(id, new ArrayList<>())) {
+                if (pending.merge(next, -1, Integer::sum) == 0) {
+                    ready.add(next);
+                }
+            }
+        }
+
+        for (String id : waitsFor.keySet()) {
+            if (!done.contains(id)) {
+                report.note("dependency cycle through " + id
+                    + "; ordering inside the cycle ignored");
+                waitsFor.get(id).retainAll(done);
+                sorted.add(id);
+            }
+        }
+        return sorted;
+    }
+}
@@ -0,0 +1,233 @@
+package org.unesco.jisis.dbserver;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LifecycleExecutor runs the guarded lifecycle calls (start, stop, pause,
+ * resume, getState, getInstanceID) that IServer wrappers make on their
+ * Service instances.
+ *
+ * <P>One bounded pool of daemon threads is shared by every wrapper in the
+ * JVM, so polling a Server no longer costs a new thread. A call that does not
+ * come back within its timeout is cancelled (its thread is interrupted)
+ * rather than being left to wander off into Limbo. Idle pool threads time out
+ * on their own, so an idle ServerManager holds no lifecycle threads at all.
+ *
+ * <P>The pool size and queue capacity may be set with the
+ * <code>jisis.lifecycle.threads</code> and <code>jisis.lifecycle.queue</code>
+ * system properties.
+ */
+public final class LifecycleExecutor {
+
+    /**
+     * Default time a Service gets to answer a lifecycle call
+     */
+    public static final long DEFAULT_TIMEOUT_MS = 15 * 1000;
+
+    private static final int DEFAULT_THREADS
+        = Integer.getInteger("jisis.lifecycle.threads",
+            Math.max(4, Runtime.getRuntime().availableProcessors()));
+    private static final int DEFAULT_QUEUE
+        = Integer.getInteger("jisis.lifecycle.queue", 1024);
+    private static final long KEEP_ALIVE_MS = 60 * 1000;
+
+    private static LifecycleExecutor s_instance;
+
+    // Internal data
+    //
+    private final ThreadPoolExecutor executor_;
+    private final AtomicLong submitted_ = new AtomicLong();
+    private final AtomicLong completed_ = new AtomicLong();
+    private final AtomicLong timedOut_ = new AtomicLong();
+    private final AtomicLong rejected_ = new AtomicLong();
+    private final AtomicLong totalNanos_ = new AtomicLong();
+    private final AtomicLong maxNanos_ = new AtomicLong();
+
+    /**
+     * Get the shared LifecycleExecutor, creating it on first use.
+     *
+     * @return the JVM-wide LifecycleExecutor
+     */
+    public static synchronized LifecycleExecutor instance() {
+        if (s_instance == null) {
+            s_instance = new LifecycleExecutor(DEFAULT_THREADS, DEFAULT_QUEUE);
+        }
+        return s_instance;
+    }
+
+    /**
+     *
+     * @param threads maximum number of lifecycle calls running at once
+     * @param queueCapacity maximum number of calls waiting for a thread
+     */
+    public LifecycleExecutor(int threads, int queueCapacity) {
+        final AtomicInteger threadNumber = new AtomicInteger();
+        ThreadFactory factory = (Runnable r) -> {
+            Thread t = new Thread(r,
+                "LifecycleExecutor-" + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+
+        executor_ = new ThreadPoolExecutor(threads, threads,
+            KEEP_ALIVE_MS, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(queueCapacity), factory);
+        executor_.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Run <code>task</code> on the shared pool and give it at most
+     * <code>timeoutMs</code> milliseconds once a pool thread has picked it
+     * up; time spent waiting in the queue behind other calls is not held
+     * against it, but is bounded by <code>timeoutMs</code> too, so a pool
+     * filled with Services that ignore interrupts can't hang the caller.
+     * If the task has not started or finished by then, or the caller is
+     * interrupted while waiting, it is cancelled.
+     *
+     * @param <T> result type of the task
+     * @param task the lifecycle call to make
+     * @param timeoutMs milliseconds to wait, no more
+     * @return the value returned by the task
+     * @throws InterruptedException if the calling thread was interrupted
+     * @throws ExecutionException if the task itself threw
+     * @throws TimeoutException if the task ran out of time
+     * @throws RejectedExecutionException if the queue is full
+     */
+    public <T> T call(Callable<T> task, long timeoutMs)
+        throws InterruptedException, ExecutionException, TimeoutException {
+        long begin = System.nanoTime();
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicLong startedAt = new AtomicLong();
+        Future<T> future;
+        try {
+            future = executor_.submit(() -> {
+                startedAt.set(System.nanoTime());
+                started.countDown();
+                return task.call();
+            });
+        } catch (RejectedExecutionException reEx) {
+            rejected_.incrementAndGet();
+            throw reEx;
+        }
+        submitted_.incrementAndGet();
+
+        try {
+            if (!started.await(timeoutMs, TimeUnit.MILLISECONDS)) {
+                throw new TimeoutException("No lifecycle thread free after "
+                    + timeoutMs + " ms");
+            }
+            long left = timeoutMs
+                - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt.get());
+            T result = future.get(Math.max(0, left), TimeUnit.MILLISECONDS);
+            completed_.incrementAndGet();
+            return result;
+        } catch (TimeoutException tEx) {
+            timedOut_.incrementAndGet();
+            throw tEx;
+        } finally {
+            // Don't leave the call running (or queued); interrupt the pool
+            // thread so it can be reused once the Service notices
+            if (!future.isDone()) {
+                future.cancel(true);
+                if (started.getCount() > 0) {
+                    // Still queued: free its slot now
+                    executor_.purge();
+                }
+            }
+            record(System.nanoTime() - begin);
+        }
+    }
+
+    private void record(long nanos) {
+        totalNanos_.addAndGet(nanos);
+        long max = maxNanos_.get();
+        while (nanos > max && !maxNanos_.compareAndSet(max, nanos)) {
+            max = maxNanos_.get();
+        }
+    }
+
+    /**
+     * @return number of calls waiting for a pool thread
+     */
+    public int getQueueDepth() {
+        return executor_.getQueue().size();
+    }
+
+    /**
+     * @return number of calls currently running
+     */
+    public int getActiveCount() {
+        return executor_.getActiveCount();
+    }
+
+    /**
+     * @return number of threads currently in the pool
+     */
+    public int getPoolSize() {
+        return executor_.getPoolSize();
+    }
+
+    public long getSubmittedCount() {
+        return submitted_.get();
+    }
+
+    public long getCompletedCount() {
+        return completed_.get();
+    }
+
+    public long getTimeoutCount() {
+        return timedOut_.get();
+    }
+
+    public long getRejectedCount() {
+        return rejected_.get();
+    }
+
+    /**
+     * @return mean wall-clock time of a call, submit to return, in
+     *         microseconds
+     */
+    public long getAverageLatencyMicros() {
+        long n = submitted_.get();
+        return n == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalNanos_.get() / n);
+    }
+
+    /**
+     * @return longest wall-clock time of a call, in microseconds
+     */
+    public long getMaxLatencyMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(maxNanos_.get());
+    }
+
+    /**
+     * Stop accepting calls; calls already queued still run.
+     */
+    public void shutdown() {
+        executor_.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return "LifecycleExecutor[threads=" + getPoolSize()
+            + ", active=" + getActiveCount()
+            + ", queued=" + getQueueDepth()
+            + ", submitted=" + getSubmittedCount()
+            + ", completed=" + getCompletedCount()
+            + ", timedOut=" + getTimeoutCount()
+            + ", rejected=" + getRejectedCount()
+            + ", avgMicros=" + getAverageLatencyMicros()
+            + ", maxMicros=" + getMaxLatencyMicros() + "]";
+    }
+}
@@ -0,0 +1,191 @@
+package org.unesco.jisis.dbserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LifecycleMetrics collects, per Service class, how long each IServer
+ * operation takes, how often it fails or times out, and the class of the
+ * last error. It is filled in by {@link InstrumentedServer}.
+ */
+public final class LifecycleMetrics {
+
+    /**
+     * The IServer operations that are measured
+     */
+    public enum Operation {
+        START, STOP, PAUSE, RESUME, KILL, GET_STATE, GET_INSTANCE_ID
+    }
+
+    /**
+     * Metrics for one Service class
+     */
+    public static final class ServiceMetrics {
+
+        private final String service_;
+        private final Map<Operation, LatencyHistogram> latency_
+            = new EnumMap<>(Operation.class);
+        private final Map<Operation, AtomicLong> failures_
+            = new EnumMap<>(Operation.class);
+        private final Map<Operation, AtomicLong> timeouts_
+            = new EnumMap<>(Operation.class);
+        private volatile String lastErrorClass_ = null;
+        private volatile Operation lastErrorOperation_ = null;
+        private volatile long lastErrorTime_ = 0;
+
+        ServiceMetrics(String service) {
+            service_ = service;
+            for (Operation op : Operation.values()) {
+                latency_.put(op, new LatencyHistogram());
+                failures_.put(op, new AtomicLong());
+                timeouts_.put(op, new AtomicLong());
+            }
+        }
+
+        /**
+         * Record one call.
+         *
+         * @param op the operation called
+         * @param nanos how long it took
+         * @param ok false if the call reported failure
+         * @param errorBefore the Server's last error before the call
+         * @param errorAfter the Server's last error after the call
+         */
+        void record(Operation op, long nanos, boolean ok,
+            Exception errorBefore, Exception errorAfter) {
+            latency_.get(op).recordNanos(nanos);
+            if (!ok) {
+                failures_.get(op).incrementAndGet();
+            }
+            if (errorAfter != null && errorAfter != errorBefore) {
+                if (errorAfter instanceof TimeoutException) {
+                    timeouts_.get(op).incrementAndGet();
+                }
+                lastErrorClass_ = errorAfter.getClass().getName();
+                lastErrorOperation_ = op;
+                lastErrorTime_ = System.currentTimeMillis();
+            }
+        }
+
+        void reset() {
+            for (Operation op : Operation.values()) {
+                latency_.get(op).reset();
+                failures_.get(op).set(0);
+                timeouts_.get(op).set(0);
+            }
+            lastErrorClass_ = null;
+            lastErrorOperation_ = null;
+            lastErrorTime_ = 0;
+        }
+
+        public String getService() {
+            return service_;
+        }
+
+        public LatencyHistogram getLatency(Operation op) {
+            return latency_.get(op);
+        }
+
+        public long getFailureCount(Operation op) {
+            return failures_.get(op).get();
+        }
+
+        public long getTimeoutCount(Operation op) {
+            return timeouts_.get(op).get();
+        }
+
+        /**
+         * @return class name of the last error seen, or null
+         */
+        public String getLastErrorClass() {
+            return lastErrorClass_;
+        }
+
+        public Operation getLastErrorOperation() {
+            return lastErrorOperation_;
+        }
+
+        public long getLastErrorTime() {
+            return lastErrorTime_;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(service_).append('\n');
+            for (Operation op : Operation.values()) {
+                LatencyHistogram h = latency_.get(op);
+                if (h.getCount() == 0) {
+                    continue;
+                }
+                sb.append(String.format("   %-15s %s failures=%d timeouts=%d%n",
+                    op, h, getFailureCount(op), getTimeoutCount(op)));
+            }
+            if (lastErrorClass_ != null) {
+                sb.append("   last error: ").append(lastErrorClass_)
+                    .append(" in ").append(lastErrorOperation_)
+                    .append(" at ").append(new java.util.Date(lastErrorTime_))
+                    .append('\n');
+            }
+            return sb.toString();
+        }
+    }
+
+    // Internal data
+    //
+    private final ConcurrentHashMap<String, ServiceMetrics> services_
+        = new ConcurrentHashMap<>();
+
+    /**
+     *
+     * @param service Service class name
+     * @return the metrics for that Service, created on first use
+     */
+    public ServiceMetrics forService(String service) {
+        return services_.computeIfAbsent(service, ServiceMetrics::new);
+    }
+
+    /**
+     *
+     * @return snapshot of every Service's metrics, sorted by name
+     */
+    public List<ServiceMetrics> getAll() {
+        List<ServiceMetrics> all = new ArrayList<>(services_.values());
+        all.sort((a, b) -> a.getService().compareTo(b.getService()));
+        return Collections.unmodifiableList(all);
+    }
+
+    /**
+     * Forget everything recorded so far.
+     */
+    public void reset() {
+        // In place: InstrumentedServers hold on to their ServiceMetrics
+        for (ServiceMetrics m : services_.values()) {
+            m.reset();
+        }
+    }
+
+    /**
+     *
+     * @return every Service's metrics, plus the shared lifecycle pool, as
+     *         text
+     */
+    public String dump() {
+        StringBuilder sb = new StringBuilder();
+        for (ServiceMetrics m : getAll()) {
+            sb.append(m);
+        }
+        sb.append(LifecycleExecutor.instance()).append('\n');
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return dump();
+    }
+}
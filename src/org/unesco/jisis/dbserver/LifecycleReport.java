@@ -0,0 +1,201 @@
+package org.unesco.jisis.dbserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * LifecycleReport records what happened to each Server during one run of
+ * the {@link LifecycleEngine}: the outcome, when its call began (relative to
+ * the start of the run) and how long it took.
+ */
+public final class LifecycleReport {
+
+    /**
+     * What happened to one Server
+     */
+    public enum Outcome {
+        /** the call returned successfully */
+        OK,
+        /** the call returned false or threw */
+        FAILED,
+        /** not called because a Service it depends on failed */
+        SKIPPED,
+        /** not finished when the run's deadline passed */
+        TIMED_OUT
+    }
+
+    /**
+     * One line of the report
+     */
+    public static final class Entry {
+
+        private final String instanceID_;
+        private final Outcome outcome_;
+        private final long startOffsetMs_;
+        private final long elapsedMs_;
+
+        Entry(String instanceID, Outcome outcome, long startOffsetMs,
+            long elapsedMs) {
+            instanceID_ = instanceID;
+            outcome_ = outcome;
+            startOffsetMs_ = startOffsetMs;
+            elapsedMs_ = elapsedMs;
+        }
+
+        public String getInstanceID() {
+            return instanceID_;
+        }
+
+        public Outcome getOutcome() {
+            return outcome_;
+        }
+
+        /**
+         * @return milliseconds from the start of the run to the start of
+         *         this Server's call
+         */
+        public long getStartOffsetMs() {
+            return startOffsetMs_;
+        }
+
+        /**
+         * @return milliseconds this Server's call took
+         */
+        public long getElapsedMs() {
+            return elapsedMs_;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-9s +%6d ms %6d ms  %s",
+                outcome_, startOffsetMs_, elapsedMs_, instanceID_);
+        }
+    }
+
+    // Internal data
+    //
+    private final String operation_;
+    private final long beginNanos_ = System.nanoTime();
+    private volatile long elapsedMs_ = -1;
+    private final ConcurrentHashMap<String, Entry> entries_
+        = new ConcurrentHashMap<>();
+    private final List<String> notes_ = new CopyOnWriteArrayList<>();
+
+    /**
+     *
+     * @param operation name of the run, for display
+     */
+    public LifecycleReport(String operation) {
+        operation_ = operation;
+    }
+
+    public String getOperation() {
+        return operation_;
+    }
+
+    /**
+     * Record the outcome of one Server; the first outcome recorded for an
+     * instance ID wins.
+     *
+     * @param instanceID
+     * @param outcome
+     * @param callBeginNanos System.nanoTime() when the call began
+     * @param elapsedMs
+     */
+    void record(String instanceID, Outcome outcome, long callBeginNanos,
+        long elapsedMs) {
+        long offset = (callBeginNanos - beginNanos_) / 1000000;
+        entries_.putIfAbsent(instanceID,
+            new Entry(instanceID, outcome, offset, elapsedMs));
+    }
+
+    void note(String note) {
+        notes_.add(note);
+    }
+
+    void finish() {
+        elapsedMs_ = (System.nanoTime() - beginNanos_) / 1000000;
+    }
+
+    /**
+     *
+     * @param instanceID
+     * @return the outcome for that Server, or null if none was recorded
+     */
+    public Outcome getOutcome(String instanceID) {
+        Entry entry = entries_.get(instanceID);
+        return entry == null ? null : entry.getOutcome();
+    }
+
+    /**
+     *
+     * @return every entry, in the order the calls began
+     */
+    public List<Entry> getEntries() {
+        List<Entry> entries = new ArrayList<>(entries_.values());
+        entries.sort((a, b) -> Long.compare(a.getStartOffsetMs(),
+            b.getStartOffsetMs()));
+        return entries;
+    }
+
+    /**
+     *
+     * @return anything worth knowing about the run, such as dependency
+     *         cycles that had to be broken
+     */
+    public List<String> getNotes() {
+        return Collections.unmodifiableList(notes_);
+    }
+
+    /**
+     *
+     * @param outcome
+     * @return number of Servers with that outcome
+     */
+    public int count(Outcome outcome) {
+        int n = 0;
+        for (Entry entry : entries_.values()) {
+            if (entry.getOutcome() == outcome) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     *
+     * @return true if every Server's call succeeded
+     */
+    public boolean isSuccessful() {
+        return count(Outcome.OK) == entries_.size();
+    }
+
+    /**
+     *
+     * @return milliseconds the whole run took, or -1 if it is still going
+     */
+    public long getElapsedMs() {
+        return elapsedMs_;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(operation_).append(": ").append(entries_.size())
+            .append(" service(s) in ").append(elapsedMs_).append(" ms (")
+            .append(count(Outcome.OK)).append(" ok, ")
+            .append(count(Outcome.FAILED)).append(" failed, ")
+            .append(count(Outcome.SKIPPED)).append(" skipped, ")
+            .append(count(Outcome.TIMED_OUT)).append(" timed out)\n");
+        for (Entry entry : getEntries()) {
+            sb.append("   ").append(entry).append('\n');
+        }
+        for (String note : notes_) {
+            sb.append("   note: ").append(note).append('\n');
+        }
+        return sb.toString();
+    }
+}
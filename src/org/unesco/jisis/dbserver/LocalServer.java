@@ -2,10 +2,6 @@ package org.unesco.jisis.dbserver;
 
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.FutureTask;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import org.unesco.jisis.corelib.server.ConfigProperties;
 import org.unesco.jisis.corelib.server.IService;
@@ -13,17 +9,22 @@ import org.unesco.jisis.corelib.server.IService;
 
 /**
  * Server wraps the Service instance, using Future calls to help preserve
- * the responsiveness and robustness of the ServerManager.
+ * the responsiveness and robustness of the ServerManager. The calls run on
+ * the shared {@link LifecycleExecutor} pool.
  */
 public class LocalServer
     implements IServer
 {
+    // Returned by invoke() when the call failed or ran out of time
+    //
+    private static final Object FAILED = new Object();
+
     // Internal data
     //
     private IService m_service = null;
-    private Exception m_exception = null;
-    
-    
+    private volatile Exception m_exception = null;
+
+
     // Prevent no-arg object instantiation
     //
     private LocalServer()
@@ -54,78 +55,28 @@ public class LocalServer
             ServerManager.log("m_service == null?!?");
         }
 
-        // We want to fire off a Thread to make the start() call, and wait
+        // We want to hand the start() call to another Thread, and wait
         // up to 15 seconds to see if we return. If we don't by the time the
         // 15 seconds are up, we assume the Service has run off into Limbo
         // and needs to be killed. (Most Services of any complexity will need
         // to fire off their own Thread to do their work, so their start()
         // methods should come back pretty quickly.)
         //
-
-        try
-        {
-           ExecutorService executor = Executors.newFixedThreadPool(1);
-
-            FutureTask<Object> futureTask = new FutureTask<Object>(
-                    new Callable<Object>()
-                {
-
-                public Object call()
-                {
-                    try
-                    {
-                        m_service.start();
-                        ServerManager.log(
-                            m_service.getClass().getName() + ": started");
-                    }
-                    catch (Exception ex)
-                    {
-                        m_exception = ex;
-                        ServerManager.error(ex);
-                    }
-                    return null;
-                }
-            });
-            executor.execute(futureTask);
-
-            
-            futureTask.get(15*1000,TimeUnit.MILLISECONDS);
-                // we want to wait 15 seconds, no more.
-
-            return true;
-        }
-        catch (TimeoutException tEx)
-        {
-            m_exception = tEx;
-
-            // The Service ran out of time starting up; kill it, note the
-            // failure to start, and return
-            //
-            ServerManager.log(tEx);
-        }
-        catch (InterruptedException iEx)
-        {
-            m_exception = iEx;
-
-            // For some reason, the thread doing the call failed; note the
-            // failure to start, and return
-            //
-            ServerManager.log(iEx);
-        }
-        catch (ExecutionException itEx)
-        {
-            m_exception = itEx;
-
-            // Java Reflection failed; note the failure, and return
-            //
-            ServerManager.log(itEx);
-        }
-        catch (Exception ex)
+        return invoke(() ->
         {
-            m_exception = ex;
-            ServerManager.error(ex);
-        }
-        return false;
+            try
+            {
+                m_service.start();
+                ServerManager.log(
+                    m_service.getClass().getName() + ": started");
+            }
+            catch (Exception ex)
+            {
+                m_exception = ex;
+                ServerManager.error(ex);
+            }
+            return null;
+        }) != FAILED;
     }
     /**
      * Stop the wrapped Service instance; as with <code>start</code>, the Service
@@ -137,71 +88,21 @@ public class LocalServer
         // We use the method described in start() to make sure calls to
         // stop() don't wander off into Limbo.
         //
-        try
-        {
-           ExecutorService executor = Executors.newFixedThreadPool(1);
-
-            FutureTask<Object> futureTask = new FutureTask<Object>(
-                    new Callable<Object>()
-                {
-
-
-                public Object call()
-                {
-                    try
-                    {
-                        m_service.stop();
-                        ServerManager.instance().log(
-                            m_service.getClass().getName() + ": stopped");
-                    }
-                    catch (Exception ex)
-                    {
-                        m_exception = ex;
-                        ServerManager.instance().log(ex);
-                    }
-                    return null;
-                }
-            });
-            executor.execute(futureTask);
-
-
-            futureTask.get(15*1000,TimeUnit.MILLISECONDS);
-            // we want to wait 15 seconds, no more.
-
-            return true;
-        }
-        catch (TimeoutException tEx)
-        {
-            m_exception = tEx;
-
-            // The Service ran out of time starting up; kill it, note the
-            // failure to start, and return
-            //
-            ServerManager.instance().log(tEx);
-        }
-        catch (InterruptedException iEx)
-        {
-            m_exception = iEx;
-
-            // For some reason, the thread doing the call failed; note the
-            // failure to start, and return
-            //
-            ServerManager.instance().log(Thread.currentThread().toString() + " " + iEx);
-        }
-        catch (ExecutionException itEx)
-        {
-            m_exception = itEx;
-
-            // Java Reflection failed; note the failure, and return
-            //
-            ServerManager.instance().log(itEx);
-        }
-        catch (Exception ex)
+        return invoke(() ->
         {
-            m_exception = ex;
-            ServerManager.instance().log(ex);
-        }
-        return false;
+            try
+            {
+                m_service.stop();
+                ServerManager.log(
+                    m_service.getClass().getName() + ": stopped");
+            }
+            catch (Exception ex)
+            {
+                m_exception = ex;
+                ServerManager.log(ex);
+            }
+            return null;
+        }) != FAILED;
     }
     /**
      * Pauses the wrapped Service. The Service should respond within 15 seconds of
@@ -213,71 +114,21 @@ public class LocalServer
         // We use the method described in start() to make sure calls to
         // pause() don't wander off into Limbo.
         //
-        try
-        {
-           ExecutorService executor = Executors.newFixedThreadPool(1);
-
-            FutureTask<Object> futureTask = new FutureTask<Object>(
-                    new Callable<Object>()
-                {
-
-
-
-                public Object call()
-                {
-                    try
-                    {
-                        m_service.pause();
-                        ServerManager.instance().log(
-                            m_service.getClass().getName() + ": paused");
-                    }
-                    catch (Exception ex)
-                    {
-                        m_exception = ex;
-                        ServerManager.instance().log(ex);
-                    }
-                    return null;
-                }
-            });
-            executor.execute(futureTask);
-
-            futureTask.get(15*1000,TimeUnit.MILLISECONDS);
-            // we want to wait 15 seconds, no more.
-
-            return true;
-        }
-        catch (TimeoutException tEx)
-        {
-            m_exception = tEx;
-
-            // The Service ran out of time starting up; kill it, note the
-            // failure to start, and return
-            //
-            ServerManager.instance().log(tEx);
-        }
-        catch (InterruptedException iEx)
+        return invoke(() ->
         {
-            m_exception = iEx;
-
-            // For some reason, the thread doing the call failed; note the
-            // failure to start, and return
-            //
-            ServerManager.instance().log(iEx);
-        }
-        catch (ExecutionException itEx)
-        {
-            m_exception = itEx;
-
-            // Java Reflection failed; note the failure, and return
-            //
-            ServerManager.instance().log(itEx);
-        }
-        catch (Exception ex)
-        {
-            m_exception = ex;
-            ServerManager.instance().log(ex);
-        }
-        return false;
+            try
+            {
+                m_service.pause();
+                ServerManager.log(
+                    m_service.getClass().getName() + ": paused");
+            }
+            catch (Exception ex)
+            {
+                m_exception = ex;
+                ServerManager.log(ex);
+            }
+            return null;
+        }) != FAILED;
     }
     /**
      * Resumes the wrapped Service. The Service should respond within 15 seconds of
@@ -289,69 +140,21 @@ public class LocalServer
         // We use the method described in start() to make sure calls to
         // resume() don't wander off into Limbo.
         //
-        try
-        {
-            ExecutorService executor = Executors.newFixedThreadPool(1);
-
-            FutureTask<Object> futureTask = new FutureTask<Object>(
-                    new Callable<Object>()
-                {
-            
-                public Object call()
-                {
-                    try
-                    {
-                        m_service.resume();
-                        ServerManager.instance().log(
-                            m_service.getClass().getName() + ": resumed");
-                    }
-                    catch (Exception ex)
-                    {
-                        m_exception = ex;
-                        ServerManager.instance().log(ex);
-                    }
-                    return null;
-                }
-            });
-             executor.execute(futureTask);
-
-            futureTask.get(15*1000,TimeUnit.MILLISECONDS);
-            // we want to wait 15 seconds, no more.
-
-            return true;
-        }
-        catch (TimeoutException tEx)
-        {
-            m_exception = tEx;
-
-            // The Service ran out of time starting up; kill it, note the
-            // failure to start, and return
-            //
-            ServerManager.instance().log(tEx);
-        }
-        catch (InterruptedException iEx)
+        return invoke(() ->
         {
-            m_exception = iEx;
-
-            // For some reason, the thread doing the call failed; note the
-            // failure to start, and return
-            //
-            ServerManager.instance().log(iEx);
-        }
-        catch (ExecutionException itEx)
-        {
-            m_exception = itEx;
-
-            // Java Reflection failed; note the failure, and return
-            //
-            ServerManager.instance().log(itEx);
-        }
-        catch (Exception ex)
-        {
-            m_exception = ex;
-            ServerManager.instance().log(ex);
-        }
-        return false;
+            try
+            {
+                m_service.resume();
+                ServerManager.log(
+                    m_service.getClass().getName() + ": resumed");
+            }
+            catch (Exception ex)
+            {
+                m_exception = ex;
+                ServerManager.log(ex);
+            }
+            return null;
+        }) != FAILED;
     }
     /**
      *
@@ -364,171 +167,149 @@ public class LocalServer
 
 
     /**
-     * 
+     * The holder the Service publishes its state through, or null if it
+     * doesn't (or declines to, by returning null)
+     */
+    private ServiceState stateHolder()
+    {
+        IService svc = m_service;
+        return svc instanceof IStatePublisher
+            ? ((IStatePublisher)svc).getStateHolder() : null;
+    }
+
+
+    /**
+     * Services that publish their state through a ServiceState are read
+     * directly; anything else goes through the guarded call.
      */
     public String getState()
     {
+        ServiceState holder = stateHolder();
+        if (holder != null)
+        {
+            return holder.get();
+        }
+
         // We use the method described in start() to make sure calls to
         // getState() don't wander off into Limbo.
         //
-        try
+        Object result = invoke(() ->
         {
-           ExecutorService executor = Executors.newFixedThreadPool(1);
-
-            FutureTask<Object> futureTask = new FutureTask<Object>(
-                    new Callable<Object>()
-                {
-           
-                public Object call()
-                {
-                    try
-                    {
-                        return m_service.getState();
-                    }
-                    catch (Exception ex)
-                    {
-                        m_exception = ex;
-                        ServerManager.instance().log(ex);
-                    }
-                    return null;
-                }
-            });
-             executor.execute(futureTask);
-
-             String result = (String)futureTask.get(15*1000,TimeUnit.MILLISECONDS);
-             // we want to wait 15 seconds, no more.
+            try
+            {
+                return m_service.getState();
+            }
+            catch (Exception ex)
+            {
+                m_exception = ex;
+                ServerManager.log(ex);
+            }
+            return null;
+        });
+        return result == FAILED ? null : (String)result;
+    }
 
-            return result;
-        }
-        catch (TimeoutException tEx)
-        {
-            m_exception = tEx;
 
-            // The Service ran out of time starting up; kill it, note the
-            // failure to start, and return
-            //
-            ServerManager.instance().log(tEx);
-        }
-        catch (InterruptedException iEx)
+    /**
+     * As with getState(), a published instance ID is read directly.
+     */
+    public String getInstanceID()
+    {
+        ServiceState holder = stateHolder();
+        String id = holder == null ? null : holder.getInstanceID();
+        if (id != null)
         {
-            m_exception = iEx;
-
-            // For some reason, the thread doing the call failed; note the
-            // failure to start, and return
-            //
-            ServerManager.instance().log(iEx);
+            return id + "/" + m_service.getClass().getClassLoader().toString();
         }
-        catch (ExecutionException itEx)
-        {
-            m_exception = itEx;
 
-            // Java Reflection failed; note the failure, and return
-            //
-            ServerManager.instance().log(itEx);
-        }
-        catch (Exception ex)
+        // We use the method described in start() to make sure calls to
+        // getInstanceID() don't wander off into Limbo.
+        //
+        Object result = invoke(() ->
         {
-            m_exception = ex;
-            ServerManager.instance().log(ex);
-        }
-        return null;
+            try
+            {
+                return m_service.getInstanceID() + "/" +
+                    m_service.getClass().getClassLoader().toString();
+            }
+            catch (Exception ex)
+            {
+                m_exception = ex;
+                ServerManager.log(ex);
+            }
+            return null;
+        });
+        return result == FAILED ? null : (String)result;
     }
 
 
     /**
      *
      */
-    public String getInstanceID()
+    public Exception getLastError()
     {
-        // We use the method described in start() to make sure calls to
-        // getInstanceID() don't wander off into Limbo.
-        //
-        try
-        {
-           ExecutorService executor = Executors.newFixedThreadPool(1);
+        return m_exception;
+    }
 
-            FutureTask<Object> futureTask = new FutureTask<Object>(
-                    new Callable<Object>()
-                {
-           
-                public Object call()
-                {
-                    try
-                    {
-                        return m_service.getInstanceID() + "/" +
-                            m_service.getClass().getClassLoader().toString();
-                    }
-                    catch (Exception ex)
-                    {
-                        m_exception = ex;
-                        ServerManager.instance().log(ex);
-                    }
-                    return null;
-                }
-            });
-            executor.execute(futureTask);
 
-             String result = (String)futureTask.get(15*1000,TimeUnit.MILLISECONDS);
-            // we want to wait 15 seconds, no more.
+    /**
+     * Returns the Properties instance to use for configuration
+     */
+    public ConfigProperties getConfigInfo()
+    {
+        return m_service.getConfigInfo();
+    }
+    /**
+     * Set the Properties instance for this Service
+     */
+    public void setConfigInfo(ConfigProperties info)
+    {
+        m_service.setConfigInfo(info);
+    }
+
 
-            return result;
+    /**
+     * Make the call on the shared LifecycleExecutor and wait 15 seconds for
+     * it, no more. Returns whatever the call returned, or FAILED if it threw,
+     * was rejected or ran out of time (in which case it has been cancelled).
+     */
+    private Object invoke(Callable<Object> call)
+    {
+        try
+        {
+            return LifecycleExecutor.instance().call(call,
+                LifecycleExecutor.DEFAULT_TIMEOUT_MS);
         }
         catch (TimeoutException tEx)
         {
             m_exception = tEx;
 
-            // The Service ran out of time starting up; kill it, note the
-            // failure to start, and return
+            // The Service ran out of time; note the failure, and return
             //
-            ServerManager.instance().log(tEx);
+            ServerManager.log(tEx);
         }
         catch (InterruptedException iEx)
         {
             m_exception = iEx;
 
             // For some reason, the thread doing the call failed; note the
-            // failure to start, and return
+            // failure, and return
             //
-            ServerManager.instance().log(iEx);
+            ServerManager.log(Thread.currentThread().toString() + " " + iEx);
         }
         catch (ExecutionException itEx)
         {
             m_exception = itEx;
 
-            // Java Reflection failed; note the failure, and return
+            // The call itself threw; note the failure, and return
             //
-            ServerManager.instance().log(itEx);
+            ServerManager.log(itEx);
         }
         catch (Exception ex)
         {
             m_exception = ex;
-            ServerManager.instance().log(ex);
+            ServerManager.error(ex);
         }
-        return null;
-    }
-
-
-    /**
-     *
-     */
-    public Exception getLastError()
-    {
-        return m_exception;
-    }
-
-
-    /**
-     * Returns the Properties instance to use for configuration
-     */
-    public ConfigProperties getConfigInfo()
-    {
-        return m_service.getConfigInfo();
-    }
-    /**
-     * Set the Properties instance for this Service
-     */
-    public void setConfigInfo(ConfigProperties info)
-    {
-        m_service.setConfigInfo(info);
+        return FAILED;
     }
-}       
\ No newline at end of file
+}
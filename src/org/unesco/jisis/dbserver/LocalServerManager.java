@@ -1,17 +1,22 @@
 package org.unesco.jisis.dbserver;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
-import java.util.Date;
-import java.util.Dictionary;
-import java.util.HashMap;
-import java.util.Hashtable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import org.unesco.jisis.corelib.server.ConfigProperties;
 import org.unesco.jisis.corelib.server.IService;
+import org.unesco.jisis.dbserver.classloader.ArchiveClassLoader;
+import org.unesco.jisis.dbserver.classloader.CachingClassLoaderStrategy;
+import org.unesco.jisis.dbserver.classloader.CompilerClassLoader;
+import org.unesco.jisis.dbserver.classloader.CompositeClassLoader;
 import org.unesco.jisis.dbserver.classloader.HashtableClassLoader;
 import org.unesco.jisis.dbserver.classloader.IClassLoaderStrategy;
+import org.unesco.jisis.dbserver.classloader.IPrefetchingStrategy;
 import org.unesco.jisis.dbserver.classloader.StrategyClassLoader;
 
 
@@ -37,14 +42,21 @@ public class LocalServerManager implements IServerManager {
 
     // Internal data
     //
-    private Dictionary m_servers = new Hashtable();
-    private HashMap m_serviceLoaders = new HashMap();
+    private final ServiceRegistry m_servers = new ServiceRegistry();
+    private final DeploymentRegistry m_deployments = new DeploymentRegistry();
+    private StrategyClassLoader m_defaultLoader = null;
 
     private OutputStream m_logStream = null;
     private OutputStream m_errStream = System.err;
     private PrintWriter m_log = null;
     private PrintWriter m_err = new PrintWriter(m_errStream);
 
+    // log() and error() only queue their lines; this writes them
+    private final AsyncLog m_asyncLog = AsyncLog.fromSystemProperties();
+
+    private final LifecycleMetrics m_metrics = new LifecycleMetrics();
+    private final ClassLoadingMetrics m_classMetrics = new ClassLoadingMetrics();
+
     /**
      *
      */
@@ -61,6 +73,15 @@ public class LocalServerManager implements IServerManager {
             ex.printStackTrace();
             System.exit(-1);
         }
+
+        // Lines always go to the log & error streams, as setLogStream() and
+        // setErrStream() arrange; SLF4J, when on, gets a copy
+        m_asyncLog.setLogWriter(m_log);
+        m_asyncLog.setErrWriter(m_err);
+
+        // Don't lose queued lines when the VM goes down
+        Runtime.getRuntime().addShutdownHook(
+            new Thread(m_asyncLog::close, "ServerManager-log-close"));
     }
 
     //===========================================
@@ -69,7 +90,8 @@ public class LocalServerManager implements IServerManager {
     /**
      * Shut the entire system down, usually in preparation for terminating this VM (or perhaps for doing a
      * complete shutdown/restart cycling). Effectively, this is the same as calling <code>getServices</code>
-     * to get all Servers' instanceIDs, then calling <code>removeService</code> on each one.
+     * to get all Servers' instanceIDs, then calling <code>removeService</code> on each one; Services are
+     * stopped concurrently, dependents before the Services they depend on.
      */
     public void shutdown() {
         log("Entering ServerManager.shutdown()");
@@ -78,19 +100,38 @@ public class LocalServerManager implements IServerManager {
         // each one.
         //
         String[] svcs = getServices();
-        for (int i = 0; i < svcs.length; i++) {
-            log("Shutting down " + svcs[i]);
-            removeService(svcs[i]);
+        LifecycleReport report = new LifecycleEngine(m_servers).run("shutdown",
+            svcs, LifecycleEngine.Order.DEPENDENTS_FIRST, (instanceID) -> {
+                log("Shutting down " + instanceID);
+                return stopAndRemove(instanceID);
+            });
+
+        // Whatever didn't stop by the deadline is dropped all the same
+        //
+        for (String instanceID : svcs) {
+            m_servers.remove(instanceID);
+            m_deployments.instanceRemoved(instanceID);
         }
 
+        log(report.toString());
+        log("Lifecycle calls: " + LifecycleExecutor.instance());
         log("Exiting ServerManager.shutdown()");
+        m_asyncLog.flush(5 * 1000);
     }
 
 
     /**
-     * Place a ClassLoaderStrategy into the service-loaders map,
-     * so subsequent addService() calls can use the loader to
-     * retrieve the necessary code.
+     * Deploy a ClassLoaderStrategy under the Service name, so
+     * subsequent addService() calls can use the loader to
+     * retrieve the necessary code. All instances of a deployment share
+     * one StrategyClassLoader; deploying the same name again creates a
+     * new version, which later addService() calls use while running
+     * instances stay on the old one. The strategy is wrapped in a
+     * CachingClassLoaderStrategy if jisis.classcache.enabled is true
+     * (see cached()). A strategy that can prefetch its classes does so here,
+     * before any instance asks for them. Lookups are measured (and
+     * those of a CompositeClassLoader's delegates, one by one) unless
+     * jisis.classmetrics.enabled is false.
      * @param serviceName
      * @param strategy
      */
@@ -99,10 +140,93 @@ public class LocalServerManager implements IServerManager {
         IClassLoaderStrategy strategy) {
         log("Entering ServerManager.deployService");
 
-        m_serviceLoaders.put(serviceName, strategy);
+        if (strategy instanceof IPrefetchingStrategy) {
+            long begin = System.nanoTime();
+            try {
+                int n = ((IPrefetchingStrategy) strategy).prefetch();
+                log("Prefetched " + n + " classes for " + serviceName + " in "
+                    + (System.nanoTime() - begin) / 1000000 + " ms");
+            } catch (Exception ex) {
+                // Classes will be looked up one at a time instead
+                error(ex);
+            }
+        }
+        IClassLoaderStrategy deployed = cached(serviceName, strategy);
+        if (Boolean.parseBoolean(
+            System.getProperty("jisis.classmetrics.enabled", "true"))) {
+            deployed = m_classMetrics.instrument(serviceName, deployed);
+        }
+        DeploymentRegistry.Deployment deployment = m_deployments.deploy(
+            serviceName, deployed);
+        log("Deployed " + deployment);
 
         log("Exiting ServerManager.deployService");
     }
+
+    /**
+     * Undeploy a Service name, stopping and removing every instance
+     * started from any version of it, so its loaders and classes can be
+     * collected.
+     * @param serviceName
+     * @return false if the name wasn't deployed
+     */
+    @Override
+    public boolean undeployService(String serviceName) {
+        log("Entering ServerManager.undeployService");
+        try {
+            DeploymentRegistry.Deployment deployment
+                = m_deployments.undeploy(serviceName);
+            for (String instanceID : m_deployments.getInstanceIDs(serviceName)) {
+                stopAndRemove(instanceID);
+            }
+            if (deployment == null) {
+                return false;
+            }
+            log("Undeployed " + deployment);
+            return true;
+        } finally {
+            log("Exiting ServerManager.undeployService");
+        }
+    }
+
+    /**
+     * If jisis.classcache.enabled is true, wrap a deployed strategy in a
+     * class-bytes cache, sized by jisis.classcache.maxbytes and
+     * jisis.classcache.misses, and persisted under
+     * jisis.classcache.dir/serviceName if that is set. Every version of
+     * a deployment, in this run or an earlier one, shares the directory:
+     * a persisted class is only served while the strategy still reports
+     * the version it was written with, so a redeploy or a restart only
+     * fetches the classes that changed.
+     *
+     * <P>The cache holds classes and misses until the next deploy, so
+     * strategies that follow changes to their sources themselves
+     * (CompilerClassLoader, CompositeClassLoader, whose delegates may)
+     * aren't wrapped, nor are those that already hold their classes in
+     * memory (HashtableClassLoader, ArchiveClassLoader).
+     */
+    private IClassLoaderStrategy cached(String serviceName,
+        IClassLoaderStrategy strategy) {
+        if (strategy == null
+            || strategy instanceof CachingClassLoaderStrategy
+            || strategy instanceof HashtableClassLoader
+            || strategy instanceof ArchiveClassLoader
+            || strategy instanceof CompilerClassLoader
+            || strategy instanceof CompositeClassLoader
+            || !Boolean.getBoolean("jisis.classcache.enabled")) {
+            return strategy;
+        }
+
+        String dir = System.getProperty("jisis.classcache.dir");
+        CachingClassLoaderStrategy cache = new CachingClassLoaderStrategy(
+            strategy,
+            Long.getLong("jisis.classcache.maxbytes",
+                CachingClassLoaderStrategy.DEFAULT_MAX_BYTES),
+            Integer.getInteger("jisis.classcache.misses",
+                CachingClassLoaderStrategy.DEFAULT_MAX_MISSES),
+            dir == null ? null : new File(dir, serviceName));
+        return cache;
+    }
     
     
     /**
@@ -118,11 +242,14 @@ public class LocalServerManager implements IServerManager {
             + ") created");
 
         // Wrap our Service up in a LocalServer wrapper object
-        IServer svr = new LocalServer(svc);
+        IServer svr = wrap(svc);
         log("IServer created");
 
-        // Drop it in our Dictionary of Servers....
-        m_servers.put(svr.getInstanceID(), svr);
+        // Drop it in our registry of Servers....
+        String instanceID = svr.getInstanceID();
+        m_servers.put(instanceID, svr, svc.getClass().getName(),
+            getDependencies(svc));
+        m_servers.updateState(instanceID);
 
         return svr;
     }
@@ -133,18 +260,16 @@ public class LocalServerManager implements IServerManager {
         try {
             log("Entering ServerManager.loadService(String)");
 
-            // Get the ClassLoaderStrategy corresponding to the
-            // service name
-            IClassLoaderStrategy strat
-                = (IClassLoaderStrategy) m_serviceLoaders.get(svcName);
-
-            StrategyClassLoader scl
-                = new StrategyClassLoader(strat);
+            // Get the deployment corresponding to the service name;
+            // its loader is shared by all its instances
+            DeploymentRegistry.Deployment deployment
+                = m_deployments.get(svcName);
             IService svc
-                = (IService) scl.loadClass(svcName).newInstance();
+                = (IService) loaderFor(deployment).loadClass(svcName)
+                    .newInstance();
 
             log("ServerManager.loadService(String) successful");
-            return loadService(svc);
+            return added(deployment, loadService(svc));
         } catch (Exception ex) {
             error(ex);
             return null;
@@ -165,33 +290,38 @@ public class LocalServerManager implements IServerManager {
                 + ") created");
 
             // Wrap our Service up in a LocalServer wrapper object
-            IServer svr = new LocalServer(svc);
+            IServer svr = wrap(svc);
 
-            // Drop it in our Dictionary of Servers....
-            m_servers.put(svr.getInstanceID(), svr);
+            // Drop it in our registry of Servers....
+            String instanceID = svr.getInstanceID();
+            m_servers.put(instanceID, svr, svc.getClass().getName(),
+                getDependencies(svc));
 
             // Configure it
             svr.setConfigInfo(args);
 
             // Start it; if the start fails, remove it
             if (svr.start()) {
+                m_servers.updateState(instanceID);
                 log("Service started");
                 return svr;
             } else {
                 // Log the exception (if any) that caused the Service to fail
-                PrintWriter pw = new PrintWriter(getLogStream());
-                svr.getLastError().printStackTrace(pw);
-                pw.flush();
+                Exception lastError = svr.getLastError();
+                if (m_log != null) {
+                    m_asyncLog.append(false, "Service failed to start: " + lastError,
+                        lastError);
+                }
 
-                removeService(svr.getInstanceID());
+                removeService(instanceID);
                 return null;
             }
         } catch (Throwable ex) {
             // Something "wrong" happened; in a production system, you probably
             // want to do something a bit more proactive here.
-            PrintWriter pw = new PrintWriter(getLogStream());
-            ex.printStackTrace(pw);
-            pw.flush();
+            if (m_log != null) {
+                m_asyncLog.append(false, "Exception raised: " + ex, ex);
+            }
             return null;
         } finally {
             log("Exiting ServerManager.addService()");
@@ -206,21 +336,15 @@ public class LocalServerManager implements IServerManager {
         try {
             log("Entering ServerManager.loadService(String)");
 
-            // Get the ClassLoaderStrategy corresponding to the
-            // service name
-            IClassLoaderStrategy strat
-                = (IClassLoaderStrategy) m_serviceLoaders.get(svcName);
-            //if (strat == null)
-            //{
-            //    return null;
-            //}
-
-            StrategyClassLoader scl
-                = new StrategyClassLoader(strat);
+            // Get the deployment corresponding to the service name;
+            // its loader is shared by all its instances
+            DeploymentRegistry.Deployment deployment
+                = m_deployments.get(svcName);
             IService svc
-                = (IService) scl.loadClass(svcName).newInstance();
+                = (IService) loaderFor(deployment).loadClass(svcName)
+                    .newInstance();
 
-            return addService(svc, args);
+            return added(deployment, addService(svc, args));
         } catch (Exception ex) {
             error(ex);
             return null;
@@ -238,26 +362,63 @@ public class LocalServerManager implements IServerManager {
     public void removeService(String instanceID) {
         try {
             log("Entering ServerManager.removeService()");
+            stopAndRemove(instanceID);
+        } finally {
+            log("Exiting ServerManager.removeService()");
+        }
+    }
 
-            // Find the service given by 'instanceID'
-            //
-            IServer svr = getService(instanceID);
-            if (svr != null) {
-                // If it's still running, order it to stop
-                //
-                String svrState = svr.getState();
-                if (!svrState.equals(IService.STOPPED) && !svrState.equals(IService.PAUSED)) {
-                    svr.stop();
-                }
+    /**
+     * Stop the Server if it's still running, then remove it. Returns false
+     * only if the stop failed.
+     */
+    private boolean stopAndRemove(String instanceID) {
+        boolean stopped = true;
 
-                // Remove it from the Dictionary
-                //
-                log("Removing " + instanceID + " from system.");
-                m_servers.remove(instanceID);
+        // Find the service given by 'instanceID'
+        //
+        IServer svr = getService(instanceID);
+        if (svr != null) {
+            // If it's still running, order it to stop
+            //
+            String svrState = svr.getState();
+            if (!IService.STOPPED.equals(svrState) && !IService.PAUSED.equals(svrState)) {
+                stopped = svr.stop();
             }
-        } finally {
-            log("Exiting ServerManager.removeService()");
+
+            // Remove it from the registry
+            //
+            log("Removing " + instanceID + " from system.");
+            m_servers.remove(instanceID);
         }
+        m_deployments.instanceRemoved(instanceID);
+        return stopped;
+    }
+
+    /**
+     * The loader to load a deployed Service through. A name that was never
+     * deployed is looked up through the parent ClassLoader, as before.
+     */
+    private synchronized ClassLoader loaderFor(
+        DeploymentRegistry.Deployment deployment) {
+        if (deployment != null) {
+            return deployment.getLoader();
+        }
+        if (m_defaultLoader == null) {
+            m_defaultLoader = new StrategyClassLoader(null);
+        }
+        return m_defaultLoader;
+    }
+
+    /**
+     * Record a Server started from a deployment; passes the Server through.
+     */
+    private IServer added(DeploymentRegistry.Deployment deployment,
+        IServer svr) {
+        if (deployment != null && svr != null) {
+            m_deployments.instanceAdded(deployment, svr.getInstanceID());
+        }
+        return svr;
     }
 
     /**
@@ -265,6 +426,7 @@ public class LocalServerManager implements IServerManager {
      */
     public void killService(String instanceID) {
         m_servers.remove(instanceID);
+        m_deployments.instanceRemoved(instanceID);
         System.gc();
     }
 
@@ -274,15 +436,13 @@ public class LocalServerManager implements IServerManager {
     public String[] getServices() {
         log("Entering ServerManager.getServices()");
 
-        String[] svrArray = new String[m_servers.size()];
+        String[] svrArray = m_servers.getInstanceIDs();
 
-        int ctr = 0;
-        String list = new String("{\n");
-        for (java.util.Enumeration e = m_servers.keys(); e.hasMoreElements();) {
-            svrArray[ctr] = (String) e.nextElement();
-            list += "   " + svrArray[ctr++] + "\n";
+        StringBuilder list = new StringBuilder("{\n");
+        for (String svr : svrArray) {
+            list.append("   ").append(svr).append('\n');
         }
-        list += "}";
+        list.append('}');
 
         log("Exiting ServerManager.getServices(); list = " + list);
         return svrArray;
@@ -293,24 +453,31 @@ public class LocalServerManager implements IServerManager {
      * user obtained the ID?), then return a null instance.
      */
     public IServer getService(String instanceID) {
-        return (IServer) m_servers.get(instanceID);
+        return m_servers.get(instanceID);
     }
 
     /**
-     *
+     * Obtain the latency, failure and timeout figures recorded for every
+     * lifecycle call made through this ServerManager's Servers.
+     */
+    public LifecycleMetrics getLifecycleMetrics() {
+        return m_metrics;
+    }
+
+    /**
+     * Obtain the hit, miss, error, byte and latency figures recorded for
+     * the strategies deployed through this ServerManager.
+     */
+    public ClassLoadingMetrics getClassLoadingMetrics() {
+        return m_classMetrics;
+    }
+
+    /**
+     * Queue the line for the log writer; the caller doesn't wait for I/O.
      */
     public void log(String msg) {
         if (m_log != null) {
-            StringBuffer m = new StringBuffer();
-            m.append(new Date());
-            m.append(" [");
-            m.append(Thread.currentThread().toString());
-            m.append("]: ");
-            m.append(msg);
-
-            m_log.println(m);
-            System.out.println(m);
-            m_log.flush();
+            m_asyncLog.append(false, msg, null);
         }
     }
 
@@ -319,28 +486,16 @@ public class LocalServerManager implements IServerManager {
      */
     public void log(Exception ex) {
         if (m_log != null) {
-            log("Exception raised: " + ex.toString());
-            PrintWriter pw = new PrintWriter(getLogStream());
-            pw.println(new Date() + " Exception raised: " + ex.toString());
-            ex.printStackTrace(pw);
-            pw.flush();
+            m_asyncLog.append(false, "Exception raised: " + ex.toString(), ex);
         }
     }
 
     /**
-     *
+     * Queue the line for the error writer; the caller doesn't wait for I/O.
      */
     public void error(String msg) {
         if (m_err != null) {
-            StringBuffer m = new StringBuffer();
-            m.append(new Date());
-            m.append(" [");
-            m.append(Thread.currentThread().toString());
-            m.append("]: *** ERROR *** ");
-            m.append(msg);
-
-            m_err.println(m);
-            m_err.flush();
+            m_asyncLog.append(true, msg, null);
         }
     }
 
@@ -349,11 +504,7 @@ public class LocalServerManager implements IServerManager {
      */
     public void error(Exception ex) {
         if (m_err != null) {
-            error(": Exception raised: " + ex.toString());
-            PrintWriter pw = new PrintWriter(getErrStream());
-            pw.println(new Date() + " Exception raised: " + ex.toString());
-            ex.printStackTrace(pw);
-            pw.flush();
+            m_asyncLog.append(true, ": Exception raised: " + ex.toString(), ex);
         }
     }
 
@@ -362,6 +513,90 @@ public class LocalServerManager implements IServerManager {
     // LocalServerManager-specific methods
     //
 
+    /**
+     * Add several Services at once and start them concurrently, each one
+     * after the Services it depends on (see IDependentService). Services
+     * that fail to start, or whose dependencies failed, are removed again.
+     *
+     * @param svcs the Services to add, with the configuration for each
+     * @return the per-Service report of the startup
+     */
+    public LifecycleReport addServices(Map<IService, ConfigProperties> svcs)
+    {
+        log("Entering ServerManager.addServices()");
+
+        try {
+            List<String> ids = new ArrayList<>(svcs.size());
+            for (Map.Entry<IService, ConfigProperties> e : svcs.entrySet()) {
+                IService svc = e.getKey();
+
+                // Wrap, register and configure it, as addService() does
+                IServer svr = wrap(svc);
+                String instanceID = svr.getInstanceID();
+                m_servers.put(instanceID, svr, svc.getClass().getName(),
+                    getDependencies(svc));
+                svr.setConfigInfo(e.getValue());
+                ids.add(instanceID);
+            }
+
+            LifecycleReport report = new LifecycleEngine(m_servers).run(
+                "startup", ids.toArray(new String[ids.size()]),
+                LifecycleEngine.Order.DEPENDENCIES_FIRST, (instanceID) -> {
+                    if (m_servers.get(instanceID).start()) {
+                        m_servers.updateState(instanceID);
+                        return true;
+                    }
+                    return false;
+                });
+
+            for (String instanceID : ids) {
+                if (report.getOutcome(instanceID) != LifecycleReport.Outcome.OK) {
+                    removeService(instanceID);
+                }
+            }
+
+            log(report.toString());
+            return report;
+        } finally {
+            log("Exiting ServerManager.addServices()");
+        }
+    }
+
+    /**
+     * Wrap a Service in a LocalServer, measured by an InstrumentedServer
+     */
+    private IServer wrap(IService svc)
+    {
+        return new InstrumentedServer(new LocalServer(svc),
+            m_metrics.forService(svc.getClass().getName()));
+    }
+
+    private static String[] getDependencies(IService svc)
+    {
+        if (svc instanceof IDependentService) {
+            return ((IDependentService) svc).getDependencies();
+        }
+        return null;
+    }
+
+    /**
+     * Return the registry holding this ServerManager's Servers; use it to
+     * look Servers up by Service class or by state.
+     */
+    public ServiceRegistry getRegistry()
+    {
+        return m_servers;
+    }
+
+    /**
+     * Return the registry of deployed Services, their versions and the
+     * instances started from each.
+     */
+    public DeploymentRegistry getDeployments()
+    {
+        return m_deployments;
+    }
+
     /**
      * Return the OutputStream used for writing to the log.
      */
@@ -379,6 +614,7 @@ public class LocalServerManager implements IServerManager {
             m_log = new PrintWriter(m_logStream);
         else
             m_log = null;
+        m_asyncLog.setLogWriter(m_log);
     }
     /**
      * Return the OutputStream used for writing errors.
@@ -398,6 +634,15 @@ public class LocalServerManager implements IServerManager {
             m_err = new PrintWriter(m_errStream);
         else
             m_err = null;
+        m_asyncLog.setErrWriter(m_err);
+    }
+    /**
+     * Return the asynchronous writer behind log() and error(), for its
+     * queue depth and drop count.
+     */
+    public AsyncLog getAsyncLog()
+    {
+        return m_asyncLog;
     }       
 
 
@@ -484,6 +729,9 @@ public class LocalServerManager implements IServerManager {
 
                     // Deploy it
                     ServerManager.deployService("TestService", hcl);
+                    ServerManager.log("TestService: " + hcl.getBytesHeld()
+                        + " class bytes held"
+                        + (hcl.getStore() != null ? " in " + hcl.getStore() : ""));
 
                     // Now add the Service
                     IServer svr = 
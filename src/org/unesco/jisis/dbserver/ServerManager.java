@@ -268,6 +268,16 @@ public class ServerManager {
       s_instance.deployService(serviceName, strategy);
    }
 
+   /**
+    * Call the method of the same name on the IServerManager
+    * Singleton instance.
+     * @param serviceName
+     * @return 
+    */
+   public static boolean undeployService(String serviceName) {
+      return s_instance.undeployService(serviceName);
+   }
+
    /**
     * Call the method of the same name on the IServerManager
     * Singleton instance.
@@ -366,6 +376,24 @@ public class ServerManager {
       return s_instance.getService(instanceID);
    }
 
+   /**
+    * Call the method of the same name on the IServerManager
+    * Singleton instance.
+     * @return 
+    */
+   public static LifecycleMetrics getLifecycleMetrics() {
+      return s_instance.getLifecycleMetrics();
+   }
+
+   /**
+    * Call the method of the same name on the IServerManager
+    * Singleton instance.
+     * @return 
+    */
+   public static ClassLoadingMetrics getClassLoadingMetrics() {
+      return s_instance.getClassLoadingMetrics();
+   }
+
    /**
     * Call the method of the same name on the IServerManager
     * Singleton instance.
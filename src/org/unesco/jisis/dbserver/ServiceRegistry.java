@@ -0,0 +1,259 @@
+package org.unesco.jisis.dbserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ServiceRegistry holds the Servers known to a ServerManager, keyed by
+ * instance ID, with secondary indexes by Service class name and by state.
+ *
+ * <P>All maps are concurrent, so lookups and snapshots never wait on
+ * <code>put</code> or <code>remove</code>; changes to a single instance ID
+ * (and to the index entries it owns) are applied atomically. Snapshots are
+ * weakly consistent: they reflect the registry at some point during the
+ * call.
+ *
+ * <P>The state index holds the last state the registry was told about (see
+ * <code>updateState</code>); Services that change state on their own are
+ * picked up by <code>refreshStates</code>.
+ */
+public final class ServiceRegistry {
+
+    private static final String[] EMPTY = new String[0];
+
+    /**
+     * One registered Server
+     */
+    private static final class Entry {
+
+        final IServer server;
+        final String serviceClass;
+        final String[] dependencies;
+        volatile String state;
+
+        Entry(IServer server, String serviceClass, String[] dependencies) {
+            this.server = server;
+            this.serviceClass = serviceClass;
+            this.dependencies = dependencies == null ? EMPTY : dependencies;
+        }
+    }
+
+    // Internal data
+    //
+    private final ConcurrentHashMap<String, Entry> byId_
+        = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<String>> byClass_
+        = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<String>> byState_
+        = new ConcurrentHashMap<>();
+
+    /**
+     * Register a Server, replacing any Server already held under
+     * <code>instanceID</code>.
+     *
+     * @param instanceID
+     * @param server
+     * @param serviceClass class name of the wrapped Service, may be null
+     */
+    public void put(String instanceID, IServer server, String serviceClass) {
+        put(instanceID, server, serviceClass, null);
+    }
+
+    /**
+     * Register a Server along with the class names of the Services it
+     * depends on (see {@link IDependentService}).
+     *
+     * @param instanceID
+     * @param server
+     * @param serviceClass class name of the wrapped Service, may be null
+     * @param dependencies Service class names, may be null
+     */
+    public void put(String instanceID, IServer server, String serviceClass,
+        String[] dependencies) {
+        Entry entry = new Entry(server, serviceClass, dependencies);
+        byId_.compute(instanceID, (id, old) -> {
+            if (old != null) {
+                unindex(id, old);
+            }
+            index(byClass_, serviceClass, id);
+            return entry;
+        });
+    }
+
+    /**
+     *
+     * @param instanceID
+     * @return the Server removed, or null if none was registered
+     */
+    public IServer remove(String instanceID) {
+        Entry[] removed = new Entry[1];
+        byId_.computeIfPresent(instanceID, (id, old) -> {
+            unindex(id, old);
+            removed[0] = old;
+            return null;
+        });
+        return removed[0] == null ? null : removed[0].server;
+    }
+
+    /**
+     *
+     * @param instanceID
+     * @return the Server, or null if none is registered
+     */
+    public IServer get(String instanceID) {
+        Entry entry = byId_.get(instanceID);
+        return entry == null ? null : entry.server;
+    }
+
+    /**
+     *
+     * @param instanceID
+     * @return the Service class name given when the Server was registered
+     */
+    public String getServiceClass(String instanceID) {
+        Entry entry = byId_.get(instanceID);
+        return entry == null ? null : entry.serviceClass;
+    }
+
+    /**
+     *
+     * @param instanceID
+     * @return the Service class names the Server depends on
+     */
+    public String[] getDependencies(String instanceID) {
+        Entry entry = byId_.get(instanceID);
+        return entry == null ? EMPTY : entry.dependencies.clone();
+    }
+
+    /**
+     *
+     * @param instanceID
+     * @return the last state recorded for the Server
+     */
+    public String getState(String instanceID) {
+        Entry entry = byId_.get(instanceID);
+        return entry == null ? null : entry.state;
+    }
+
+    public int size() {
+        return byId_.size();
+    }
+
+    /**
+     * Record the state of a Server and move it in the state index.
+     *
+     * @param instanceID
+     * @param state
+     */
+    public void updateState(String instanceID, String state) {
+        byId_.computeIfPresent(instanceID, (id, entry) -> {
+            if (entry.state == null ? state != null : !entry.state.equals(state)) {
+                unindex(byState_, entry.state, id);
+                index(byState_, state, id);
+                entry.state = state;
+            }
+            return entry;
+        });
+    }
+
+    /**
+     * Ask the Server for its state and record it.
+     *
+     * @param instanceID
+     */
+    public void updateState(String instanceID) {
+        IServer server = get(instanceID);
+        if (server != null) {
+            updateState(instanceID, server.getState());
+        }
+    }
+
+    /**
+     * Ask every registered Server for its state and record it.
+     */
+    public void refreshStates() {
+        for (String id : getInstanceIDs()) {
+            updateState(id);
+        }
+    }
+
+    /**
+     *
+     * @return snapshot of every registered instance ID
+     */
+    public String[] getInstanceIDs() {
+        return byId_.keySet().toArray(EMPTY);
+    }
+
+    /**
+     *
+     * @param serviceClass
+     * @return snapshot of the instance IDs of that Service class
+     */
+    public String[] getInstanceIDsByClass(String serviceClass) {
+        return snapshot(byClass_, serviceClass);
+    }
+
+    /**
+     *
+     * @param state
+     * @return snapshot of the instance IDs last recorded in that state
+     */
+    public String[] getInstanceIDsByState(String state) {
+        return snapshot(byState_, state);
+    }
+
+    /**
+     *
+     * @return snapshot of every registered Server
+     */
+    public List<IServer> getServers() {
+        List<IServer> servers = new ArrayList<>(byId_.size());
+        for (Entry entry : byId_.values()) {
+            servers.add(entry.server);
+        }
+        return Collections.unmodifiableList(servers);
+    }
+
+    private void unindex(String id, Entry entry) {
+        unindex(byClass_, entry.serviceClass, id);
+        unindex(byState_, entry.state, id);
+    }
+
+    private static void index(ConcurrentHashMap<String, Set<String>> idx,
+        String key, String id) {
+        if (key == null) {
+            return;
+        }
+        idx.compute(key, (k, ids) -> {
+            if (ids == null) {
+                ids = ConcurrentHashMap.newKeySet();
+            }
+            ids.add(id);
+            return ids;
+        });
+    }
+
+    private static void unindex(ConcurrentHashMap<String, Set<String>> idx,
+        String key, String id) {
+        if (key == null) {
+            return;
+        }
+        idx.computeIfPresent(key, (k, ids) -> {
+            ids.remove(id);
+            return ids.isEmpty() ? null : ids;
+        });
+    }
+
+    private static String[] snapshot(
+        ConcurrentHashMap<String, Set<String>> idx, String key) {
+        if (key == null) {
+            return EMPTY;
+        }
+        Set<String> ids = idx.get(key);
+        return ids == null ? EMPTY : ids.toArray(EMPTY);
+    }
+}
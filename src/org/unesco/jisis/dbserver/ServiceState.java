@@ -0,0 +1,74 @@
+package org.unesco.jisis.dbserver;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * ServiceState holds the published state (and, once known, the instance ID)
+ * of a Service. Writes are visible to every thread at once, and reads never
+ * block, so a Server can answer <code>getState</code> without handing the
+ * call to another thread.
+ */
+public final class ServiceState {
+
+    // Internal data
+    //
+    private final AtomicReference<String> state_;
+    private volatile String instanceID_ = null;
+
+    /**
+     *
+     * @param initialState the state to publish until the first set()
+     */
+    public ServiceState(String initialState) {
+        state_ = new AtomicReference<>(initialState);
+    }
+
+    /**
+     *
+     * @return the current state
+     */
+    public String get() {
+        return state_.get();
+    }
+
+    /**
+     *
+     * @param state the new state
+     */
+    public void set(String state) {
+        state_.set(state);
+    }
+
+    /**
+     * Move to <code>update</code> only if the current state is
+     * <code>expect</code>.
+     *
+     * @param expect
+     * @param update
+     * @return true if the state was changed
+     */
+    public boolean compareAndSet(String expect, String update) {
+        return state_.compareAndSet(expect, update);
+    }
+
+    /**
+     *
+     * @return the published instance ID, or null if none was published
+     */
+    public String getInstanceID() {
+        return instanceID_;
+    }
+
+    /**
+     *
+     * @param instanceID
+     */
+    public void setInstanceID(String instanceID) {
+        instanceID_ = instanceID;
+    }
+
+    @Override
+    public String toString() {
+        return state_.get();
+    }
+}
@@ -0,0 +1,72 @@
+package org.unesco.jisis.dbserver;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * ServiceThreads supplies the ThreadFactory a {@link ThreadedServer} uses
+ * for its worker thread.
+ *
+ * <P>Setting the <code>jisis.service.threads</code> system property to
+ * <code>virtual</code> runs ThreadedServer workers on virtual threads when
+ * the running JVM has them (Java 21 and later). The server is still built for
+ * Java 8, so the virtual thread factory is looked up reflectively; on older
+ * JVMs the property is ignored and each worker gets its own platform thread
+ * as before.
+ */
+public final class ServiceThreads {
+
+    /**
+     * System property selecting the default execution mode
+     */
+    public static final String MODE_PROPERTY = "jisis.service.threads";
+
+    private static final ThreadFactory VIRTUAL = lookupVirtual();
+
+    private ServiceThreads() {
+    }
+
+    /**
+     *
+     * @return true if this JVM can create virtual threads
+     */
+    public static boolean isVirtualSupported() {
+        return VIRTUAL != null;
+    }
+
+    /**
+     *
+     * @return a factory for virtual threads, or null if this JVM has none
+     */
+    public static ThreadFactory virtual() {
+        return VIRTUAL;
+    }
+
+    /**
+     *
+     * @return the factory selected by <code>jisis.service.threads</code>, or
+     *         null for the default one-platform-thread-per-Service behaviour
+     */
+    public static ThreadFactory fromSystemProperty() {
+        if ("virtual".equalsIgnoreCase(System.getProperty(MODE_PROPERTY))) {
+            return VIRTUAL;
+        }
+        return null;
+    }
+
+    /**
+     * Thread.ofVirtual().factory(), if this JVM has it
+     */
+    private static ThreadFactory lookupVirtual() {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Object builder = ofVirtual.invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder")
+                .getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            // Pre-21 JVM, or virtual threads still in preview
+            return null;
+        }
+    }
+}
@@ -1,20 +1,44 @@
 package org.unesco.jisis.dbserver;
 
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import org.slf4j.LoggerFactory;
 import org.unesco.jisis.corelib.server.IService;
 
 /**
  * ThreadedServer
+ *
+ * <P>By default each ThreadedServer runs its Runnable on a dedicated
+ * platform Thread in its own ThreadGroup. A ThreadFactory may be set instead
+ * (see {@link ServiceThreads}), for example to run on virtual threads; the
+ * m_paused and m_shouldStop flags and interrupt-based stopping work the same
+ * either way.
+ *
+ * <P>The Runnable should call {@link #checkPaused()} between units of work:
+ * it blocks without spinning while the Server is paused, returns as soon as
+ * it is resumed, and returns false once the Server is asked to stop.
  */
-public abstract class ThreadedServer implements IService {
+public abstract class ThreadedServer implements IService, IStatePublisher {
+
+    // Sequence number in instance IDs; two instances of a class can be
+    // created in the same millisecond
+    //
+    private static final AtomicLong s_instanceSeq = new AtomicLong();
 
     // Internal data
     //
     private Thread m_thread = null;
     private Runnable m_runnable = null;
-    private String m_state = STOPPED;
-    protected boolean m_paused = false;
-    protected boolean m_shouldStop = false;
+    private ThreadFactory m_threadFactory = ServiceThreads.fromSystemProperty();
+    private final ServiceState m_state = new ServiceState(STOPPED);
+    private final boolean m_publishesState
+        = !overrides("getState") && !overrides("getInstanceID");
+    protected volatile boolean m_paused = false;
+    protected volatile boolean m_shouldStop = false;
+    private final ReentrantLock m_pauseLock = new ReentrantLock();
+    private final Condition m_pauseChanged = m_pauseLock.newCondition();
     
      private static final org.slf4j.Logger LOGGER = LoggerFactory.getLogger(ConsoleThread.class);
 
@@ -31,11 +55,29 @@ public abstract class ThreadedServer implements IService {
             setState(STARTING);
         }
 
-        // Start our thread
+        // Start our thread; a thread that has run and exited can't be
+        // started again, so it is replaced (by the current factory)
         //
-        if (m_thread == null) {
-            m_thread = new Thread(new ThreadGroup(this.toString()),
-                m_runnable, getClass().getName());
+        if (m_thread == null
+            || m_thread.getState() == Thread.State.TERMINATED) {
+            // A stop() or pause() before this start() mustn't stop the new
+            // thread on its first checkPaused()
+            m_shouldStop = false;
+            m_paused = false;
+            signalPauseChanged();
+
+            if (m_threadFactory != null) {
+                m_thread = m_threadFactory.newThread(m_runnable);
+                if (m_thread == null) {
+                    throw new IllegalStateException("ThreadFactory "
+                        + m_threadFactory + " returned no thread for "
+                        + getClass().getName());
+                }
+                m_thread.setName(getClass().getName());
+            } else {
+                m_thread = new Thread(new ThreadGroup(this.toString()),
+                    m_runnable, getClass().getName());
+            }
         }
         m_thread.start();
 
@@ -66,6 +108,7 @@ public abstract class ThreadedServer implements IService {
         // First we'll try the easy way
         //            
         m_shouldStop = true;
+        signalPauseChanged();
 
         // Stop our thread; this assumes that the thread is written to be
         // sensitive to interrupts (that is, it checks isInterrupted() in
@@ -168,9 +211,11 @@ public abstract class ThreadedServer implements IService {
             return;
         }
 
-        // Set the 'paused' member to false
+        // Set the 'paused' member to false, and wake the thread if it is
+        // waiting in checkPaused()
         //
         m_paused = false;
+        signalPauseChanged();
 
         // If you prefer a more decisive approach, and don't mind
         // deprecation warnings, then uncomment the following block
@@ -188,7 +233,7 @@ public abstract class ThreadedServer implements IService {
      */
     @Override
     public String getState() {
-        return m_state;
+        return m_state.get();
     }
 
     /**
@@ -196,10 +241,33 @@ public abstract class ThreadedServer implements IService {
      * @param val
      */
     public void setState(String val) {
-        m_state = val;
+        m_state.set(val);
+    }
+
+    /**
+     * The state is only ever a field here, so it is published for Servers
+     * to read directly, unless a subclass overrides getState() or
+     * getInstanceID(): reading the field would then bypass the override.
+     *
+     * @return the holder, or null if the subclass computes its own state
+     */
+    @Override
+    public ServiceState getStateHolder() {
+        return m_publishesState ? m_state : null;
+    }
+
+    private boolean overrides(String method) {
+        try {
+            return getClass().getMethod(method).getDeclaringClass()
+                != ThreadedServer.class;
+        } catch (NoSuchMethodException nsmEx) {
+            return true;
+        }
     }
 
     /**
+     * The ID is built on the first call and published with the state, so
+     * later calls (and Servers) see the same value.
      *
      * @return 
      * @throws java.lang.Exception
@@ -207,8 +275,14 @@ public abstract class ThreadedServer implements IService {
     @Override
     public String getInstanceID()
         throws Exception {
-        return getClass() + ":" + "1.0" + ":"
-            + System.currentTimeMillis();
+        String id = m_state.getInstanceID();
+        if (id == null) {
+            id = getClass() + ":" + "1.0" + ":"
+                + System.currentTimeMillis() + ":"
+                + s_instanceSeq.incrementAndGet();
+            m_state.setInstanceID(id);
+        }
+        return id;
     }
 
     /**
@@ -227,6 +301,44 @@ public abstract class ThreadedServer implements IService {
         return m_shouldStop;
     }
 
+    /**
+     * Called by the Runnable between units of work. Blocks while the
+     * Server is paused and returns as soon as it is resumed or asked to
+     * stop. If the thread is interrupted while waiting, the interrupt
+     * status is kept and false is returned.
+     *
+     * @return true to carry on working, false to stop
+     */
+    public boolean checkPaused() {
+        if (m_paused && !m_shouldStop) {
+            m_pauseLock.lock();
+            try {
+                while (m_paused && !m_shouldStop) {
+                    m_pauseChanged.await();
+                }
+            } catch (InterruptedException iEx) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                m_pauseLock.unlock();
+            }
+        }
+        return !m_shouldStop;
+    }
+
+    /**
+     * Wake a thread waiting in checkPaused() after m_paused or m_shouldStop
+     * changed. Subclasses that set the flags directly should call this.
+     */
+    protected void signalPauseChanged() {
+        m_pauseLock.lock();
+        try {
+            m_pauseChanged.signalAll();
+        } finally {
+            m_pauseLock.unlock();
+        }
+    }
+
     /**
      *
      * @param runnable
@@ -240,6 +352,30 @@ public abstract class ThreadedServer implements IService {
         m_runnable = runnable;
     }
 
+    /**
+     * Set the factory used to create the worker thread on the next
+     * start() that needs a new one: the first, or any after the previous
+     * worker has exited. null restores the dedicated platform thread.
+     *
+     * @param factory
+     */
+    public void setThreadFactory(ThreadFactory factory)
+        throws IllegalThreadStateException {
+        if (m_thread != null && m_thread.isAlive()) {
+            throw new IllegalThreadStateException();
+        }
+
+        m_threadFactory = factory;
+    }
+
+    /**
+     *
+     * @return the factory set with setThreadFactory, or null
+     */
+    public ThreadFactory getThreadFactory() {
+        return m_threadFactory;
+    }
+
     /**
      *
      * @param thread
@@ -0,0 +1,318 @@
+package org.unesco.jisis.dbserver.classloader;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Enumeration;
+
+/**
+ * ArchiveClassLoader reads classes and resources from a single archive file
+ * built by {@link ClassArchiveBuilder}. The archive is memory-mapped once and
+ * looked up through a sorted name index, so finding a class is a binary
+ * search and a copy out of the mapping rather than opening a file per class.
+ *
+ * <P>Archive layout (big-endian):
+ * <PRE>
+ * int   magic "JCAR"
+ * int   format version (1)
+ * int   entry count
+ * entry count times, sorted by the UTF-8 bytes of the name:
+ *   int name offset, int name length, int data offset, int data length
+ * names, then data; offsets are from the start of the file
+ * </PRE>
+ * Entries are named by their path in the packed directory, with '/'
+ * separators: <code>org/unesco/Foo.class</code>, <code>conf/x.properties</code>.
+ */
+public class ArchiveClassLoader extends ClassLoader
+        implements IClassLoaderStrategy {
+
+    static {
+        registerAsParallelCapable();
+    }
+
+    static final int MAGIC = 0x4A434152; // "JCAR"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 12;
+    static final int INDEX_ENTRY_SIZE = 16;
+
+    // Internal members
+    //
+    private final File file_;
+    private final ByteBuffer archive_;
+    private final int count_;
+    private final URLStreamHandler handler_ = new Handler();
+
+    /**
+     *
+     * @param archive file built by ClassArchiveBuilder
+     * @throws IOException if it can't be mapped or isn't an archive
+     */
+    public ArchiveClassLoader(File archive)
+            throws IOException {
+        this(ArchiveClassLoader.class.getClassLoader(), archive);
+    }
+
+    /**
+     *
+     * @param parent
+     * @param archive file built by ClassArchiveBuilder
+     * @throws IOException if it can't be mapped or isn't an archive
+     */
+    public ArchiveClassLoader(ClassLoader parent, File archive)
+            throws IOException {
+        super(parent);
+
+        file_ = archive;
+        MappedByteBuffer mapped;
+        try (RandomAccessFile raf = new RandomAccessFile(archive, "r");
+                FileChannel channel = raf.getChannel()) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(archive + ": archive over 2GB");
+            }
+            // The mapping stays valid after the channel is closed
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+        }
+        archive_ = mapped;
+
+        if (archive_.limit() < HEADER_SIZE
+                || archive_.getInt(0) != MAGIC
+                || archive_.getInt(4) != VERSION) {
+            throw new IOException(archive + ": not a class archive");
+        }
+        count_ = archive_.getInt(8);
+        if (count_ < 0
+                || HEADER_SIZE + (long) count_ * INDEX_ENTRY_SIZE > archive_.limit()) {
+            throw new IOException(archive + ": damaged index");
+        }
+    }
+
+    /**
+     *
+     * @return the archive file
+     */
+    public File getFile() {
+        return file_;
+    }
+
+    /**
+     *
+     * @return number of classes and resources in the archive
+     */
+    public int getEntryCount() {
+        return count_;
+    }
+
+    /**
+     * Return byte array (which will be turned into a Class instance via
+     * ClassLoader.defineClass) for class
+     *
+     * @param className
+     * @return
+     */
+    @Override
+    public byte[] findClassBytes(String className) {
+        return getEntry(className.replace('.', '/') + ".class");
+    }
+
+    /**
+     * Return URL for resource given by resourceName
+     *
+     * @param resourceName
+     * @return
+     */
+    @Override
+    public URL findResourceURL(String resourceName) {
+        if (resourceName.startsWith("/")) {
+            resourceName = resourceName.substring(1);
+        }
+        if (find(resourceName) < 0) {
+            return null;
+        }
+        try {
+            return new URL("jisisarchive", null, -1,
+                    file_.getPath() + "!/" + resourceName, handler_);
+        } catch (MalformedURLException muEx) {
+            return null;
+        }
+    }
+
+    /**
+     * Return Enumeration of resources corresponding to resourceName.
+     *
+     * @param resourceName
+     * @return
+     */
+    @Override
+    public Enumeration findResourcesEnum(String resourceName) {
+        URL url = findResourceURL(resourceName);
+        return url == null ? null
+                : Collections.enumeration(Collections.singletonList(url));
+    }
+
+    /**
+     * Return full path to native library given by the name libraryName.
+     *
+     * @param libraryName
+     * @return
+     */
+    @Override
+    public String findLibraryPath(String libraryName) {
+        return null;
+    }
+
+    @Override
+    protected Class findClass(String name)
+            throws ClassNotFoundException {
+        synchronized (getClassLoadingLock(name)) {
+            Class loaded = findLoadedClass(name);
+            if (loaded != null) {
+                return loaded;
+            }
+
+            byte[] classBytes = findClassBytes(name);
+            if (classBytes == null) {
+                throw new ClassNotFoundException(name);
+            }
+
+            return defineClass(name, classBytes, 0, classBytes.length);
+        }
+    }
+
+    @Override
+    protected URL findResource(String name) {
+        return findResourceURL(name);
+    }
+
+    /**
+     *
+     * @param entryName path of the entry in the archive
+     * @return a copy of the entry's bytes, or null if there is none
+     */
+    public byte[] getEntry(String entryName) {
+        int i = find(entryName);
+        if (i < 0) {
+            return null;
+        }
+        int at = HEADER_SIZE + i * INDEX_ENTRY_SIZE;
+        int offset = archive_.getInt(at + 8);
+        int length = archive_.getInt(at + 12);
+
+        // A duplicate has its own position, so threads don't interfere
+        ByteBuffer data = archive_.duplicate();
+        data.position(offset);
+        byte[] bytes = new byte[length];
+        data.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Binary search of the index
+     *
+     * @return the entry's index, or -1
+     */
+    private int find(String entryName) {
+        byte[] key = entryName.getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = count_ - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareName(mid, key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Compare entry i's name with key, as unsigned bytes
+     */
+    private int compareName(int i, byte[] key) {
+        int at = HEADER_SIZE + i * INDEX_ENTRY_SIZE;
+        int offset = archive_.getInt(at);
+        int length = archive_.getInt(at + 4);
+        int n = Math.min(length, key.length);
+        for (int j = 0; j < n; j++) {
+            int a = archive_.get(offset + j) & 0xFF;
+            int b = key[j] & 0xFF;
+            if (a != b) {
+                return a - b;
+            }
+        }
+        return length - key.length;
+    }
+
+    /**
+     * Serves jisisarchive: URLs from the mapping
+     */
+    private class Handler extends URLStreamHandler {
+
+        @Override
+        protected URLConnection openConnection(URL url)
+                throws IOException {
+            String path = url.getPath();
+            final String entryName = path.substring(path.indexOf("!/") + 2);
+            return new URLConnection(url) {
+
+                private byte[] bytes_ = null;
+
+                @Override
+                public void connect()
+                        throws IOException {
+                    if (bytes_ == null) {
+                        bytes_ = getEntry(entryName);
+                        if (bytes_ == null) {
+                            throw new IOException(url + " not found");
+                        }
+                        connected = true;
+                    }
+                }
+
+                @Override
+                public InputStream getInputStream()
+                        throws IOException {
+                    connect();
+                    return new ByteArrayInputStream(bytes_);
+                }
+
+                @Override
+                public int getContentLength() {
+                    try {
+                        connect();
+                        return bytes_.length;
+                    } catch (IOException ioEx) {
+                        return -1;
+                    }
+                }
+            };
+        }
+    }
+
+    // Test driver
+    //
+    public static void main(String[] args)
+            throws Exception {
+        ArchiveClassLoader acl = new ArchiveClassLoader(new File(args[0]));
+        System.out.println(acl.getEntryCount() + " entries in " + args[0]);
+        for (int i = 1; i < args.length; i++) {
+            Class c = acl.loadClass(args[i]);
+            System.out.println(c + " from " + c.getClassLoader());
+        }
+    }
+}
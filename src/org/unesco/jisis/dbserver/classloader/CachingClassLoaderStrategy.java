@@ -0,0 +1,434 @@
+package org.unesco.jisis.dbserver.classloader;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * CachingClassLoaderStrategy decorates another IClassLoaderStrategy and
+ * remembers the bytecode it returns, so a class is fetched from disk,
+ * socket, database or compiler once rather than on every lookup.
+ *
+ * <P>Three things are cached:
+ * <UL>
+ * <LI>class bytes, in an LRU bounded by total size; each entry carries the
+ * SHA-1 of its bytes ({@link #getHash(String)});</LI>
+ * <LI>names the delegate could not find, in a bounded LRU of their own, so
+ * repeated misses (parent-first probing, optional classes) are cheap;</LI>
+ * <LI>optionally, class bytes on disk under a persistence directory, so a
+ * restarted server does not refetch them either. Only a delegate that is an
+ * {@link IVersioningStrategy} (FileSystemClassLoader, SocketClassLoader,
+ * JDBCClassLoader given a version query) has its classes persisted: each
+ * file holds the version the delegate gave for the class when it was
+ * fetched, and is only served while the delegate still gives that version.
+ * Each file also holds the hash of its bytes, checked on read. A stale or
+ * damaged file is deleted and the class refetched. Caches of the same
+ * classes may share a directory, e.g. successive deployments of a
+ * Service.</LI>
+ * </UL>
+ *
+ * <P>The cache assumes the delegate's classes don't change while it is in
+ * use; call {@link #invalidate(String)} or {@link #clear()} when they do.
+ * Resources and native libraries are passed straight to the delegate.
+ */
+public class CachingClassLoaderStrategy
+        implements IClassLoaderStrategy {
+
+    /**
+     * Default size bound for the in-memory class bytes
+     */
+    public static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+
+    /**
+     * Default number of negative lookups remembered
+     */
+    public static final int DEFAULT_MAX_MISSES = 4096;
+
+    private static final int FILE_MAGIC = 0x4A434332; // "JCC2"
+
+    /**
+     * One cached class
+     */
+    private static final class Entry implements java.io.Serializable {
+
+        final byte[] bytes;
+        final byte[] hash;
+
+        Entry(byte[] bytes, byte[] hash) {
+            this.bytes = bytes;
+            this.hash = hash;
+        }
+    }
+
+    // Internal members
+    //
+    private final IClassLoaderStrategy delegate_;
+    private final long maxBytes_;
+    private final int maxMisses_;
+    private final File dir_;
+
+    private final LinkedHashMap<String, Entry> classes_
+            = new LinkedHashMap<>(64, 0.75f, true);
+    private final LinkedHashMap<String, Boolean> misses_
+            = new LinkedHashMap<>(64, 0.75f, true);
+    private long bytesHeld_ = 0;
+
+    private final AtomicLong hits_ = new AtomicLong();
+    private final AtomicLong diskHits_ = new AtomicLong();
+    private final AtomicLong missHits_ = new AtomicLong();
+    private final AtomicLong fetches_ = new AtomicLong();
+    private final AtomicLong evictions_ = new AtomicLong();
+
+    /**
+     *
+     * @param delegate the strategy whose classes are cached
+     */
+    public CachingClassLoaderStrategy(IClassLoaderStrategy delegate) {
+        this(delegate, DEFAULT_MAX_BYTES, DEFAULT_MAX_MISSES, null);
+    }
+
+    /**
+     *
+     * @param delegate the strategy whose classes are cached
+     * @param maxBytes most class bytes held in memory
+     * @param maxMisses most negative lookups remembered; 0 turns negative
+     *        caching off
+     * @param dir directory to persist class bytes in, or null
+     */
+    public CachingClassLoaderStrategy(IClassLoaderStrategy delegate,
+            long maxBytes, int maxMisses, File dir) {
+        delegate_ = delegate;
+        maxBytes_ = maxBytes;
+        maxMisses_ = maxMisses;
+        dir_ = dir;
+
+        if (dir_ != null) {
+            dir_.mkdirs();
+        }
+    }
+
+    /**
+     *
+     * @return the strategy whose classes are cached
+     */
+    public IClassLoaderStrategy getDelegate() {
+        return delegate_;
+    }
+
+    /**
+     * Return byte array (which will be turned into a Class instance via
+     * ClassLoader.defineClass) for class. The array is shared with the
+     * cache and must not be modified.
+     *
+     * @param className
+     * @return
+     */
+    @Override
+    public byte[] findClassBytes(String className) {
+        synchronized (this) {
+            Entry entry = classes_.get(className);
+            if (entry != null) {
+                hits_.incrementAndGet();
+                return entry.bytes;
+            }
+            if (misses_.get(className) != null) {
+                missHits_.incrementAndGet();
+                return null;
+            }
+        }
+
+        // Taken before the fetch: if the class changes in between, the
+        // file written holds an older version than its bytes and is
+        // refetched next time, never the other way round
+        String version = classVersion(className);
+        byte[] bytes = readFile(className, version);
+        if (bytes != null) {
+            diskHits_.incrementAndGet();
+            put(className, bytes, null);
+            return bytes;
+        }
+
+        fetches_.incrementAndGet();
+        bytes = delegate_.findClassBytes(className);
+        if (bytes == null) {
+            synchronized (this) {
+                if (maxMisses_ > 0) {
+                    misses_.put(className, Boolean.TRUE);
+                    trimMisses();
+                }
+            }
+            return null;
+        }
+
+        put(className, bytes, version);
+        return bytes;
+    }
+
+    /**
+     * The delegate's version of the class, or null if it has none to
+     * give (and the class is then not persisted)
+     */
+    private String classVersion(String className) {
+        if (dir_ == null || !(delegate_ instanceof IVersioningStrategy)) {
+            return null;
+        }
+        return ((IVersioningStrategy) delegate_).getClassVersion(className);
+    }
+
+    /**
+     * Return URL for resource given by resourceName
+     *
+     * @param resourceName
+     * @return
+     */
+    @Override
+    public URL findResourceURL(String resourceName) {
+        return delegate_.findResourceURL(resourceName);
+    }
+
+    /**
+     * Return Enumeration of resources corresponding to resourceName.
+     *
+     * @param resourceName
+     * @return
+     */
+    @Override
+    public Enumeration findResourcesEnum(String resourceName) {
+        return delegate_.findResourcesEnum(resourceName);
+    }
+
+    /**
+     * Return full path to native library given by the name libraryName.
+     *
+     * @param libraryName
+     * @return
+     */
+    @Override
+    public String findLibraryPath(String libraryName) {
+        return delegate_.findLibraryPath(libraryName);
+    }
+
+    /**
+     *
+     * @param className
+     * @return SHA-1 of the cached bytes for className, or null if not
+     *         cached in memory
+     */
+    public synchronized byte[] getHash(String className) {
+        Entry entry = classes_.get(className);
+        return entry == null ? null : entry.hash.clone();
+    }
+
+    /**
+     * Forget one class, found or not, in memory and on disk.
+     *
+     * @param className
+     */
+    public void invalidate(String className) {
+        synchronized (this) {
+            Entry entry = classes_.remove(className);
+            if (entry != null) {
+                bytesHeld_ -= entry.bytes.length;
+            }
+            misses_.remove(className);
+        }
+        if (dir_ != null) {
+            fileFor(className).delete();
+        }
+    }
+
+    /**
+     * Forget every class, in memory and on disk.
+     */
+    public void clear() {
+        synchronized (this) {
+            classes_.clear();
+            misses_.clear();
+            bytesHeld_ = 0;
+        }
+        if (dir_ != null) {
+            File[] files = dir_.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    if (f.getName().endsWith(".class")) {
+                        f.delete();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Forget the negative lookups only, e.g. after the delegate gained
+     * classes.
+     */
+    public synchronized void clearMisses() {
+        misses_.clear();
+    }
+
+    public synchronized int getClassCount() {
+        return classes_.size();
+    }
+
+    public synchronized long getBytesHeld() {
+        return bytesHeld_;
+    }
+
+    public long getHitCount() {
+        return hits_.get();
+    }
+
+    public long getDiskHitCount() {
+        return diskHits_.get();
+    }
+
+    public long getNegativeHitCount() {
+        return missHits_.get();
+    }
+
+    /**
+     * @return number of lookups passed to the delegate
+     */
+    public long getFetchCount() {
+        return fetches_.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions_.get();
+    }
+
+    @Override
+    public String toString() {
+        return "CachingClassLoaderStrategy[" + delegate_.getClass().getName()
+                + ", classes=" + getClassCount()
+                + ", bytes=" + getBytesHeld()
+                + ", hits=" + getHitCount()
+                + ", diskHits=" + getDiskHitCount()
+                + ", negativeHits=" + getNegativeHitCount()
+                + ", fetches=" + getFetchCount()
+                + ", evictions=" + getEvictionCount() + "]";
+    }
+
+    private void put(String className, byte[] bytes, String version) {
+        byte[] hash = sha1(bytes);
+        synchronized (this) {
+            misses_.remove(className);
+            if (bytes.length <= maxBytes_) {
+                Entry old = classes_.put(className, new Entry(bytes, hash));
+                if (old != null) {
+                    bytesHeld_ -= old.bytes.length;
+                }
+                bytesHeld_ += bytes.length;
+                trimClasses();
+            }
+        }
+        if (version != null) {
+            writeFile(className, version, bytes, hash);
+        }
+    }
+
+    private void trimClasses() {
+        Iterator<Map.Entry<String, Entry>> it = classes_.entrySet().iterator();
+        while (bytesHeld_ > maxBytes_ && it.hasNext()) {
+            bytesHeld_ -= it.next().getValue().bytes.length;
+            it.remove();
+            evictions_.incrementAndGet();
+        }
+    }
+
+    private void trimMisses() {
+        Iterator<String> it = misses_.keySet().iterator();
+        while (misses_.size() > maxMisses_ && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    private File fileFor(String className) {
+        return new File(dir_, className + ".class");
+    }
+
+    /**
+     * Read and verify a persisted class; null if absent, damaged or of
+     * another version than the delegate's current one
+     */
+    private byte[] readFile(String className, String version) {
+        if (version == null) {
+            return null;
+        }
+        File f = fileFor(className);
+        if (!f.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(f))) {
+            if (in.readInt() != FILE_MAGIC) {
+                throw new IOException("bad magic");
+            }
+            if (!version.equals(in.readUTF())) {
+                throw new IOException("stale");
+            }
+            byte[] hash = new byte[in.readUnsignedByte()];
+            in.readFully(hash);
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            if (!Arrays.equals(hash, sha1(bytes))) {
+                throw new IOException("hash mismatch");
+            }
+            return bytes;
+        } catch (IOException | RuntimeException ex) {
+            f.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Persist a class, via a temporary file so readers never see half of it
+     */
+    private void writeFile(String className, String version, byte[] bytes,
+            byte[] hash) {
+        File f = fileFor(className);
+        File tmp = new File(dir_, className + "." + Thread.currentThread().getId()
+                + ".tmp");
+        try {
+            try (DataOutputStream out
+                    = new DataOutputStream(new FileOutputStream(tmp))) {
+                out.writeInt(FILE_MAGIC);
+                out.writeUTF(version);
+                out.writeByte(hash.length);
+                out.write(hash);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            if (!tmp.renameTo(f)) {
+                f.delete();
+                if (!tmp.renameTo(f)) {
+                    tmp.delete();
+                }
+            }
+        } catch (IOException ioEx) {
+            // Persistence is best-effort; the memory cache still works
+            tmp.delete();
+        }
+    }
+
+    private static byte[] sha1(byte[] bytes) {
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(bytes);
+        } catch (NoSuchAlgorithmException nsaEx) {
+            // Every JRE has SHA-1
+            throw new IllegalStateException(nsaEx);
+        }
+    }
+}
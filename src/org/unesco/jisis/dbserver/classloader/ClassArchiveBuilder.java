@@ -0,0 +1,158 @@
+package org.unesco.jisis.dbserver.classloader;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * ClassArchiveBuilder packs a class directory (the root of a package tree,
+ * e.g. <code>build/classes</code>) into the archive format read by
+ * {@link ArchiveClassLoader}. Every regular file is packed, so resources
+ * next to the classes are found as well.
+ *
+ * <PRE>
+ * java org.unesco.jisis.dbserver.classloader.ClassArchiveBuilder
+ *     classDir archiveFile
+ * </PRE>
+ */
+public class ClassArchiveBuilder {
+
+    /**
+     * A file to pack
+     */
+    private static final class Item {
+
+        final byte[] name;
+        final Path path;
+        final int length;
+
+        Item(byte[] name, Path path, int length) {
+            this.name = name;
+            this.path = path;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Pack every file under <code>classDir</code> into <code>archive</code>.
+     * The archive is written beside its final name and renamed into place,
+     * so a loader mapping the old archive is never shown a partial file.
+     *
+     * @param classDir root of the package tree
+     * @param archive the file to write
+     * @return number of entries written
+     * @throws IOException
+     */
+    public static int build(File classDir, File archive)
+            throws IOException {
+        final Path root = classDir.toPath();
+        final List<Item> items = new ArrayList<>();
+        try (Stream<Path> files = Files.walk(root)) {
+            for (Path p : (Iterable<Path>) files::iterator) {
+                if (!Files.isRegularFile(p)) {
+                    continue;
+                }
+                long size = Files.size(p);
+                if (size > Integer.MAX_VALUE) {
+                    throw new IOException(p + ": too large to pack");
+                }
+                String name = root.relativize(p).toString()
+                        .replace(File.separatorChar, '/');
+                items.add(new Item(name.getBytes(StandardCharsets.UTF_8), p,
+                        (int) size));
+            }
+        }
+
+        // Index order is unsigned byte order of the UTF-8 names, which is
+        // what ArchiveClassLoader's binary search compares
+        items.sort((a, b) -> compare(a.name, b.name));
+
+        long namesStart = ArchiveClassLoader.HEADER_SIZE
+                + (long) items.size() * ArchiveClassLoader.INDEX_ENTRY_SIZE;
+        long dataStart = namesStart;
+        for (Item item : items) {
+            dataStart += item.name.length;
+        }
+        long end = dataStart;
+        for (Item item : items) {
+            end += item.length;
+        }
+        if (end > Integer.MAX_VALUE) {
+            throw new IOException("archive would be over 2GB");
+        }
+
+        File tmp = new File(archive.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+            out.writeInt(ArchiveClassLoader.MAGIC);
+            out.writeInt(ArchiveClassLoader.VERSION);
+            out.writeInt(items.size());
+
+            int nameAt = (int) namesStart;
+            int dataAt = (int) dataStart;
+            for (Item item : items) {
+                out.writeInt(nameAt);
+                out.writeInt(item.name.length);
+                out.writeInt(dataAt);
+                out.writeInt(item.length);
+                nameAt += item.name.length;
+                dataAt += item.length;
+            }
+            for (Item item : items) {
+                out.write(item.name);
+            }
+            for (Item item : items) {
+                byte[] bytes = Files.readAllBytes(item.path);
+                if (bytes.length != item.length) {
+                    throw new IOException(item.path + " changed while packing");
+                }
+                out.write(bytes);
+            }
+        } catch (IOException ioEx) {
+            tmp.delete();
+            throw ioEx;
+        }
+
+        if (!tmp.renameTo(archive)) {
+            archive.delete();
+            if (!tmp.renameTo(archive)) {
+                tmp.delete();
+                throw new IOException("can't rename " + tmp + " to " + archive);
+            }
+        }
+        return items.size();
+    }
+
+    private static int compare(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) {
+            int cmp = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    // Tool entry point
+    //
+    public static void main(String[] args)
+            throws Exception {
+        if (args.length != 2) {
+            System.err.println("usage: ClassArchiveBuilder classDir archiveFile");
+            System.exit(2);
+        }
+        long begin = System.currentTimeMillis();
+        int n = build(new File(args[0]), new File(args[1]));
+        System.out.println("Packed " + n + " entries from " + args[0] + " into "
+                + args[1] + " in " + (System.currentTimeMillis() - begin) + " ms");
+    }
+}
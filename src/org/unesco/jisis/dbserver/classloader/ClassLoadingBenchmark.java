@@ -0,0 +1,148 @@
+package org.unesco.jisis.dbserver.classloader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ClassLoadingBenchmark loads a few hundred generated classes through a
+ * StrategyClassLoader from many threads at once, checks that every name
+ * was defined exactly once, and reports the throughput.
+ *
+ * <PRE>
+ * java org.unesco.jisis.dbserver.classloader.ClassLoadingBenchmark
+ *     [classes=500] [threads=32] [rounds=5] [cached=true|false]
+ * </PRE>
+ *
+ * <P>Each round uses a fresh loader, so every round defines every class.
+ * Every thread asks for every class, in its own random order, so threads
+ * race on the same names as well as on different ones.
+ */
+public class ClassLoadingBenchmark {
+
+    private static final String PACKAGE = "org.unesco.jisis.bench.";
+
+    // Test driver
+    //
+    public static void main(String[] args)
+            throws Exception {
+        int classes = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        boolean cached = args.length > 3 ? Boolean.parseBoolean(args[3]) : true;
+
+        HashtableClassLoader table = new HashtableClassLoader();
+        List<String> names = new ArrayList<>(classes);
+        for (int i = 0; i < classes; i++) {
+            String name = PACKAGE + "Generated" + i;
+            table.putClass(name, emptyClass(name));
+            names.add(name);
+        }
+
+        System.out.println("Loading " + classes + " classes from " + threads
+                + " threads, " + rounds + " rounds"
+                + (cached ? ", through CachingClassLoaderStrategy" : ""));
+
+        IClassLoaderStrategy strategy = cached
+                ? new CachingClassLoaderStrategy(table) : table;
+        boolean ok = true;
+        for (int round = 1; round <= rounds; round++) {
+            ok &= runRound(round, new StrategyClassLoader(strategy), names,
+                    threads);
+        }
+        if (strategy != table) {
+            System.out.println(strategy);
+        }
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Load every name from every thread; returns false on any failure or
+     * if a name resolved to two different Classes
+     */
+    private static boolean runRound(int round, final ClassLoader loader,
+            final List<String> names, int threads)
+            throws InterruptedException {
+        final ConcurrentHashMap<String, Class> seen = new ConcurrentHashMap<>();
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicInteger duplicates = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++) {
+            final List<String> order = new ArrayList<>(names);
+            Collections.shuffle(order, new Random(round * 7919L + t));
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    for (String name : order) {
+                        Class c = loader.loadClass(name);
+                        Class first = seen.putIfAbsent(name, c);
+                        if (first != null && first != c) {
+                            duplicates.incrementAndGet();
+                        }
+                    }
+                } catch (Throwable ex) {
+                    failures.incrementAndGet();
+                    ex.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            }, "ClassLoadingBenchmark-" + t);
+            thread.start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+
+        long loads = (long) names.size() * threads;
+        System.out.println(String.format(
+                "round %d: %d loads in %.1f ms (%.0f loads/s), %d defined,"
+                + " %d failures, %d duplicates",
+                round, loads, elapsed / 1e6, loads * 1e9 / elapsed,
+                seen.size(), failures.get(), duplicates.get()));
+        return failures.get() == 0 && duplicates.get() == 0
+                && seen.size() == names.size();
+    }
+
+    /**
+     * Bytecode for a public class with no members, extending Object
+     */
+    private static byte[] emptyClass(String name)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);                  // minor version
+        out.writeShort(50);                 // major version (Java 6)
+        out.writeShort(5);                  // constant pool count + 1
+        out.writeByte(7);                   // #1 Class #2
+        out.writeShort(2);
+        out.writeByte(1);                   // #2 Utf8 this class
+        out.writeUTF(name.replace('.', '/'));
+        out.writeByte(7);                   // #3 Class #4
+        out.writeShort(4);
+        out.writeByte(1);                   // #4 Utf8 superclass
+        out.writeUTF("java/lang/Object");
+        out.writeShort(0x0021);             // ACC_PUBLIC | ACC_SUPER
+        out.writeShort(1);                  // this class
+        out.writeShort(3);                  // superclass
+        out.writeShort(0);                  // interfaces
+        out.writeShort(0);                  // fields
+        out.writeShort(0);                  // methods
+        out.writeShort(0);                  // attributes
+        out.flush();
+        return bytes.toByteArray();
+    }
+}
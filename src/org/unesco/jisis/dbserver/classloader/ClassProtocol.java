@@ -0,0 +1,152 @@
+package org.unesco.jisis.dbserver.classloader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * ClassProtocol holds the wire format shared by {@link SocketClassLoader}
+ * and {@link ClassServer}. Everything is big-endian and length-prefixed.
+ *
+ * <PRE>
+ * handshake, client then server:  int MAGIC, int VERSION, int flags
+ *     (the server answers with the flags it accepts)
+ * request:   byte OP_CLASSES, int n, n * UTF class name
+ *            byte OP_PACKAGE, UTF package name
+ *            byte OP_VERSIONS, UTF package name   (if FLAG_VERSIONS accepted)
+ *            byte OP_CLOSE
+ * response to OP_CLASSES: n entries, in request order
+ * response to OP_PACKAGE: int m, m * (UTF class name, entry)
+ * response to OP_VERSIONS: int m, m * (UTF class name, UTF version)
+ * entry:     byte NOT_FOUND
+ *            byte RAW, int length, bytes
+ *            byte DEFLATED, int raw length, int length, bytes
+ * </PRE>
+ *
+ * Requests may be written back to back without waiting for the answers;
+ * the server answers them in order.
+ */
+final class ClassProtocol {
+
+    static final int MAGIC = 0x4A435350; // "JCSP"
+    static final int VERSION = 1;
+
+    /** handshake flag: deflate entries worth compressing */
+    static final int FLAG_DEFLATE = 1;
+    /** handshake flag: OP_VERSIONS is understood */
+    static final int FLAG_VERSIONS = 2;
+
+    static final byte OP_CLOSE = 0;
+    static final byte OP_CLASSES = 1;
+    static final byte OP_PACKAGE = 2;
+    static final byte OP_VERSIONS = 3;
+
+    static final byte NOT_FOUND = 0;
+    static final byte RAW = 1;
+    static final byte DEFLATED = 2;
+
+    /** entries smaller than this aren't worth deflating */
+    static final int DEFLATE_THRESHOLD = 512;
+
+    /** refuse entries larger than this, rather than allocate them */
+    static final int MAX_ENTRY = 64 * 1024 * 1024;
+
+    private ClassProtocol() {
+    }
+
+    static void writeEntry(DataOutputStream out, byte[] bytes, boolean deflate)
+            throws IOException {
+        if (bytes == null) {
+            out.writeByte(NOT_FOUND);
+            return;
+        }
+        if (deflate && bytes.length >= DEFLATE_THRESHOLD) {
+            byte[] packed = deflate(bytes);
+            if (packed.length < bytes.length) {
+                out.writeByte(DEFLATED);
+                out.writeInt(bytes.length);
+                out.writeInt(packed.length);
+                out.write(packed);
+                return;
+            }
+        }
+        out.writeByte(RAW);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static byte[] readEntry(DataInputStream in)
+            throws IOException {
+        byte status = in.readByte();
+        switch (status) {
+            case NOT_FOUND:
+                return null;
+            case RAW: {
+                byte[] bytes = new byte[checkLength(in.readInt())];
+                in.readFully(bytes);
+                return bytes;
+            }
+            case DEFLATED: {
+                int rawLength = checkLength(in.readInt());
+                byte[] packed = new byte[checkLength(in.readInt())];
+                in.readFully(packed);
+                return inflate(packed, rawLength);
+            }
+            default:
+                throw new IOException("bad entry status " + status);
+        }
+    }
+
+    private static int checkLength(int length)
+            throws IOException {
+        if (length < 0 || length > MAX_ENTRY) {
+            throw new IOException("bad entry length " + length);
+        }
+        return length;
+    }
+
+    private static byte[] deflate(byte[] bytes) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length);
+            byte[] buf = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buf, 0, deflater.deflate(buf));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] packed, int rawLength)
+            throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(packed);
+            byte[] bytes = new byte[rawLength];
+            int n = 0;
+            while (n < rawLength) {
+                int got = inflater.inflate(bytes, n, rawLength - n);
+                if (got == 0 && (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+                n += got;
+            }
+            if (n != rawLength) {
+                throw new IOException("short deflated entry");
+            }
+            return bytes;
+        } catch (DataFormatException dfEx) {
+            throw new IOException("bad deflated entry", dfEx);
+        } finally {
+            inflater.end();
+        }
+    }
+}
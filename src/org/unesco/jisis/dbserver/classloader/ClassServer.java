@@ -0,0 +1,282 @@
+package org.unesco.jisis.dbserver.classloader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.file.Files;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ClassServer serves a directory of classes to {@link SocketClassLoader}
+ * over the protocol in {@link ClassProtocol}. It is meant for deployments
+ * and local testing, not as a hardened network service: it answers every
+ * client, one thread per connection.
+ *
+ * <PRE>
+ * java org.unesco.jisis.dbserver.classloader.ClassServer classDir [port]
+ * </PRE>
+ */
+public class ClassServer {
+
+    // Internal members
+    //
+    private final File root_;
+    private final int port_;
+    private final Set<Socket> clients_ = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger served_ = new AtomicInteger();
+    private volatile ServerSocket server_ = null;
+    private Thread acceptor_ = null;
+
+    /**
+     *
+     * @param root root of the package tree to serve
+     * @param port TCP port to listen on; 0 picks a free one
+     */
+    public ClassServer(File root, int port) {
+        root_ = root;
+        port_ = port;
+    }
+
+    /**
+     * Start listening; returns once the port is bound.
+     *
+     * @throws IOException if the port can't be bound
+     */
+    public synchronized void start()
+            throws IOException {
+        if (server_ != null) {
+            return;
+        }
+        ServerSocket server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(new InetSocketAddress(port_));
+        server_ = server;
+
+        acceptor_ = new Thread(this::accept, "ClassServer-" + getPort());
+        acceptor_.setDaemon(true);
+        acceptor_.start();
+    }
+
+    /**
+     * Stop listening and drop every client.
+     */
+    public synchronized void stop() {
+        ServerSocket server = server_;
+        server_ = null;
+        if (server == null) {
+            return;
+        }
+        close(server);
+        for (Socket client : clients_) {
+            close(client);
+        }
+        try {
+            acceptor_.join(5 * 1000);
+        } catch (InterruptedException iEx) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     *
+     * @return the port listened on, or -1 when stopped
+     */
+    public int getPort() {
+        ServerSocket server = server_;
+        return server == null ? -1 : server.getLocalPort();
+    }
+
+    /**
+     *
+     * @return number of class entries sent so far
+     */
+    public int getServedCount() {
+        return served_.get();
+    }
+
+    private void accept() {
+        int n = 0;
+        while (true) {
+            ServerSocket server = server_;
+            if (server == null) {
+                return;
+            }
+            try {
+                final Socket client = server.accept();
+                clients_.add(client);
+                Thread t = new Thread(() -> serve(client),
+                        "ClassServer-client-" + (++n));
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException ioEx) {
+                if (server_ == null) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Answer one client's requests until it closes
+     */
+    private void serve(Socket client) {
+        try {
+            client.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(client.getInputStream(), 1 << 16));
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(client.getOutputStream(), 1 << 16));
+
+            if (in.readInt() != ClassProtocol.MAGIC
+                    || in.readInt() != ClassProtocol.VERSION) {
+                return;
+            }
+            int flags = in.readInt()
+                    & (ClassProtocol.FLAG_DEFLATE | ClassProtocol.FLAG_VERSIONS);
+            boolean deflate = (flags & ClassProtocol.FLAG_DEFLATE) != 0;
+            out.writeInt(ClassProtocol.MAGIC);
+            out.writeInt(ClassProtocol.VERSION);
+            out.writeInt(flags);
+            out.flush();
+
+            while (true) {
+                byte op = in.readByte();
+                if (op == ClassProtocol.OP_CLASSES) {
+                    int n = in.readInt();
+                    for (int i = 0; i < n; i++) {
+                        ClassProtocol.writeEntry(out, read(in.readUTF()), deflate);
+                    }
+                } else if (op == ClassProtocol.OP_PACKAGE) {
+                    String[] names = listPackage(in.readUTF());
+                    out.writeInt(names.length);
+                    for (String name : names) {
+                        out.writeUTF(name);
+                        ClassProtocol.writeEntry(out, read(name), deflate);
+                    }
+                } else if (op == ClassProtocol.OP_VERSIONS) {
+                    String[] names = listPackage(in.readUTF());
+                    out.writeInt(names.length);
+                    for (String name : names) {
+                        out.writeUTF(name);
+                        out.writeUTF(version(name));
+                    }
+                } else {
+                    return;
+                }
+
+                // Answer pipelined requests together
+                if (in.available() == 0) {
+                    out.flush();
+                }
+            }
+        } catch (EOFException | SocketException ex) {
+            // Client went away
+        } catch (IOException ioEx) {
+            ioEx.printStackTrace();
+        } finally {
+            clients_.remove(client);
+            close(client);
+        }
+    }
+
+    /**
+     * Bytes of a class, or null; names that could leave the root are
+     * refused
+     */
+    private byte[] read(String className) {
+        if (!isClassName(className)) {
+            return null;
+        }
+        File f = new File(root_, className.replace('.', File.separatorChar)
+                + ".class");
+        try {
+            byte[] bytes = f.isFile() ? Files.readAllBytes(f.toPath()) : null;
+            if (bytes != null) {
+                served_.incrementAndGet();
+            }
+            return bytes;
+        } catch (IOException ioEx) {
+            return null;
+        }
+    }
+
+    /**
+     * The class file's size and modification time, as
+     * FileSystemClassLoader gives them; "" if there is no class file
+     */
+    private String version(String className) {
+        if (!isClassName(className)) {
+            return "";
+        }
+        File f = new File(root_, className.replace('.', File.separatorChar)
+                + ".class");
+        return f.isFile() ? f.length() + ":" + f.lastModified() : "";
+    }
+
+    private String[] listPackage(String pkg) {
+        if (!pkg.isEmpty() && !isClassName(pkg)) {
+            return new String[0];
+        }
+        File dir = pkg.isEmpty() ? root_
+                : new File(root_, pkg.replace('.', File.separatorChar));
+        File[] files = dir.listFiles((File d, String name)
+                -> name.endsWith(".class"));
+        if (files == null) {
+            return new String[0];
+        }
+        String prefix = pkg.isEmpty() ? "" : pkg + ".";
+        String[] names = new String[files.length];
+        for (int i = 0; i < files.length; i++) {
+            String file = files[i].getName();
+            names[i] = prefix + file.substring(0, file.length() - 6);
+        }
+        return names;
+    }
+
+    private static boolean isClassName(String name) {
+        if (name.isEmpty() || name.startsWith(".") || name.endsWith(".")
+                || name.contains("..")) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c != '.' && c != '$' && !Character.isJavaIdentifierPart(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void close(java.io.Closeable c) {
+        try {
+            c.close();
+        } catch (IOException ioEx) {
+            // Nothing more to do
+        }
+    }
+
+    // Tool entry point
+    //
+    public static void main(String[] args)
+            throws Exception {
+        if (args.length < 1) {
+            System.err.println("usage: ClassServer classDir [port]");
+            System.exit(2);
+        }
+        ClassServer server = new ClassServer(new File(args[0]),
+                args.length > 1 ? Integer.parseInt(args[1]) : 8085);
+        server.start();
+        System.out.println("Serving " + args[0] + " on port " + server.getPort());
+        Thread.currentThread().join();
+    }
+}
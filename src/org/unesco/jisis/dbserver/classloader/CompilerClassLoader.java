@@ -3,29 +3,93 @@ package org.unesco.jisis.dbserver.classloader;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+import org.unesco.jisis.dbserver.IServerManager;
+import org.unesco.jisis.dbserver.ServerManager;
 
 /**
- * CompilerClassLoader
+ * CompilerClassLoader compiles the Java sources under a root directory on
+ * demand with the javax.tools compiler. Class files are never written: the
+ * compiler's output is kept in memory.
  *
- * <P><B>Note:</B>If this class fails to compile with the error
- * message "Class sun.tools.javac.Main not found", then you need
- * to put the "tools.jar" file on the CLASSPATH either in the
- * environment, or explicitly on the command-line to the
- * compiler:
- * <PRE>
- * javac -classpath $(JDKROOT)/lib/tools.jar <.java files>
- * </PRE>
- * <P>Dropping the tools.jar file into the Extensions directory
- * is discouraged, as some tools (like RMI-IIOP's rmic.exe) will
- * have problems picking out the right Java classes to execute,
- * since the Extensions are always ahead of any other classes on
- * a CLASSPATH.
+ * <P>The first lookup in a package compiles all of that package's sources
+ * in one compiler run. Later lookups recompile only the sources whose
+ * content changed (a file whose modification time and size are unchanged
+ * isn't even read; one that was touched is compared by SHA-1), so a new
+ * StrategyClassLoader over the same CompilerClassLoader picks up an edit
+ * without recompiling the rest. Sources that depend on a changed one are
+ * not recompiled with it. Other packages' sources are found through the
+ * source path.
+ *
+ * <P>When no system compiler is available (running on a JRE), it falls
+ * back to reading class files already compiled next to the sources.
  */
 public class CompilerClassLoader extends java.lang.ClassLoader
     implements IClassLoaderStrategy
 {
+    static
+    {
+        registerAsParallelCapable();
+    }
+
+    /**
+     * One package's lock: lookups that find its sources unchanged share
+     * it, a refresh that compiles takes it alone
+     */
+    private static final class PackageState
+    {
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        // Sources known after the last refresh, to notice deletions
+        volatile int known = -1;
+    }
+
+    /**
+     * What is known about one source file
+     */
+    private static final class Source
+    {
+        final long modified;
+        final long length;
+        final String hash;
+        final Set<String> classes = ConcurrentHashMap.newKeySet();
+        volatile boolean failed = false;
+
+        Source(long modified, long length, String hash)
+        {
+            this.modified = modified;
+            this.length = length;
+            this.hash = hash;
+        }
+    }
+
     /**
      * Uses "user.home" as root dir to work from
      */
@@ -38,7 +102,7 @@ public class CompilerClassLoader extends java.lang.ClassLoader
      */
     public CompilerClassLoader(File sourceDirRoot)
     {
-        this(sourceDirRoot, 
+        this(sourceDirRoot,
              CompilerClassLoader.class.getClassLoader());
     }
     /**
@@ -54,7 +118,7 @@ public class CompilerClassLoader extends java.lang.ClassLoader
         //
         try
         {
-            m_sourceDirRoot = 
+            m_sourceDirRoot =
                 new File(System.getProperty("user.home"));
         }
         catch (Exception ex)
@@ -66,19 +130,19 @@ public class CompilerClassLoader extends java.lang.ClassLoader
     /**
      *
      */
-    public CompilerClassLoader(File sourceDirRoot, 
+    public CompilerClassLoader(File sourceDirRoot,
                                ClassLoader parent)
     {
         // Pass up our parent ClassLoader
         //
         super(parent);
-        
+
         // Get our source "root" directory
         //
         m_sourceDirRoot = sourceDirRoot;
     }
-    
-    
+
+
     /**
      *
      */
@@ -87,89 +151,87 @@ public class CompilerClassLoader extends java.lang.ClassLoader
         return m_classpath;
     }
     /**
-     *
+     * Classpath the sources are compiled against, in the platform's
+     * path syntax; when unset, the compiler's default (java.class.path).
      */
     public void setClasspath(String classpath)
     {
-        m_classpath = classpath;
+        synchronized (m_compileLock)
+        {
+            m_classpath = classpath;
+            closeFileManager();
+        }
+    }
+
+    /**
+     * Compiler messages from the last compile that failed, or null
+     */
+    public String getLastErrors()
+    {
+        return m_lastErrors;
     }
 
+    /**
+     * Number of compiler runs so far
+     */
+    public int getCompileCount()
+    {
+        return m_compileCount;
+    }
 
-    
     /**
-     * Return byte array (which will be turned into a Class instance
-     * via ClassLoader.defineClass) for class
+     * Drop everything compiled, so the next lookup in each package
+     * compiles it afresh.
      */
-    public byte[] findClassBytes(String name)
+    public void clear()
     {
-        if (m_sourceDirRoot == null)
-            return null;
-            
-        // Translate the Java-canonical name into an equivalent
-        // file name; anything after a "$" is removed, since "$"
-        // only shows up in anonymous/inner classes, which are
-        // from the "$"-prefixed file. Tack a .java on it, and
-        // look for the file
-        String javaName = name;
-        if (javaName.indexOf("$") > 0)
-            javaName = javaName.substring(0, javaName.indexOf("$"));
-        // Replace "." with File.fileSeparatorChar's
-        javaName = javaName.replace('.', File.separatorChar);
-        javaName += ".java";
-        
-        File javaFile = new File(m_sourceDirRoot, javaName);
-        //System.out.println("Looking for " + javaFile.toString());
-        
-        // Attempt to compile it down to bytecode
-		String[] javacArgs = new String[]
-        {
-    		//"-classpath",
-    		//m_classpath,
-    		"-deprecation",
-    		javaFile.getPath()
-		};
-		ByteArrayOutputStream javacOut = new ByteArrayOutputStream();
-//		sun.tools.javac.Main javaCompiler =
-//            new sun.tools.javac.Main(
-//                new PrintStream(javacOut, true), "javac");
-//		if(!javaCompiler.compile(javacArgs))
-//        {
-//            return null;
-//		}
-
-        // If we got here, the file compiled just fine; load its
-        // bytecode into the byte array
-        String className = null;
-        if (name.lastIndexOf("$") > -1)
-        {
-            className = name.replace('.', File.separatorChar)
-                + ".class";
-        }
-        else
-        {
-            className = javaName.substring(0, 
-                javaName.lastIndexOf(".")) + ".class";
-        }
-        
+        // Package locks before the compile lock, as refreshPackage takes them
+        List<PackageState> states = new ArrayList<>(m_packages.values());
+        for (PackageState state : states)
+            state.lock.writeLock().lock();
         try
         {
-            File inFile =
-                new File(m_sourceDirRoot, className);
-            FileInputStream in = 
-                new FileInputStream(inFile);
-                
-            byte[] bytecode = new byte[(int)inFile.length()];
-            in.read(bytecode, 0, (int)inFile.length());
-            
-            // Return the bytecode
-            return bytecode;
+            synchronized (m_compileLock)
+            {
+                m_packages.clear();
+                m_sources.clear();
+                m_compiled.clear();
+                closeFileManager();
+            }
         }
-        catch (java.io.IOException ioEx)
+        finally
         {
-            return null;
+            for (PackageState state : states)
+                state.lock.writeLock().unlock();
         }
     }
-    
+
+
+    /**
+     * Return byte array (which will be turned into a Class instance
+     * via ClassLoader.defineClass) for class
+     */
+    public byte[] findClassBytes(String name)
+    {
+        if (m_sourceDirRoot == null)
+            return null;
+
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null)
+            return readClassFile(name);
+
+        // Anything after a "$" is removed, since "$" only shows up in
+        // anonymous/inner classes, which come from the top-level
+        // class's file; it is the package that gets compiled
+        String topLevel = name;
+        if (topLevel.indexOf("$") > 0)
+            topLevel = topLevel.substring(0, topLevel.indexOf("$"));
+        int dot = topLevel.lastIndexOf('.');
+        String pkg = dot < 0 ? "" : topLevel.substring(0, dot);
+
+        return refreshPackage(compiler, pkg, name);
+    }
+
     /**
      * Return URL for resource given by resourceName
      */
@@ -185,7 +247,7 @@ public class CompilerClassLoader extends java.lang.ClassLoader
     {
         return null;
     }
-    
+
     /**
      * Return full path to native library given by the name
      * libraryName.
@@ -198,31 +260,418 @@ public class CompilerClassLoader extends java.lang.ClassLoader
 
     /**
      * Retrieve compiled code
-     */    
+     */
     protected Class findClass(String name)
         throws ClassNotFoundException
     {
-        byte[] bytecode = findClassBytes(name);
-        if (bytecode == null)
+        // One compile per class name at a time
+        synchronized (getClassLoadingLock(name))
         {
-            throw new ClassNotFoundException();
+            Class loaded = findLoadedClass(name);
+            if (loaded != null)
+            {
+                return loaded;
+            }
+
+            byte[] bytecode = findClassBytes(name);
+            if (bytecode == null)
+            {
+                throw new ClassNotFoundException();
+            }
+
+            return defineClass(name, bytecode, 0, bytecode.length);
         }
+    }
 
-        return defineClass(name, bytecode, 0, bytecode.length);
+    /**
+     * Compile whichever of a package's sources changed since they were
+     * last compiled, all in one compiler run, and return the class's
+     * bytes. Lookups in a package whose sources are unchanged only stat
+     * them, and run alongside each other and other packages' compiles.
+     */
+    private byte[] refreshPackage(JavaCompiler compiler, String pkg, String name)
+    {
+        File dir = pkg.isEmpty() ? m_sourceDirRoot
+            : new File(m_sourceDirRoot, pkg.replace('.', File.separatorChar));
+        PackageState state = m_packages.computeIfAbsent(dir.getAbsolutePath(),
+            (String k) -> new PackageState());
+
+        state.lock.readLock().lock();
+        try
+        {
+            if (unchanged(dir, state))
+                return m_compiled.get(name);
+        }
+        finally
+        {
+            state.lock.readLock().unlock();
+        }
+
+        state.lock.writeLock().lock();
+        try
+        {
+            File[] files = sourceFiles(dir);
+            Map<File, Source> changed = new HashMap<>();
+            List<File> failed = new ArrayList<>();
+            Set<String> present = new HashSet<>();
+            for (File f : files)
+            {
+                String key = f.getAbsolutePath();
+                present.add(key);
+                Source s = m_sources.get(key);
+                long modified = f.lastModified();
+                long length = f.length();
+                if (s != null && s.modified == modified && s.length == length)
+                {
+                    if (s.failed)
+                        failed.add(f);
+                    continue;
+                }
+
+                String hash;
+                try
+                {
+                    hash = hash(f);
+                }
+                catch (IOException ioEx)
+                {
+                    continue;
+                }
+                if (s != null && s.hash.equals(hash))
+                {
+                    // Touched, not changed
+                    Source same = new Source(modified, length, hash);
+                    same.classes.addAll(s.classes);
+                    same.failed = s.failed;
+                    m_sources.put(key, same);
+                    if (same.failed)
+                        failed.add(f);
+                    continue;
+                }
+                changed.put(f, new Source(modified, length, hash));
+            }
+
+            // Sources deleted since they were compiled
+            String dirPath = dir.getAbsolutePath();
+            for (Iterator<Map.Entry<String, Source>> it = m_sources.entrySet().iterator();
+                 it.hasNext(); )
+            {
+                Map.Entry<String, Source> e = it.next();
+                if (!present.contains(e.getKey())
+                    && dirPath.equals(new File(e.getKey()).getParent()))
+                {
+                    forget(e.getValue());
+                    it.remove();
+                }
+            }
+
+            if (!changed.isEmpty())
+            {
+                // Whatever failed with the last compile may compile now
+                for (File f : failed)
+                {
+                    Source s = m_sources.get(f.getAbsolutePath());
+                    changed.put(f, new Source(s.modified, s.length, s.hash));
+                }
+                // One compiler run at a time: the file manager is shared
+                synchronized (m_compileLock)
+                {
+                    compile(compiler, changed);
+                }
+            }
+
+            int known = 0;
+            for (String key : present)
+            {
+                if (m_sources.containsKey(key))
+                    known++;
+            }
+            state.known = known;
+            return m_compiled.get(name);
+        }
+        finally
+        {
+            state.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * True if every source in the directory is known with the same
+     * modification time and size, and none has been deleted
+     */
+    private boolean unchanged(File dir, PackageState state)
+    {
+        File[] files = sourceFiles(dir);
+        if (files.length != state.known)
+            return false;
+        for (File f : files)
+        {
+            Source s = m_sources.get(f.getAbsolutePath());
+            if (s == null || s.modified != f.lastModified()
+                || s.length != f.length())
+                return false;
+        }
+        return true;
+    }
+
+    private static File[] sourceFiles(File dir)
+    {
+        File[] files = dir.listFiles((File d, String n) -> n.endsWith(".java"));
+        return files == null ? new File[0] : files;
     }
-    
-    
+
+    private void compile(JavaCompiler compiler, Map<File, Source> changed)
+    {
+        for (Map.Entry<File, Source> e : changed.entrySet())
+        {
+            String key = e.getKey().getAbsolutePath();
+            Source old = m_sources.put(key, e.getValue());
+            if (old != null)
+                forget(old);
+        }
+
+        DiagnosticCollector<JavaFileObject> diagnostics =
+            new DiagnosticCollector<>();
+        boolean ok;
+        try
+        {
+            StandardJavaFileManager files = fileManager(compiler);
+            List<String> options = new ArrayList<>();
+            // Only what was asked for; sources found on the source path
+            // are compiled when their own package is
+            options.add("-implicit:none");
+            ok = compiler.getTask(null, new MemoryFileManager(files),
+                diagnostics, options, null,
+                files.getJavaFileObjectsFromFiles(changed.keySet())).call();
+            m_compileCount++;
+        }
+        catch (IOException | RuntimeException ex)
+        {
+            ex.printStackTrace();
+            ok = false;
+        }
+
+        if (ok)
+        {
+            m_lastErrors = null;
+            return;
+        }
+
+        StringBuilder errors = new StringBuilder();
+        for (Diagnostic<? extends JavaFileObject> d : diagnostics.getDiagnostics())
+        {
+            if (d.getKind() == Diagnostic.Kind.ERROR)
+                errors.append(d.toString()).append('\n');
+        }
+        m_lastErrors = errors.toString();
+        // Kept for getLastErrors(); the manager's error log gets a copy
+        IServerManager mgr = ServerManager.instance();
+        if (mgr != null)
+            mgr.error("Cannot compile " + changed.keySet() + ":\n" + m_lastErrors);
+
+        // Not retried until one of the package's sources changes
+        for (Source s : changed.values())
+        {
+            forget(s);
+            s.failed = true;
+        }
+    }
+
+    /**
+     * Drop the classes compiled from a source
+     */
+    private void forget(Source s)
+    {
+        for (String className : s.classes)
+            m_compiled.remove(className);
+        s.classes.clear();
+    }
+
+    /**
+     * One file manager per loader, kept between compiles so the
+     * compiler's view of the classpath isn't rebuilt each time
+     */
+    private StandardJavaFileManager fileManager(JavaCompiler compiler)
+        throws IOException
+    {
+        if (m_fileManager == null)
+        {
+            StandardJavaFileManager files = compiler.getStandardFileManager(
+                null, null, StandardCharsets.UTF_8);
+            files.setLocation(StandardLocation.SOURCE_PATH,
+                Collections.singleton(m_sourceDirRoot));
+            if (m_classpath != null)
+            {
+                List<File> path = new ArrayList<>();
+                for (String entry : m_classpath.split(File.pathSeparator))
+                {
+                    if (!entry.isEmpty())
+                        path.add(new File(entry));
+                }
+                files.setLocation(StandardLocation.CLASS_PATH, path);
+            }
+            m_fileManager = files;
+        }
+        return m_fileManager;
+    }
+
+    private void closeFileManager()
+    {
+        if (m_fileManager != null)
+        {
+            try
+            {
+                m_fileManager.close();
+            }
+            catch (IOException ioEx)
+            {
+                // Nothing more to do
+            }
+            m_fileManager = null;
+        }
+    }
+
+    /**
+     * Sends class output to m_compiled, noting which source each class
+     * came from
+     */
+    private final class MemoryFileManager
+        extends ForwardingJavaFileManager<StandardJavaFileManager>
+    {
+        MemoryFileManager(StandardJavaFileManager files)
+        {
+            super(files);
+        }
+
+        @Override
+        public JavaFileObject getJavaFileForOutput(Location location,
+            String className, JavaFileObject.Kind kind, FileObject sibling)
+            throws IOException
+        {
+            if (kind != JavaFileObject.Kind.CLASS)
+                return super.getJavaFileForOutput(location, className, kind, sibling);
+
+            Source source = null;
+            if (sibling != null && "file".equals(sibling.toUri().getScheme()))
+                source = m_sources.get(new File(sibling.toUri()).getAbsolutePath());
+            return new ClassOutput(className, source);
+        }
+
+        @Override
+        public void close()
+        {
+            // The underlying file manager is kept for the next compile
+        }
+    }
+
+    private final class ClassOutput extends SimpleJavaFileObject
+    {
+        private final String className;
+        private final Source source;
+
+        ClassOutput(String className, Source source)
+        {
+            super(URI.create("mem:///" + className.replace('.', '/')
+                + JavaFileObject.Kind.CLASS.extension), JavaFileObject.Kind.CLASS);
+            this.className = className;
+            this.source = source;
+        }
+
+        @Override
+        public OutputStream openOutputStream()
+        {
+            return new ByteArrayOutputStream()
+            {
+                @Override
+                public void close()
+                {
+                    m_compiled.put(className, toByteArray());
+                    if (source != null)
+                        source.classes.add(className);
+                }
+            };
+        }
+    }
+
+    private static String hash(File f)
+        throws IOException
+    {
+        try
+        {
+            byte[] digest = MessageDigest.getInstance("SHA-1")
+                .digest(Files.readAllBytes(f.toPath()));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest)
+                sb.append(String.format("%02x", b & 0xff));
+            return sb.toString();
+        }
+        catch (NoSuchAlgorithmException nsaEx)
+        {
+            throw new IOException(nsaEx);
+        }
+    }
+
+    /**
+     * Without a compiler, read the class file compiled next to its
+     * source
+     */
+    private byte[] readClassFile(String name)
+    {
+        File inFile = new File(m_sourceDirRoot,
+            name.replace('.', File.separatorChar) + ".class");
+        try (FileInputStream in = new FileInputStream(inFile))
+        {
+            byte[] bytecode = new byte[(int)inFile.length()];
+            int n = 0;
+            while (n < bytecode.length)
+            {
+                int got = in.read(bytecode, n, bytecode.length - n);
+                if (got < 0)
+                    return null;
+                n += got;
+            }
+
+            // Return the bytecode
+            return bytecode;
+        }
+        catch (java.io.IOException ioEx)
+        {
+            return null;
+        }
+    }
+
+
     // Internal members
     private File m_sourceDirRoot;
-    private String m_classpath;
-    
-    
-    // Test driver
+    private volatile String m_classpath;
+    private final Object m_compileLock = new Object();
+    private final Map<String, PackageState> m_packages = new ConcurrentHashMap<>();
+    private final Map<String, Source> m_sources = new ConcurrentHashMap<>();
+    private final Map<String, byte[]> m_compiled = new ConcurrentHashMap<>();
+    private StandardJavaFileManager m_fileManager = null;
+    private volatile String m_lastErrors = null;
+    private volatile int m_compileCount = 0;
+
+
+    // Test driver: java CompilerClassLoader sourceRoot className
     public static void main(String[] args)
         throws Exception
     {
-        CompilerClassLoader cl = 
-            new CompilerClassLoader(new File("C:\\"));
-        cl.loadClass("Test.PkgHello").newInstance();
+        CompilerClassLoader cl =
+            new CompilerClassLoader(new File(args.length > 0 ? args[0] : "C:\\"));
+        String name = args.length > 1 ? args[1] : "Test.PkgHello";
+
+        long begin = System.nanoTime();
+        cl.loadClass(name).newInstance();
+        System.out.println("First load: "
+            + (System.nanoTime() - begin) / 1000000 + " ms");
+
+        // A fresh loader over the same strategy only recompiles what
+        // changed since
+        begin = System.nanoTime();
+        new StrategyClassLoader(cl).loadClass(name);
+        System.out.println("Reload: "
+            + (System.nanoTime() - begin) / 1000000 + " ms, "
+            + cl.getCompileCount() + " compiles");
     }
-}        
\ No newline at end of file
+}
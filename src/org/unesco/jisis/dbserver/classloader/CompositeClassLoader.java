@@ -6,16 +6,120 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 
 /**
+ * CompositeClassLoader looks classes, resources and native libraries up in
+ * a list of delegate strategies.
  *
+ * <P>Rather than walking every delegate on every lookup, it keeps:
+ * <UL>
+ * <LI>an index of which delegate supplied each package, asked first next
+ * time (this assumes a package lives in one delegate; if the indexed
+ * delegate misses, all delegates are probed again);</LI>
+ * <LI>a bounded cache of names no delegate had.</LI>
+ * </UL>
+ * Both are dropped when delegates are added or removed.
+ *
+ * <P>On a lookup the index can't answer, the delegates are probed in
+ * parallel on a shared pool. Under {@link Policy#ORDERED} the answer is the
+ * one from the earliest delegate in the list, as with a sequential walk;
+ * under {@link Policy#FIRST_WINS} it is whichever answer arrives first.
+ *
+ * <P>Under ORDERED the index gives up shadowing in one case. A package is
+ * indexed to the delegate that first supplied one of its classes, and a
+ * class of it that an earlier delegate also defines is then served by the
+ * indexed delegate. Once the indexed delegate misses a class another
+ * delegate has, the package is known to be split: its lookups skip the
+ * index from then on and take the earliest delegate's answer. Where
+ * shadowing matters, keep a package in one delegate.
+ * <code>jisis.composite.policy</code>, <code>jisis.composite.parallel</code>,
+ * <code>jisis.composite.misses</code> and <code>jisis.composite.threads</code>
+ * set the defaults.
  */
 public class CompositeClassLoader extends ClassLoader
         implements IClassLoaderStrategy {
+
+    static {
+        registerAsParallelCapable();
+    }
+
+    /**
+     * Which answer wins when several delegates are probed at once
+     */
+    public enum Policy {
+        /** the earliest delegate in the list that has it */
+        ORDERED,
+        /** whichever delegate answers first */
+        FIRST_WINS
+    }
+
+    /**
+     * What a probe found, and where
+     */
+    private static final class Hit<T> {
+
+        final T value;
+        final IClassLoaderStrategy from;
+
+        Hit(T value, IClassLoaderStrategy from) {
+            this.value = value;
+            this.from = from;
+        }
+    }
+
+    /**
+     * Pool threads; a Composite nested in another probes inline on them
+     */
+    private static final class ProbeThread extends Thread {
+
+        ProbeThread(Runnable r, String name) {
+            super(r, name);
+            setDaemon(true);
+        }
+    }
+
+    private static ExecutorService s_probePool = null;
+
     // Internal members
     //
-
-    private final List<IClassLoaderStrategy> loaders_ = new ArrayList<>();
+    // Copy-on-write: lookups from many threads walk the list without
+    // locking, and addLoader/removeLoader are rare
+    private final List<IClassLoaderStrategy> loaders_
+            = new CopyOnWriteArrayList<>();
+
+    // Package index and negative cache; keys are prefixed by the kind of
+    // lookup ('c'lass, 'r'esource, 'l'ibrary)
+    private final ConcurrentHashMap<String, IClassLoaderStrategy> owners_
+            = new ConcurrentHashMap<>();
+    private final Set<String> misses_ = ConcurrentHashMap.newKeySet();
+    // Packages found in more than one delegate
+    private final Set<String> split_ = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger generation_ = new AtomicInteger();
+
+    private volatile Policy policy_ = defaultPolicy();
+    private volatile boolean parallel_ = Boolean.parseBoolean(
+            System.getProperty("jisis.composite.parallel", "true"));
+    private final int maxMisses_
+            = Integer.getInteger("jisis.composite.misses", 4096);
+
+    private final AtomicLong indexHits_ = new AtomicLong();
+    private final AtomicLong negativeHits_ = new AtomicLong();
+    private final AtomicLong probes_ = new AtomicLong();
 
     /**
      *
@@ -64,16 +168,94 @@ public class CompositeClassLoader extends ClassLoader
      */
     public void addLoader(IClassLoaderStrategy cls) {
         loaders_.add(cls);
+        invalidate();
     }
 
     /**
-     *
-     * /**
      *
      * @param cls
      */
     public void removeLoader(IClassLoaderStrategy cls) {
         loaders_.remove(cls);
+        invalidate();
+    }
+
+    /**
+     *
+     * @return the delegates, in the order they are asked
+     */
+    public List<IClassLoaderStrategy> getLoaders() {
+        return new ArrayList<>(loaders_);
+    }
+
+    /**
+     * Put a delegate in another's place, e.g. a decorator around it.
+     *
+     * @param old the delegate to replace
+     * @param cls its replacement
+     */
+    public void replaceLoader(IClassLoaderStrategy old, IClassLoaderStrategy cls) {
+        int i = loaders_.indexOf(old);
+        if (i >= 0) {
+            loaders_.set(i, cls);
+            invalidate();
+        }
+    }
+
+    /**
+     * Forget the package index and the negative cache, e.g. after a
+     * delegate gained or lost classes.
+     */
+    public void invalidate() {
+        generation_.incrementAndGet();
+        owners_.clear();
+        misses_.clear();
+        split_.clear();
+    }
+
+    public Policy getPolicy() {
+        return policy_;
+    }
+
+    /**
+     *
+     * @param policy which answer wins when delegates are probed at once
+     */
+    public void setPolicy(Policy policy) {
+        policy_ = policy;
+    }
+
+    public boolean isParallel() {
+        return parallel_;
+    }
+
+    /**
+     *
+     * @param parallel false to probe delegates one at a time, in order
+     */
+    public void setParallel(boolean parallel) {
+        parallel_ = parallel;
+    }
+
+    /**
+     * @return lookups answered by the delegate the package index named
+     */
+    public long getIndexHitCount() {
+        return indexHits_.get();
+    }
+
+    /**
+     * @return lookups answered by the negative cache
+     */
+    public long getNegativeHitCount() {
+        return negativeHits_.get();
+    }
+
+    /**
+     * @return lookups that probed every delegate
+     */
+    public long getProbeCount() {
+        return probes_.get();
     }
 
     /**
@@ -85,18 +267,10 @@ public class CompositeClassLoader extends ClassLoader
      */
     @Override
     public byte[] findClassBytes(String className) {
-        byte[] bytecode = null;
-
-        for (IClassLoaderStrategy strat : loaders_) {
-
-            bytecode = strat.findClassBytes(className);
-
-            if (bytecode != null) {
-                return bytecode;
-            }
-        }
-
-        return bytecode;
+        int dot = className.lastIndexOf('.');
+        return lookup('c', className,
+                dot < 0 ? "" : className.substring(0, dot),
+                (strat) -> strat.findClassBytes(className));
     }
 
     /**
@@ -107,18 +281,10 @@ public class CompositeClassLoader extends ClassLoader
      */
     @Override
     public URL findResourceURL(String resourceName) {
-        URL resource = null;
-
-        for (IClassLoaderStrategy strat : loaders_) {
-
-            resource = strat.findResourceURL(resourceName);
-
-            if (resource != null) {
-                return resource;
-            }
-        }
-
-        return resource;
+        int slash = resourceName.lastIndexOf('/');
+        return lookup('r', resourceName,
+                slash < 0 ? "" : resourceName.substring(0, slash),
+                (strat) -> strat.findResourceURL(resourceName));
     }
 
     /**
@@ -151,18 +317,159 @@ public class CompositeClassLoader extends ClassLoader
      */
     @Override
     public String findLibraryPath(String libraryName) {
-        String libPath = null;
+        return lookup('l', libraryName, null,
+                (strat) -> strat.findLibraryPath(libraryName));
+    }
 
-        for (IClassLoaderStrategy strat : loaders_) {
+    /**
+     * One lookup: negative cache, then the delegate indexed for the
+     * package, then all delegates.
+     *
+     * @param kind 'c', 'r' or 'l'
+     * @param name what is looked up
+     * @param pkg package to index the answer under, or null
+     * @param find the lookup to make on a delegate
+     */
+    private <T> T lookup(char kind, String name, String pkg,
+            Function<IClassLoaderStrategy, T> find) {
+        IClassLoaderStrategy[] loaders
+                = loaders_.toArray(new IClassLoaderStrategy[0]);
+        if (loaders.length == 0) {
+            return null;
+        }
+
+        String key = kind + name;
+        if (misses_.contains(key)) {
+            negativeHits_.incrementAndGet();
+            return null;
+        }
 
-            libPath = strat.findLibraryPath(libraryName);
+        int generation = generation_.get();
+        String ownerKey = pkg == null ? null : kind + pkg;
+        IClassLoaderStrategy owner = ownerKey == null
+                || (policy_ == Policy.ORDERED && split_.contains(ownerKey))
+                ? null : owners_.get(ownerKey);
+        if (owner != null) {
+            T value = find.apply(owner);
+            if (value != null) {
+                indexHits_.incrementAndGet();
+                return value;
+            }
+        }
 
-            if (libPath != null) {
-                return libPath;
+        probes_.incrementAndGet();
+        Hit<T> hit = loaders.length == 1 || !parallel_
+                || Thread.currentThread() instanceof ProbeThread
+                ? probeInOrder(loaders, find)
+                : probeInParallel(loaders, find);
+
+        // Don't let a lookup that started before addLoader/removeLoader
+        // repopulate what they cleared
+        if (generation_.get() == generation) {
+            if (hit != null) {
+                if (ownerKey != null) {
+                    IClassLoaderStrategy previous = owners_.put(ownerKey, hit.from);
+                    if (previous != null && previous != hit.from) {
+                        split_.add(ownerKey);
+                    }
+                }
+            } else if (!Thread.currentThread().isInterrupted()) {
+                if (misses_.size() >= maxMisses_) {
+                    misses_.clear();
+                }
+                misses_.add(key);
             }
         }
+        return hit == null ? null : hit.value;
+    }
 
-        return libPath;
+    private static <T> Hit<T> probeInOrder(IClassLoaderStrategy[] loaders,
+            Function<IClassLoaderStrategy, T> find) {
+        for (IClassLoaderStrategy strat : loaders) {
+            T value = find.apply(strat);
+            if (value != null) {
+                return new Hit<>(value, strat);
+            }
+        }
+        return null;
+    }
+
+    private <T> Hit<T> probeInParallel(IClassLoaderStrategy[] loaders,
+            Function<IClassLoaderStrategy, T> find) {
+        CompletionService<Hit<T>> completion
+                = new ExecutorCompletionService<>(probePool());
+        List<Future<Hit<T>>> futures = new ArrayList<>(loaders.length);
+        for (IClassLoaderStrategy strat : loaders) {
+            futures.add(completion.submit(() -> {
+                T value = find.apply(strat);
+                return value == null ? null : new Hit<>(value, strat);
+            }));
+        }
+
+        try {
+            if (policy_ == Policy.FIRST_WINS) {
+                for (int i = 0; i < loaders.length; i++) {
+                    Hit<T> hit = result(completion.take());
+                    if (hit != null) {
+                        return hit;
+                    }
+                }
+            } else {
+                for (Future<Hit<T>> future : futures) {
+                    Hit<T> hit = result(future);
+                    if (hit != null) {
+                        return hit;
+                    }
+                }
+            }
+            return null;
+        } catch (InterruptedException iEx) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            // Delegates may be mid-I/O; let them finish rather than
+            // interrupting them
+            for (Future<Hit<T>> future : futures) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * A probe that threw counts as a miss, as it couldn't supply the class
+     */
+    private static <T> Hit<T> result(Future<Hit<T>> future)
+            throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException | CancellationException ex) {
+            return null;
+        }
+    }
+
+    private static synchronized ExecutorService probePool() {
+        if (s_probePool == null) {
+            int threads = Integer.getInteger("jisis.composite.threads",
+                    Math.max(4, Runtime.getRuntime().availableProcessors()));
+            final AtomicInteger threadNumber = new AtomicInteger();
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads,
+                    30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    (Runnable r) -> new ProbeThread(r,
+                            "CompositeClassLoader-probe-"
+                            + threadNumber.incrementAndGet()));
+            pool.allowCoreThreadTimeOut(true);
+            s_probePool = pool;
+        }
+        return s_probePool;
+    }
+
+    private static Policy defaultPolicy() {
+        try {
+            return Policy.valueOf(System.getProperty("jisis.composite.policy",
+                    "ORDERED").toUpperCase());
+        } catch (IllegalArgumentException iaEx) {
+            return Policy.ORDERED;
+        }
     }
 
     /**
@@ -176,13 +483,20 @@ public class CompositeClassLoader extends ClassLoader
     @Override
     protected Class findClass(String name)
             throws ClassNotFoundException {
-        byte[] classBytes = findClassBytes(name);
+        synchronized (getClassLoadingLock(name)) {
+            Class loaded = findLoadedClass(name);
+            if (loaded != null) {
+                return loaded;
+            }
 
-        if (classBytes == null) {
-            throw new ClassNotFoundException();
-        }
+            byte[] classBytes = findClassBytes(name);
 
-        return defineClass(name, classBytes, 0, classBytes.length);
+            if (classBytes == null) {
+                throw new ClassNotFoundException();
+            }
+
+            return defineClass(name, classBytes, 0, classBytes.length);
+        }
     }
 
     // Test driver
@@ -4,8 +4,13 @@ import java.io.*;
 import java.net.URL;
 
 public class FileSystemClassLoader extends ClassLoader
-    implements IClassLoaderStrategy
+    implements IClassLoaderStrategy, IVersioningStrategy
 {
+    static
+    {
+        registerAsParallelCapable();
+    }
+
     /**
      * Default constructor uses the home directory of the JDK as its
      * root in the filesystem.
@@ -71,16 +76,18 @@ public class FileSystemClassLoader extends ClassLoader
             // "." represents a directory separator character 
             // (backslash on Windows, slash on Unix, colon on Mac).
             //
-            String pathName = m_root + File.separatorChar +
-                className.replace('.', File.separatorChar) + 
-                ".class";
+            String pathName = classPath(className);
                
-            // Try to open the file and read in its contents
+            // Try to open the file and read in all of its contents;
+            // available() and a single read() may both come up short
             //
-            FileInputStream inFile =
-                new FileInputStream(pathName);
-            byte[] classBytes = new byte[inFile.available()];
-            inFile.read(classBytes);
+            File classFile = new File(pathName);
+            byte[] classBytes = new byte[(int) classFile.length()];
+            try (DataInputStream inFile =
+                     new DataInputStream(new FileInputStream(classFile)))
+            {
+                inFile.readFully(classBytes);
+            }
 
             return classBytes;
         }
@@ -90,6 +97,26 @@ public class FileSystemClassLoader extends ClassLoader
         }
     }
     
+    /**
+     * The class file's size and modification time, or null if there is
+     * no class file
+     */
+    public String getClassVersion(String className)
+    {
+        File classFile = new File(classPath(className));
+        if (!classFile.isFile())
+        {
+            return null;
+        }
+        return classFile.length() + ":" + classFile.lastModified();
+    }
+
+    private String classPath(String className)
+    {
+        return m_root + File.separatorChar +
+            className.replace('.', File.separatorChar) + ".class";
+    }
+    
     /**
      * Return URL for resource given by resourceName
      */
@@ -125,15 +152,24 @@ public class FileSystemClassLoader extends ClassLoader
     public Class findClass(String name)
         throws ClassNotFoundException
     {
-        byte[] classBytes = findClassBytes(name);
-        
-        if (classBytes==null)
+        synchronized (getClassLoadingLock(name))
         {
-            throw new ClassNotFoundException();
-        }
-        else
-        {
-            return defineClass(name, classBytes, 0, classBytes.length);
+            Class loaded = findLoadedClass(name);
+            if (loaded != null)
+            {
+                return loaded;
+            }
+
+            byte[] classBytes = findClassBytes(name);
+        
+            if (classBytes==null)
+            {
+                throw new ClassNotFoundException();
+            }
+            else
+            {
+                return defineClass(name, classBytes, 0, classBytes.length);
+            }
         }
     }
     
@@ -3,8 +3,8 @@ package org.unesco.jisis.dbserver.classloader;
 import java.io.FileInputStream;
 import java.net.URL;
 import java.util.Enumeration;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 class ByteArray implements java.io.Serializable {
     
@@ -22,13 +22,26 @@ class ByteArray implements java.io.Serializable {
 }
 
 /**
- * HashtableClassLoader
+ * HashtableClassLoader serves classes put into it from memory: a Map of
+ * byte arrays on the heap, or an {@link OffHeapClassStore}. The default
+ * constructors use an off-heap store when jisis.classstore is "direct" or
+ * "mapped". With releaseDefined set (jisis.classstore.release=true), a
+ * class's bytes are removed as soon as the class is defined, for
+ * deployments whose bytecode is only ever read once.
  */
-public class HashtableClassLoader extends java.lang.ClassLoader implements IClassLoaderStrategy {
+public class HashtableClassLoader extends java.lang.ClassLoader
+        implements IClassLoaderStrategy, IReleasingStrategy {
+
+    static {
+        registerAsParallelCapable();
+    }
 
       // Internal members
     //
     private Map<String, ByteArray> classTable_;
+    private OffHeapClassStore store_;
+    private volatile boolean releaseDefined_
+            = Boolean.getBoolean("jisis.classstore.release");
 
     /**
      *
@@ -50,7 +63,33 @@ public class HashtableClassLoader extends java.lang.ClassLoader implements IClas
      * @param parent
      */
     public HashtableClassLoader(ClassLoader parent) {
-        this(parent, new HashMap<String, ByteArray>());
+        super(parent);
+
+        String store = System.getProperty("jisis.classstore", "heap");
+        if ("direct".equalsIgnoreCase(store) || "mapped".equalsIgnoreCase(store)) {
+            store_ = new OffHeapClassStore();
+        } else {
+            classTable_ = new ConcurrentHashMap<>();
+        }
+    }
+
+    /**
+     *
+     * @param store off-heap store to keep the classes in
+     */
+    public HashtableClassLoader(OffHeapClassStore store) {
+        this(HashtableClassLoader.class.getClassLoader(), store);
+    }
+
+    /**
+     *
+     * @param parent
+     * @param store off-heap store to keep the classes in
+     */
+    public HashtableClassLoader(ClassLoader parent, OffHeapClassStore store) {
+        super(parent);
+
+        store_ = store;
     }
 
     /**
@@ -70,7 +109,70 @@ public class HashtableClassLoader extends java.lang.ClassLoader implements IClas
      * @param bytes
      */
     public void putClass(String className, byte[] bytes) {
-        classTable_.put(className, new ByteArray(bytes));
+        if (store_ != null) {
+            store_.put(className, bytes);
+        } else {
+            classTable_.put(className, new ByteArray(bytes));
+        }
+    }
+
+    /**
+     *
+     * @param className
+     * @return false if the class wasn't there
+     */
+    public boolean removeClass(String className) {
+        if (store_ != null) {
+            return store_.remove(className);
+        }
+        return classTable_.remove(className) != null;
+    }
+
+    /**
+     * Remove each class's bytes once it has been defined.
+     *
+     * @param releaseDefined
+     */
+    public void setReleaseDefined(boolean releaseDefined) {
+        releaseDefined_ = releaseDefined;
+    }
+
+    public boolean isReleaseDefined() {
+        return releaseDefined_;
+    }
+
+    /**
+     *
+     * @return class bytes held, on or off the heap
+     */
+    public long getBytesHeld() {
+        if (store_ != null) {
+            return store_.getBytesHeld();
+        }
+        long bytes = 0;
+        for (ByteArray byteArray : classTable_.values()) {
+            bytes += byteArray.getBytes().length;
+        }
+        return bytes;
+    }
+
+    /**
+     *
+     * @return the off-heap store, or null if classes are kept on the heap
+     */
+    public OffHeapClassStore getStore() {
+        return store_;
+    }
+
+    /**
+     * Called by StrategyClassLoader once it has defined the class
+     * @param className
+     */
+    @Override
+    public void classDefined(String className) {
+        if (releaseDefined_) {
+            removeClass(className);
+        }
     }
 
     /**
@@ -81,6 +183,9 @@ public class HashtableClassLoader extends java.lang.ClassLoader implements IClas
      */
     @Override
     public byte[] findClassBytes(String className) {
+        if (store_ != null) {
+            return store_.get(className);
+        }
         try {
             ByteArray byteArray = classTable_.get(className);
             byte[] bytes = byteArray.getBytes();
@@ -129,12 +234,21 @@ public class HashtableClassLoader extends java.lang.ClassLoader implements IClas
     @Override
     public Class findClass(String className)
             throws ClassNotFoundException {
-        byte[] bytes = findClassBytes(className);
-        if (bytes == null) {
-            throw new ClassNotFoundException();
-        }
+        synchronized (getClassLoadingLock(className)) {
+            Class loaded = findLoadedClass(className);
+            if (loaded != null) {
+                return loaded;
+            }
+
+            byte[] bytes = findClassBytes(className);
+            if (bytes == null) {
+                throw new ClassNotFoundException();
+            }
 
-        return defineClass(className, bytes, 0, bytes.length);
+            Class defined = defineClass(className, bytes, 0, bytes.length);
+            classDefined(className);
+            return defined;
+        }
     }
 
   
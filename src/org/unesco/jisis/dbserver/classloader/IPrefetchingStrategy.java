@@ -0,0 +1,18 @@
+package org.unesco.jisis.dbserver.classloader;
+
+/**
+ * Implemented by ClassLoaderStrategies that can fetch all of a deployment's
+ * classes in one go. ServerManager.deployService calls prefetch() before
+ * any of the deployment's classes are asked for, so later lookups don't
+ * each cost a round trip.
+ */
+public interface IPrefetchingStrategy
+{
+    /**
+     * Fetch every class the strategy can, and keep them for later
+     * lookups.
+     *
+     * @return number of classes fetched
+     */
+    public int prefetch() throws Exception;
+}
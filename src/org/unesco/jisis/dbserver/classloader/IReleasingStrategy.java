@@ -0,0 +1,15 @@
+package org.unesco.jisis.dbserver.classloader;
+
+/**
+ * Implemented by ClassLoaderStrategies that can let go of a class's
+ * bytes once it has been defined. StrategyClassLoader calls
+ * classDefined() after defining a class from the strategy's bytes.
+ */
+public interface IReleasingStrategy
+{
+    /**
+     * The class has been defined from the bytes findClassBytes()
+     * returned.
+     */
+    public void classDefined(String className);
+}
@@ -0,0 +1,17 @@
+package org.unesco.jisis.dbserver.classloader;
+
+/**
+ * Implemented by ClassLoaderStrategies that can tell, without fetching
+ * it, which version of a class they would return. A
+ * CachingClassLoaderStrategy only serves a persisted copy of a class
+ * whose version still matches.
+ */
+public interface IVersioningStrategy
+{
+    /**
+     * A token that changes whenever findClassBytes() would return
+     * different bytes, such as the class file's size and modification
+     * time; null if the class isn't there or the version can't be told.
+     */
+    public String getClassVersion(String className);
+}
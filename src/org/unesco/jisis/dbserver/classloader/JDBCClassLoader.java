@@ -1,18 +1,74 @@
 package org.unesco.jisis.dbserver.classloader;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
 import java.sql.*;
 import java.util.Enumeration;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
 
+/**
+ * JDBCClassLoader retrieves bytecode from a database table.
+ *
+ * <P>Lookups run a PreparedStatement that is prepared once per connection
+ * and reused; the bytecode column is read as a stream, so BLOB and
+ * LONGVARBINARY columns work alike. Connections come from a small pool fed
+ * by a {@link ConnectionFactory} (a DataSource's getConnection, or
+ * DriverManager), or from a single Connection supplied by the caller.
+ *
+ * <P>If a prefetch query is set, {@link #prefetch()} (called by
+ * ServerManager.deployService) loads every class it returns in one round
+ * trip, and lookups for those classes never reach the database.
+ *
+ * <P>If a version query is set, {@link #getClassVersion(String)} answers
+ * with it, so a CachingClassLoaderStrategy can serve its persisted copy
+ * of a class without reading the bytecode column again.
+ */
 public class JDBCClassLoader extends ClassLoader
-    implements IClassLoaderStrategy
+    implements IClassLoaderStrategy, IPrefetchingStrategy, IVersioningStrategy
 {
+    static
+    {
+        registerAsParallelCapable();
+    }
+
+    /**
+     * Supplies new Connections to the pool; <CODE>dataSource::getConnection</CODE>
+     * will do.
+     */
+    public interface ConnectionFactory
+    {
+        public Connection getConnection() throws SQLException;
+    }
+
+    /**
+     * A pooled Connection and the statement prepared on it
+     */
+    private static final class Pooled
+    {
+        final Connection connection;
+        PreparedStatement lookup = null;
+        PreparedStatement version = null;
+
+        Pooled(Connection connection)
+        {
+            this.connection = connection;
+        }
+    }
+
     /**
      * Constructor.
      *
      * The SQL statement must return at least one row, the first
      * column of which will be a BINARY column, and must contain a
      * ? where the name of the fully-qualified classname will appear.
+     * The first ? in the statement is that placeholder, and the only
+     * parameter; older statements that quote it, as '?', still work.
      * Example:
      * "SELECT bytecode FROM class_tbl WHERE class_tbl.name = ?"
      *
@@ -31,40 +87,224 @@ public class JDBCClassLoader extends ClassLoader
      * The SQL statement must return at least one row, the first
      * column of which will be a BINARY column, and must contain a
      * ? where the name of the fully-qualified classname will appear.
+     * The first ? in the statement is that placeholder, and the only
+     * parameter; older statements that quote it, as '?', still work.
      * Example:
      * "SELECT bytecode FROM class_tbl WHERE class_tbl.name = ?"
      *
-     * @param parent The parent ClassLoader (in the 1.2 JDK scheme 
+     * @param parent The parent ClassLoader (in the 1.2 JDK scheme
      *   of things)
      * @param conn The JDBC Connection to use. Must be already
-     *   connected.
+     *   connected. It is shared by all lookups and is not closed.
      * @param sql The SQL statement to execute to retrieve the
      *   bytecode.
      */
-    public JDBCClassLoader(ClassLoader parent, 
-                           Connection conn, String sql)
+    public JDBCClassLoader(ClassLoader parent,
+                           final Connection conn, String sql)
+    {
+        this(parent, () -> conn, sql, 1, false);
+    }
+    /**
+     * Constructor taking a source of Connections, which are pooled.
+     *
+     * @param factory where new Connections come from
+     * @param sql The SQL statement to execute to retrieve the
+     *   bytecode, as above.
+     * @param poolSize most Connections open at once
+     */
+    public JDBCClassLoader(ConnectionFactory factory, String sql,
+                           int poolSize)
+    {
+        this(JDBCClassLoader.class.getClassLoader(), factory, sql,
+             poolSize, true);
+    }
+    /**
+     * Constructor taking a source of Connections, which are pooled.
+     *
+     * @param parent The parent ClassLoader
+     * @param factory where new Connections come from
+     * @param sql The SQL statement to execute to retrieve the
+     *   bytecode, as above.
+     * @param poolSize most Connections open at once
+     */
+    public JDBCClassLoader(ClassLoader parent, ConnectionFactory factory,
+                           String sql, int poolSize)
+    {
+        this(parent, factory, sql, poolSize, true);
+    }
+
+    private JDBCClassLoader(ClassLoader parent, ConnectionFactory factory,
+                            String sql, int poolSize, boolean ownsConnections)
     {
         // Set parent ClassLoader
         //
         super(parent);
 
-        // Store the JDBC settings
+        // Store the JDBC settings. The SQL used to have the name pasted
+        // into it, so '?' was written quoted; a parameter mustn't be.
         //
-        m_connection = conn;
-        m_sql = new String(sql);
+        m_factory = factory;
+        m_sql = unquotePlaceholder(sql);
+        m_ownsConnections = ownsConnections;
+        m_permits = new Semaphore(Math.max(1, poolSize), true);
+        m_idle = new ArrayBlockingQueue<>(Math.max(1, poolSize));
+    }
+
+
+    /**
+     * Unquote the class-name placeholder, the first ? in the statement,
+     * if it is written '?'. Any other '?' is left alone.
+     */
+    static String unquotePlaceholder(String sql)
+    {
+        int q = sql.indexOf('?');
+        if (q > 0 && q + 1 < sql.length()
+            && sql.charAt(q - 1) == '\'' && sql.charAt(q + 1) == '\'')
+        {
+            return sql.substring(0, q - 1) + "?" + sql.substring(q + 2);
+        }
+        return sql;
     }
 
 
+    /**
+     * Set the query prefetch() runs. It takes no parameters and returns
+     * rows of (classname, bytecode), e.g.
+     * "SELECT classname, bytecode FROM class_tbl WHERE deployment = 'x'"
+     */
+    public void setPrefetchQuery(String sql)
+    {
+        m_prefetchSql = sql;
+    }
+    public String getPrefetchQuery()
+    {
+        return m_prefetchSql;
+    }
+
+    /**
+     * Set the query getClassVersion() runs. Like the lookup statement it
+     * takes the class name as its one parameter, and returns a single
+     * column that changes whenever the bytecode does, e.g.
+     * "SELECT modified FROM class_tbl WHERE classname = ?"
+     */
+    public void setVersionQuery(String sql)
+    {
+        m_versionSql = sql == null ? null : unquotePlaceholder(sql);
+    }
+    public String getVersionQuery()
+    {
+        return m_versionSql;
+    }
+
+    /**
+     * The version query's answer for the class; null if no version query
+     * is set, the class isn't there, the query failed, or its bytes were
+     * prefetched and are already here.
+     */
+    public String getClassVersion(String className)
+    {
+        String sql = m_versionSql;
+        if (sql == null || m_prefetched.containsKey(className))
+        {
+            return null;
+        }
+
+        Pooled p;
+        try
+        {
+            p = borrow();
+        }
+        catch (SQLException sqlEx)
+        {
+            return null;
+        }
+
+        boolean ok = false;
+        try
+        {
+            if (p.version == null)
+            {
+                p.version = p.connection.prepareStatement(sql);
+            }
+            p.version.setString(1, className);
+            try (ResultSet rs = p.version.executeQuery())
+            {
+                String version = rs.next() ? rs.getString(1) : null;
+                ok = true;
+                return version;
+            }
+        }
+        catch (SQLException sqlEx)
+        {
+            // The class is fetched, and not persisted
+            return null;
+        }
+        finally
+        {
+            release(p, ok);
+        }
+    }
+
+    /**
+     * Run the prefetch query, if one is set, and keep the classes it
+     * returns.
+     *
+     * @return number of classes fetched
+     */
+    public int prefetch()
+        throws SQLException, IOException
+    {
+        if (m_prefetchSql == null)
+        {
+            return 0;
+        }
+
+        Pooled p = borrow();
+        boolean ok = false;
+        try
+        {
+            int n = 0;
+            try (PreparedStatement stmt =
+                     p.connection.prepareStatement(m_prefetchSql))
+            {
+                stmt.setFetchSize(256);
+                ResultSet rs = stmt.executeQuery();
+                while (rs.next())
+                {
+                    String name = rs.getString(1);
+                    byte[] bytes = readBytes(rs, 2);
+                    if (name != null && bytes != null)
+                    {
+                        m_prefetched.put(name, bytes);
+                        n++;
+                    }
+                }
+            }
+            ok = true;
+            return n;
+        }
+        finally
+        {
+            release(p, ok);
+        }
+    }
+
     /**
      * Return byte array (which will be turned into a Class instance
      * via ClassLoader.defineClass) for class
      */
     public byte[] findClassBytes(String className)
     {
-        byte[] classBytes = retrieveClass(className);
-        return classBytes;
+        // Prefetched bytes are handed out once; the loader defines the
+        // class and has no use for them after that
+        byte[] classBytes = m_prefetched.remove(className);
+        if (classBytes != null)
+        {
+            return classBytes;
+        }
+        return retrieveClass(className);
     }
-    
+
     /**
      * Return URL for resource given by resourceName
      */
@@ -80,7 +320,7 @@ public class JDBCClassLoader extends ClassLoader
     {
         return null;
     }
-    
+
     /**
      * Return full path to native library given by the name
      * libraryName.
@@ -89,89 +329,210 @@ public class JDBCClassLoader extends ClassLoader
     {
         return null;
     }
-    
+
     /**
      * Called by ClassLoader.loadClass when a classname is requested.
-     */    
+     */
     public Class findClass(String className)
         throws ClassNotFoundException
     {
-        byte[] classBytes = findClassBytes(className);
-        if (classBytes==null)
+        synchronized (getClassLoadingLock(className))
         {
-            throw new ClassNotFoundException();
+            Class loaded = findLoadedClass(className);
+            if (loaded != null)
+            {
+                return loaded;
+            }
+
+            byte[] classBytes = findClassBytes(className);
+            if (classBytes==null)
+            {
+                throw new ClassNotFoundException();
+            }
+
+            return defineClass(className, classBytes, 0, classBytes.length);
         }
+    }
 
-        return defineClass(className, classBytes, 0, classBytes.length);
+    /**
+     * Close the pooled Connections (those the loader opened) and their
+     * statements.
+     */
+    public void close()
+    {
+        Pooled p;
+        while ((p = m_idle.poll()) != null)
+        {
+            discard(p);
+        }
     }
 
     /**
      * Internal method to do the actual SQL-retrieval of the bytecode
-     */    
+     */
     private byte[] retrieveClass(String className)
     {
+        Pooled p;
+        try
+        {
+            p = borrow();
+        }
+        catch (SQLException sqlEx)
+        {
+            sqlEx.printStackTrace();
+            return null;
+        }
+
+        boolean ok = false;
         try
         {
-            // Create a SQL Statement
-            Statement stmt = null;
-            stmt = m_connection.createStatement();
-            
-            // Build our SQL statement
-            String pre = m_sql.substring(0, m_sql.indexOf("?"));
-            String post = m_sql.substring(m_sql.indexOf("?")+1, m_sql.length());
-            String sql = pre + className + post;
-            
-            // Do the query
-            ResultSet rs = stmt.executeQuery(sql);
-            if (rs.next())
+            if (p.lookup == null)
+            {
+                p.lookup = p.connection.prepareStatement(m_sql);
+            }
+            p.lookup.setString(1, className);
+            try (ResultSet rs = p.lookup.executeQuery())
             {
-                byte[] bytes = rs.getBytes(1);
+                byte[] bytes = rs.next() ? readBytes(rs, 1) : null;
+                ok = true;
                 return bytes;
             }
-            else
-                return null;
         }
-        catch (Exception ex)
+        catch (SQLException | IOException ex)
         {
             ex.printStackTrace();
             return null;
         }
+        finally
+        {
+            release(p, ok);
+        }
+    }
+
+    /**
+     * Read a binary column as a stream, whatever its size
+     */
+    private static byte[] readBytes(ResultSet rs, int column)
+        throws SQLException, IOException
+    {
+        try (InputStream in = rs.getBinaryStream(column))
+        {
+            if (in == null)
+            {
+                return null;
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) != -1)
+            {
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * Take a Connection from the pool, opening one if none is idle;
+     * waits while poolSize Connections are in use.
+     */
+    private Pooled borrow()
+        throws SQLException
+    {
+        m_permits.acquireUninterruptibly();
+        Pooled p = m_idle.poll();
+        if (p == null)
+        {
+            try
+            {
+                p = new Pooled(m_factory.getConnection());
+            }
+            catch (SQLException | RuntimeException ex)
+            {
+                m_permits.release();
+                throw ex;
+            }
+        }
+        return p;
+    }
+
+    /**
+     * Give a Connection back; one that failed is discarded so the next
+     * borrow() starts afresh.
+     */
+    private void release(Pooled p, boolean ok)
+    {
+        if (!ok || !m_idle.offer(p))
+        {
+            discard(p);
+        }
+        m_permits.release();
+    }
+
+    private void discard(Pooled p)
+    {
+        try
+        {
+            if (p.lookup != null)
+            {
+                p.lookup.close();
+            }
+            if (p.version != null)
+            {
+                p.version.close();
+            }
+            if (m_ownsConnections)
+            {
+                p.connection.close();
+            }
+        }
+        catch (SQLException sqlEx)
+        {
+            // Nothing more to do
+        }
     }
 
     // Internal members
-    //    
-    private Connection m_connection;
-    private String m_sql;
-    
+    //
+    private final ConnectionFactory m_factory;
+    private final String m_sql;
+    private final boolean m_ownsConnections;
+    private final Semaphore m_permits;
+    private final BlockingQueue<Pooled> m_idle;
+    private volatile String m_prefetchSql = null;
+    private volatile String m_versionSql = null;
+    private final Map<String, byte[]> m_prefetched = new ConcurrentHashMap<>();
+
 
     /**
-     * Test driver routine; assumes an IDB database with the following
+     * Test driver routine; assumes a database with the following
      * schema:<BR>
      * CREATE TABLE class_tbl (
-     *   bytecode binary,
+     *   bytecode blob,
      *   classname varchar(80) primary key
      * );
-     */    
+     * <BR>Arguments: JDBC URL (any embedded database will do), then the
+     * class to load.
+     */
     public static void main(String[] args)
         throws Exception
     {
-        // Load the IDB driver
-        Class.forName("jdbc.idbDriver").newInstance();
+        final String url = args[0];
 
-        // Do the JDBC Connection
-        java.util.Properties p = new java.util.Properties();
-        Connection conn =
-            DriverManager.getConnection("jdbc:idb:sample.prp", p);
-
-        // Create the ClassLoader around the SQL statement to
-        // retrieve the bytecode
-        JDBCClassLoader jdbcClassLoader = 
-            new JDBCClassLoader(conn, 
+        // Pool Connections to the database, and prefetch the whole
+        // table before loading
+        JDBCClassLoader jdbcClassLoader =
+            new JDBCClassLoader(() -> DriverManager.getConnection(url),
                 "SELECT bytecode FROM class_tbl " +
-                "WHERE classname = '?'");
-        
-        Class cls = jdbcClassLoader.loadClass("Hello");
+                "WHERE classname = ?", 4);
+        jdbcClassLoader.setPrefetchQuery(
+            "SELECT classname, bytecode FROM class_tbl");
+        System.out.println(jdbcClassLoader.prefetch() + " classes prefetched");
+
+        Class cls = jdbcClassLoader.loadClass(
+            args.length > 1 ? args[1] : "Hello");
         Object h = cls.newInstance();
             // Should print "Hello, world!"
+        jdbcClassLoader.close();
     }
-}    
\ No newline at end of file
+}
@@ -0,0 +1,364 @@
+package org.unesco.jisis.dbserver.classloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * OffHeapClassStore keeps class bytes, and their names, outside the Java
+ * heap: in direct buffers, or in memory-mapped temporary files that the
+ * OS can page out. Entries are appended to slabs (jisis.classstore.slab
+ * bytes, 4MB by default; a larger class gets a slab of its own), and a
+ * slab is dropped once every entry in it has been removed.
+ *
+ * <P>The name index is open-addressed: a hash and a packed (slab, offset)
+ * location per slot, in two flat arrays, so the heap holds about twelve
+ * bytes per class rather than a map entry, a String and a byte[].
+ *
+ * <P>Memory of a dropped direct slab is returned when the buffer is
+ * collected; a mapped slab's file is deleted as soon as it is mapped.
+ */
+public final class OffHeapClassStore {
+
+    /**
+     * Where the slabs live
+     */
+    public enum Kind {
+        DIRECT, MAPPED
+    }
+
+    public static final int DEFAULT_SLAB_SIZE
+            = Integer.getInteger("jisis.classstore.slab", 4 * 1024 * 1024);
+
+    private static final long EMPTY = -1L;
+    private static final long REMOVED = -2L;
+    private static final int ENTRY_OVERHEAD = 8;
+
+    /**
+     * One buffer entries are appended to
+     */
+    private static final class Slab {
+
+        final ByteBuffer buffer;
+        int id;
+        int used = 0;
+        int live = 0;
+
+        Slab(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+    // Internal members
+    //
+    private final Kind kind_;
+    private final int slabSize_;
+    private final List<Slab> slabs_ = new ArrayList<>();
+    private Slab current_ = null;
+    private int[] hashes_;
+    private long[] locations_;
+    private int count_ = 0;
+    private int removed_ = 0;
+    private long bytesHeld_ = 0;
+    private long bytesAllocated_ = 0;
+
+    /**
+     * A store of the kind named by jisis.classstore ("mapped", otherwise
+     * direct buffers)
+     */
+    public OffHeapClassStore() {
+        this("mapped".equalsIgnoreCase(System.getProperty("jisis.classstore"))
+                ? Kind.MAPPED : Kind.DIRECT, DEFAULT_SLAB_SIZE);
+    }
+
+    /**
+     *
+     * @param kind where the slabs live
+     * @param slabSize bytes per slab
+     */
+    public OffHeapClassStore(Kind kind, int slabSize) {
+        kind_ = kind;
+        slabSize_ = Math.max(4096, slabSize);
+        hashes_ = new int[64];
+        locations_ = new long[64];
+        Arrays.fill(locations_, EMPTY);
+    }
+
+    /**
+     * Store a class's bytes, replacing any stored under the name.
+     *
+     * @param className
+     * @param bytes
+     * @throws IllegalStateException if a mapped slab can't be created
+     */
+    public synchronized void put(String className, byte[] bytes) {
+        byte[] name = className.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(name);
+        int slot = find(name, hash);
+        if (slot >= 0) {
+            release(slot);
+        }
+
+        int size = ENTRY_OVERHEAD + name.length + bytes.length;
+        Slab slab = current_;
+        if (slab == null || slab.buffer.capacity() - slab.used < size) {
+            slab = allocate(Math.max(slabSize_, size));
+            if (size <= slabSize_) {
+                current_ = slab;
+            }
+        }
+        int offset = slab.used;
+        ByteBuffer b = slab.buffer.duplicate();
+        b.position(offset);
+        b.putInt(name.length);
+        b.put(name);
+        b.putInt(bytes.length);
+        b.put(bytes);
+        slab.used += size;
+        slab.live += size;
+
+        if ((count_ + removed_ + 1) * 4 > hashes_.length * 3) {
+            rehash();
+        }
+        insert(hash, ((long) slab.id << 32) | offset);
+        count_++;
+        bytesHeld_ += bytes.length;
+    }
+
+    /**
+     *
+     * @param className
+     * @return a copy of the class's bytes, or null if not stored
+     */
+    public synchronized byte[] get(String className) {
+        byte[] name = className.getBytes(StandardCharsets.UTF_8);
+        int slot = find(name, hash(name));
+        if (slot < 0) {
+            return null;
+        }
+        ByteBuffer b = entry(locations_[slot]);
+        int nameLength = b.getInt();
+        b.position(b.position() + nameLength);
+        byte[] bytes = new byte[b.getInt()];
+        b.get(bytes);
+        return bytes;
+    }
+
+    /**
+     *
+     * @param className
+     * @return whether the class is stored
+     */
+    public synchronized boolean contains(String className) {
+        byte[] name = className.getBytes(StandardCharsets.UTF_8);
+        return find(name, hash(name)) >= 0;
+    }
+
+    /**
+     * Remove a class; its space is given back once the rest of its slab
+     * has been removed too.
+     *
+     * @param className
+     * @return false if it wasn't stored
+     */
+    public synchronized boolean remove(String className) {
+        byte[] name = className.getBytes(StandardCharsets.UTF_8);
+        int slot = find(name, hash(name));
+        if (slot < 0) {
+            return false;
+        }
+        release(slot);
+        return true;
+    }
+
+    /**
+     * Remove every class and drop every slab.
+     */
+    public synchronized void clear() {
+        slabs_.clear();
+        current_ = null;
+        hashes_ = new int[64];
+        locations_ = new long[64];
+        Arrays.fill(locations_, EMPTY);
+        count_ = 0;
+        removed_ = 0;
+        bytesHeld_ = 0;
+        bytesAllocated_ = 0;
+    }
+
+    /**
+     *
+     * @return number of classes stored
+     */
+    public synchronized int size() {
+        return count_;
+    }
+
+    /**
+     *
+     * @return class bytes stored, not counting names
+     */
+    public synchronized long getBytesHeld() {
+        return bytesHeld_;
+    }
+
+    /**
+     *
+     * @return off-heap bytes taken by the slabs still in use
+     */
+    public synchronized long getBytesAllocated() {
+        return bytesAllocated_;
+    }
+
+    public Kind getKind() {
+        return kind_;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "OffHeapClassStore[" + kind_ + ", " + count_ + " classes, "
+                + bytesHeld_ + " bytes held, " + bytesAllocated_
+                + " bytes allocated]";
+    }
+
+    private Slab allocate(int capacity) {
+        ByteBuffer buffer;
+        if (kind_ == Kind.MAPPED) {
+            try {
+                File file = File.createTempFile("jisis-classes", ".slab");
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    buffer = raf.getChannel().map(
+                            FileChannel.MapMode.READ_WRITE, 0, capacity);
+                } finally {
+                    if (!file.delete()) {
+                        file.deleteOnExit();
+                    }
+                }
+            } catch (IOException ioEx) {
+                throw new IllegalStateException("can't map a class slab", ioEx);
+            }
+        } else {
+            buffer = ByteBuffer.allocateDirect(capacity);
+        }
+
+        Slab slab = new Slab(buffer);
+        slab.id = slabs_.indexOf(null);
+        if (slab.id < 0) {
+            slab.id = slabs_.size();
+            slabs_.add(slab);
+        } else {
+            slabs_.set(slab.id, slab);
+        }
+        bytesAllocated_ += capacity;
+        return slab;
+    }
+
+    /**
+     * A view of the entry at a location, positioned at its start
+     */
+    private ByteBuffer entry(long location) {
+        ByteBuffer b = slabs_.get((int) (location >>> 32)).buffer.duplicate();
+        b.position((int) location);
+        return b;
+    }
+
+    private void release(int slot) {
+        long location = locations_[slot];
+        ByteBuffer b = entry(location);
+        int nameLength = b.getInt(b.position());
+        int dataLength = b.getInt(b.position() + 4 + nameLength);
+
+        locations_[slot] = REMOVED;
+        count_--;
+        removed_++;
+        bytesHeld_ -= dataLength;
+
+        int id = (int) (location >>> 32);
+        Slab slab = slabs_.get(id);
+        slab.live -= ENTRY_OVERHEAD + nameLength + dataLength;
+        if (slab.live == 0) {
+            if (slab == current_) {
+                // Start it over rather than drop it
+                slab.used = 0;
+            } else {
+                slabs_.set(id, null);
+                bytesAllocated_ -= slab.buffer.capacity();
+            }
+        }
+    }
+
+    /**
+     * Slot holding the name, or -1
+     */
+    private int find(byte[] name, int hash) {
+        int mask = hashes_.length - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            long location = locations_[i];
+            if (location == EMPTY) {
+                return -1;
+            }
+            if (location != REMOVED && hashes_[i] == hash
+                    && nameEquals(location, name)) {
+                return i;
+            }
+        }
+    }
+
+    private boolean nameEquals(long location, byte[] name) {
+        ByteBuffer b = entry(location);
+        if (b.getInt() != name.length) {
+            return false;
+        }
+        for (byte c : name) {
+            if (b.get() != c) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void insert(int hash, long location) {
+        int mask = hashes_.length - 1;
+        int i = hash & mask;
+        while (locations_[i] != EMPTY && locations_[i] != REMOVED) {
+            i = (i + 1) & mask;
+        }
+        if (locations_[i] == REMOVED) {
+            removed_--;
+        }
+        hashes_[i] = hash;
+        locations_[i] = location;
+    }
+
+    /**
+     * Grow the index, or just clear out removed slots if that's enough
+     */
+    private void rehash() {
+        int[] hashes = hashes_;
+        long[] locations = locations_;
+        int capacity = hashes.length;
+        if ((count_ + 1) * 2 > capacity) {
+            capacity *= 2;
+        }
+        hashes_ = new int[capacity];
+        locations_ = new long[capacity];
+        Arrays.fill(locations_, EMPTY);
+        removed_ = 0;
+        for (int i = 0; i < hashes.length; i++) {
+            if (locations[i] >= 0) {
+                insert(hashes[i], locations[i]);
+            }
+        }
+    }
+
+    private static int hash(byte[] name) {
+        int h = Arrays.hashCode(name);
+        return h ^ (h >>> 16);
+    }
+}
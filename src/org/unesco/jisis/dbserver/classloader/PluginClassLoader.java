@@ -3,6 +3,7 @@ package org.unesco.jisis.dbserver.classloader;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.jar.*;
 
 /**
@@ -10,6 +11,17 @@ import java.util.jar.*;
  * of preloading "plugin" classes into the JVM, so that the Plugins
  * can register themselves with whatever "plugin manager" they use.
  *
+ * <P>Plugins are activated (instantiated) on first use through
+ * getPlugin(), or all at once by activateAll() or with
+ * -Djisis.plugins.eager=true. Each jar's Plugin-Class is remembered in
+ * an index file in the plugin directory, so a reload only opens the jars
+ * that changed.
+ *
+ * <P>Each plugin jar gets its own URLClassLoader, so one plugin can be
+ * replaced without touching the others; refresh() does that for whatever
+ * changed in the directory, and watch() calls it as jars come and go.
+ * Plugins don't see each other's classes.
+ *
  * <P>See Chapter 3 of <I>Server-Side Java</I> for a detailed
  * description of how it all works together.
  */
@@ -23,12 +35,25 @@ public final class PluginClassLoader
     {
         public void pluginLoaded(String pluginName);
         public void exception(Exception ex);
+
+        /**
+         * An active plugin's jar was changed or removed, and its
+         * instance dropped; if the jar was changed, pluginLoaded
+         * follows once the new one is activated.
+         */
+        public default void pluginUnloaded(String pluginName) { }
     }
 
     
     // Private data
     //
-    private URLClassLoader urlClassLoader;
+    private static final String INDEX_FILE = ".plugins.idx";
+
+    private final Map<String, Plugin> plugins = new TreeMap<>();
+    private volatile List<String> pluginNames = Collections.emptyList();
+    private File pluginDir;
+    private Listener listener;
+    private final Object updateLock = new Object();
 
     
     /**
@@ -81,8 +106,8 @@ public final class PluginClassLoader
 
 
     /**
-     * Reload the plugins; note that the old URLClassLoader held
-     * internally is released, so if the plugin classes loaded
+     * Reload all the plugins; note that the old URLClassLoaders held
+     * internally are released, so if the plugin classes loaded
      * earlier aren't in use within the app, they'll get GC'ed.
      *
      * <P><B>HOWEVER</B>, if an instance of an earlier-loaded
@@ -100,8 +125,8 @@ public final class PluginClassLoader
         reload(new File(dir), listener);
     }
     /**
-     * Reload the plugins; note that the old URLClassLoader held
-     * internally is released, so if the plugin classes loaded
+     * Reload all the plugins; note that the old URLClassLoaders held
+     * internally are released, so if the plugin classes loaded
      * earlier aren't in use within the app, they'll get GC'ed.
      *
      * <P><B>HOWEVER</B>, if an instance of an earlier-loaded
@@ -111,84 +136,400 @@ public final class PluginClassLoader
      * This is because classes loaded into two separate (non-
      * parentally-related) ClassLoaders are considered separate
      * and unrelated types, even if their contents are identical.
+     * The old URLClassLoaders are also closed, so such instances can't
+     * load any further classes from their jar.
      * @param dir
      * @param listener
      */
     public void reload(File dir, Listener listener) {
-        String[] contents = getPluginDirContents(dir);
+        update(dir, listener, true);
+    }
 
-        List<URL> urls = new ArrayList<>();
-        List<String> plugins = new ArrayList<>();
-        for (String plugin : contents) {
-            try {
-                File jarFile = new File(dir, plugin);
+    /**
+     * Bring the plugins up to date with the plugin directory, touching
+     * only the jars that were added, changed or removed since the last
+     * reload or refresh. Each plugin has its own URLClassLoader, so the
+     * others (and their instances) are left alone; a changed plugin that
+     * was active is activated again from its new jar.
+     */
+    public void refresh() {
+        File dir;
+        Listener l;
+        synchronized (this) {
+            dir = pluginDir;
+            l = listener;
+        }
+        if (dir != null) {
+            update(dir, l, false);
+        }
+    }
+
+    /**
+     * The Listener given to the last reload()
+     */
+    synchronized Listener getListener() {
+        return listener;
+    }
+
+    /**
+     * Start a PluginWatcher that calls refresh() whenever jars in the
+     * plugin directory change.
+     *
+     * @return the running watcher; stop() it when done
+     * @throws IOException if the directory can't be watched
+     */
+    public PluginWatcher watch()
+            throws IOException {
+        PluginWatcher watcher = new PluginWatcher(this, pluginDir);
+        watcher.start();
+        return watcher;
+    }
 
-                Attributes attribs
-                        = new JarFile(jarFile).getManifest().getMainAttributes();
+    private void update(File dir, Listener listener, boolean all) {
+        // A manual reload() can race the watcher's refresh(); one at a
+        // time, so they don't both scan and write the index
+        synchronized (updateLock) {
+            Map<String, IndexEntry> scanned = scan(dir);
 
-                if (attribs.getValue("Plugin-Class") != null) {
-                    String pluginClass
-                            = attribs.getValue("Plugin-Class");
+            List<Plugin> dropped = new ArrayList<>();
+            List<String> reactivate = new ArrayList<>();
+            synchronized (this) {
+                pluginDir = dir;
+                this.listener = listener;
+
+                for (Iterator<Plugin> it = plugins.values().iterator(); it.hasNext();) {
+                    Plugin plugin = it.next();
+                    if (all || !plugin.stamp.equals(scanned.get(plugin.jar))) {
+                        it.remove();
+                        dropped.add(plugin);
+                        if (plugin.instance != null) {
+                            reactivate.add(plugin.pluginClass);
+                        }
+                    }
+                }
+                for (Map.Entry<String, IndexEntry> e : scanned.entrySet()) {
+                    String pluginClass = e.getValue().pluginClass;
+                    if (pluginClass.isEmpty() || plugins.containsKey(e.getKey())) {
+                        continue;
+                    }
+                    try {
+                        URL url = new File(dir, e.getKey()).toURI().toURL();
+                        plugins.put(e.getKey(), new Plugin(e.getKey(), e.getValue(),
+                                URLClassLoader.newInstance(new URL[] { url },
+                                        getClass().getClassLoader())));
+                    } catch (MalformedURLException muEx) {
+                        // Just continue; ignore the file and move on
+                    }
+                }
+
+                List<String> names = new ArrayList<>();
+                for (Plugin plugin : plugins.values()) {
+                    names.add(plugin.pluginClass);
+                }
+                pluginNames = Collections.unmodifiableList(names);
+            }
+
+            for (Plugin plugin : dropped) {
+                if (plugin.close()) {
+                    listener.pluginUnloaded(plugin.pluginClass);
+                }
+            }
 
-                    urls.add(jarFile.toURI().toURL());
-                    plugins.add(pluginClass.trim());
-                    // Need the trim(); getValue() has the
-                    // annoying habit of leaving a trailing
-                    // space on the end of the class, which will
-                    // cause the loadClass() to fail later.
+            // Plugins are activated on first use (getPlugin()); preloading
+            // them all gives them the chance to register (in their static
+            // initializer block) with whatever "PluginManager" they choose
+            // to, at the cost of loading every one of them up front.
+            //
+            if (Boolean.getBoolean("jisis.plugins.eager")) {
+                activateAll();
+            } else {
+                for (String pluginClass : reactivate) {
+                    try {
+                        getPlugin(pluginClass);
+                    } catch (Exception ex) {
+                        // Already passed to the listener
+                    }
                 }
-            } catch (IOException ioEx) {
-                // Just continue; ignore the file and move on
-            } catch (NullPointerException npEx) {
-                // No manifest, perhaps?
             }
-            //catch (Exception x)
-            //{
-            //    x.printStackTrace();
-            //}
         }
+    }
+
+    /**
+     * Read each jar's manifest in parallel, unless the index says the
+     * jar hasn't changed since it was last read.
+     *
+     * @return the Plugin-Class ("" for none) of each jar, by file name
+     */
+    private static Map<String, IndexEntry> scan(File dir) {
+        String[] contents = getPluginDirContents(dir);
+
+        final Map<String, IndexEntry> index = readIndex(dir);
+        final Map<String, IndexEntry> scanned = new ConcurrentHashMap<>();
+        Arrays.stream(contents).parallel().forEach((plugin) -> {
+            File jarFile = new File(dir, plugin);
+            long modified = jarFile.lastModified();
+            long length = jarFile.length();
+            IndexEntry known = index.get(plugin);
+            if (known != null && known.modified == modified
+                    && known.length == length) {
+                scanned.put(plugin, known);
+            } else {
+                scanned.put(plugin, new IndexEntry(modified, length,
+                        readPluginClass(jarFile)));
+            }
+        });
+        if (!scanned.equals(index)) {
+            writeIndex(dir, scanned);
+        }
+        return new TreeMap<>(scanned);
+    }
+
+    /**
+     *
+     * @return the Plugin-Class of every plugin found, in jar name order
+     */
+    public List<String> getPluginNames() {
+        return pluginNames;
+    }
 
-        urlClassLoader
-                = URLClassLoader.newInstance(
-                        (URL[]) urls.toArray(),
-                        getClass().getClassLoader());
+    /**
+     *
+     * @param pluginName
+     * @return whether the plugin has been activated
+     */
+    public boolean isActive(String pluginName) {
+        Plugin plugin = find(pluginName);
+        return plugin != null && plugin.instance != null;
+    }
 
-        // Preload each of the plugins, giving them the chance to
-        // register (in their static initializer block) with whatever
-        // "PluginManager" they choose to.
-        //
-        plugins.forEach((plugin) -> {
+    /**
+     * Return the plugin's instance, activating it on first use.
+     *
+     * @param pluginName the plugin's Plugin-Class
+     * @return the plugin instance, or null if no such plugin was found
+     * @throws Exception if the plugin class can't be loaded or
+     *         instantiated; the Listener is told as well
+     */
+    public Object getPlugin(String pluginName)
+            throws Exception {
+        Plugin plugin = find(pluginName);
+        if (plugin == null) {
+            return null;
+        }
+        Object instance = plugin.instance;
+        if (instance != null) {
+            return instance;
+        }
+        Listener l;
+        synchronized (this) {
+            l = listener;
+        }
+        synchronized (plugin) {
+            if (plugin.instance != null || plugin.loader == null) {
+                return plugin.instance;
+            }
             try {
-                urlClassLoader.loadClass(plugin).newInstance();
-                //urlClassLoader.loadClass(plugin);
-                // For some strange reason, just calling
-                // loadClass() *won't* actually load the class
-                // into the VM; instead, we have to actually
-                // *create* an instance of the Plugin class
-                // before resolution actually takes place. This
-                // would seem to be contrary to the JVM Spec.
-                // If this ever changes, then we can comment out
-                // the first urlClassLoader.loadClass() line and
-                // uncomment the second; the first presumes that
-                // the class *can* be instantiated, which is not
-                // always a safe/good/acceptable assumption.
-
-                listener.pluginLoaded(plugin);
+                // Creating the instance, rather than just calling
+                // loadClass(), makes sure the class is initialized and
+                // its static initializer block has run.
+                plugin.instance
+                        = plugin.loader.loadClass(pluginName).newInstance();
             } catch (Exception ex) {
-                listener.exception(ex);
+                l.exception(ex);
+                throw ex;
             }
-        });
+        }
+        l.pluginLoaded(pluginName);
+        return plugin.instance;
+    }
+
+    /**
+     * Activate every plugin not yet active. Failures go to the Listener.
+     */
+    public void activateAll() {
+        for (String plugin : pluginNames) {
+            try {
+                getPlugin(plugin);
+            } catch (Exception ex) {
+                // Already passed to the listener
+            }
+        }
     }
 
 
     /**
-     * Releases the handle on the URLClassLoader used internally;
-     * this will have the effect of allowing all the plugin classes,
-     * if not referenced anywhere else within the application, to be
-     * GC'ed the next time GC takes place.
+     * Releases the plugins' URLClassLoaders; this will have the effect
+     * of allowing all the plugin classes, if not referenced anywhere
+     * else within the application, to be GC'ed the next time GC takes
+     * place. The plugin jars are closed, so plugin instances still in
+     * use can't load further classes.
      */
     public void unload() {
-        urlClassLoader = null;
+        List<Plugin> dropped;
+        synchronized (this) {
+            dropped = new ArrayList<>(plugins.values());
+            plugins.clear();
+            pluginNames = Collections.emptyList();
+        }
+        for (Plugin plugin : dropped) {
+            plugin.close();
+        }
+    }
+
+    /**
+     * The first plugin, in jar name order, with the given Plugin-Class
+     */
+    private synchronized Plugin find(String pluginName) {
+        for (Plugin plugin : plugins.values()) {
+            if (plugin.pluginClass.equals(pluginName)) {
+                return plugin;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * One plugin jar, its own class loader and, once activated, its
+     * instance
+     */
+    private static final class Plugin {
+
+        final String jar;
+        final IndexEntry stamp;
+        final String pluginClass;
+        URLClassLoader loader;
+        volatile Object instance = null;
+
+        Plugin(String jar, IndexEntry stamp, URLClassLoader loader) {
+            this.jar = jar;
+            this.stamp = stamp;
+            this.pluginClass = stamp.pluginClass;
+            this.loader = loader;
+        }
+
+        /**
+         * Close the loader, and with it the jar
+         *
+         * @return whether the plugin had been active
+         */
+        synchronized boolean close() {
+            if (loader != null) {
+                try {
+                    loader.close();
+                } catch (IOException ioEx) {
+                    // Nothing more to do
+                }
+                loader = null;
+            }
+            boolean wasActive = instance != null;
+            instance = null;
+            return wasActive;
+        }
+    }
+
+    /**
+     * Returns the jar's trimmed Plugin-Class attribute, or "" if it
+     * has none or can't be read.
+     */
+    private static String readPluginClass(File jarFile) {
+        try (JarFile jar = new JarFile(jarFile)) {
+            Manifest manifest = jar.getManifest();
+            String pluginClass = manifest == null ? null
+                    : manifest.getMainAttributes().getValue("Plugin-Class");
+            // Need the trim(); getValue() has the annoying habit of
+            // leaving a trailing space on the end of the class, which
+            // will cause the loadClass() to fail later.
+            return pluginClass == null ? "" : pluginClass.trim();
+        } catch (IOException ioEx) {
+            // Just ignore the file and move on
+            return "";
+        }
+    }
+
+    /**
+     * What was read from a plugin jar, and the jar's modification time
+     * and size when it was read
+     */
+    private static final class IndexEntry {
+
+        final long modified;
+        final long length;
+        final String pluginClass;
+
+        IndexEntry(long modified, long length, String pluginClass) {
+            this.modified = modified;
+            this.length = length;
+            this.pluginClass = pluginClass;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof IndexEntry)) {
+                return false;
+            }
+            IndexEntry e = (IndexEntry) o;
+            return modified == e.modified && length == e.length
+                    && pluginClass.equals(e.pluginClass);
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(modified) * 31 + pluginClass.hashCode();
+        }
+    }
+
+    /**
+     * Read the index kept in the plugin directory: one line per jar,
+     * "name TAB modified TAB length TAB Plugin-Class". A missing or
+     * unreadable index is empty.
+     */
+    private static Map<String, IndexEntry> readIndex(File dir) {
+        Map<String, IndexEntry> index = new HashMap<>();
+        File file = new File(dir, INDEX_FILE);
+        if (!file.isFile()) {
+            return index;
+        }
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), "UTF-8"))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                if (fields.length == 4) {
+                    index.put(fields[0], new IndexEntry(
+                            Long.parseLong(fields[1]),
+                            Long.parseLong(fields[2]), fields[3]));
+                }
+            }
+        } catch (IOException | NumberFormatException ex) {
+            index.clear();
+        }
+        return index;
+    }
+
+    /**
+     * Replace the index; a plugin directory that can't be written to
+     * just goes without one.
+     */
+    private static void writeIndex(File dir, Map<String, IndexEntry> index) {
+        File file = new File(dir, INDEX_FILE);
+        File tmp = new File(dir, INDEX_FILE + ".tmp");
+        try {
+            try (Writer out = new OutputStreamWriter(
+                    new FileOutputStream(tmp), "UTF-8")) {
+                for (Map.Entry<String, IndexEntry> e
+                        : new TreeMap<>(index).entrySet()) {
+                    IndexEntry entry = e.getValue();
+                    out.write(e.getKey() + "\t" + entry.modified + "\t"
+                            + entry.length + "\t" + entry.pluginClass + "\n");
+                }
+            }
+            if (!tmp.renameTo(file)) {
+                file.delete();
+                tmp.renameTo(file);
+            }
+        } catch (IOException ioEx) {
+            tmp.delete();
+        }
     }
 
 
@@ -199,7 +540,7 @@ public final class PluginClassLoader
      * @param dir The File object representing the directory to iterate
      *            through
      */
-    private String[] getPluginDirContents(File dir) {
+    private static String[] getPluginDirContents(File dir) {
         // Sanity check--does the directory exist?
         if ((!dir.exists())
                 || (!dir.isDirectory())) {
@@ -255,5 +596,6 @@ public final class PluginClassLoader
                     System.out.println("Exception:");
                 }
             });
+        pcl.activateAll();
     }
 }
@@ -0,0 +1,167 @@
+package org.unesco.jisis.dbserver.classloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * PluginWatcher watches a plugin directory and calls
+ * {@link PluginClassLoader#refresh()} when jars are added, changed or
+ * removed, so only those plugins are reloaded; the PluginClassLoader's
+ * Listener hears about it.
+ *
+ * <P>Events are debounced: the refresh runs once the directory has been
+ * quiet for the debounce interval (jisis.plugins.debounce, 500 ms by
+ * default), so a jar copied in a burst of writes, or several jars dropped
+ * in at once, cause a single refresh.
+ */
+public class PluginWatcher {
+
+    private static final long DEFAULT_DEBOUNCE_MS
+            = Long.getLong("jisis.plugins.debounce", 500);
+
+    /** refresh after this many quiet intervals even if events keep coming */
+    private static final int MAX_DEBOUNCE_ROUNDS = 20;
+
+    // Internal members
+    //
+    private final PluginClassLoader loader_;
+    private final Path dir_;
+    private final long debounceMs_;
+    private final AtomicInteger refreshes_ = new AtomicInteger();
+    private volatile WatchService watcher_ = null;
+    private Thread thread_ = null;
+
+    /**
+     *
+     * @param loader the loader to refresh
+     * @param dir its plugin directory
+     */
+    public PluginWatcher(PluginClassLoader loader, File dir) {
+        this(loader, dir, DEFAULT_DEBOUNCE_MS);
+    }
+
+    /**
+     *
+     * @param loader the loader to refresh
+     * @param dir its plugin directory
+     * @param debounceMs how long the directory must be quiet before a
+     *        refresh
+     */
+    public PluginWatcher(PluginClassLoader loader, File dir, long debounceMs) {
+        loader_ = loader;
+        dir_ = dir.toPath();
+        debounceMs_ = debounceMs;
+    }
+
+    /**
+     * Start watching; changes from then on are picked up.
+     *
+     * @throws IOException if the directory can't be watched
+     */
+    public synchronized void start()
+            throws IOException {
+        if (watcher_ != null) {
+            return;
+        }
+        WatchService watcher = FileSystems.getDefault().newWatchService();
+        try {
+            dir_.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException ioEx) {
+            watcher.close();
+            throw ioEx;
+        }
+        watcher_ = watcher;
+
+        thread_ = new Thread(() -> watch(watcher), "PluginWatcher-" + dir_);
+        thread_.setDaemon(true);
+        thread_.start();
+    }
+
+    /**
+     * Stop watching. A refresh already under way is finished first.
+     */
+    public synchronized void stop() {
+        WatchService watcher = watcher_;
+        watcher_ = null;
+        if (watcher == null) {
+            return;
+        }
+        try {
+            watcher.close();
+        } catch (IOException ioEx) {
+            // Nothing more to do
+        }
+        try {
+            thread_.join(5 * 1000);
+        } catch (InterruptedException iEx) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     *
+     * @return number of refreshes the watcher has run
+     */
+    public int getRefreshCount() {
+        return refreshes_.get();
+    }
+
+    private void watch(WatchService watcher) {
+        try {
+            while (true) {
+                boolean changed = drain(watcher.take());
+
+                // Wait for the directory to go quiet
+                for (int round = 0; round < MAX_DEBOUNCE_ROUNDS; round++) {
+                    WatchKey key = watcher.poll(debounceMs_, TimeUnit.MILLISECONDS);
+                    if (key == null) {
+                        break;
+                    }
+                    changed |= drain(key);
+                }
+
+                if (changed) {
+                    try {
+                        loader_.refresh();
+                    } catch (RuntimeException rEx) {
+                        loader_.getListener().exception(rEx);
+                    }
+                    refreshes_.incrementAndGet();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ex) {
+            // Stopped
+        }
+    }
+
+    /**
+     * Whether the key's events touch a plugin jar; the loader's own
+     * index file doesn't count
+     */
+    private static boolean drain(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                changed = true;
+            } else {
+                String name = event.context().toString();
+                if (name.endsWith(".jar") || name.endsWith(".zip")) {
+                    changed = true;
+                }
+            }
+        }
+        key.reset();
+        return changed;
+    }
+}
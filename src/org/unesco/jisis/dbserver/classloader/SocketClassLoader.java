@@ -3,14 +3,96 @@ package org.unesco.jisis.dbserver.classloader;
 import java.io.*;
 import java.net.*;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * SocketClassLoader retrieves bytecode for a given class via a
- * HTTP-like protocol. 
+ * SocketClassLoader retrieves bytecode for a given class from a
+ * {@link ClassServer}, over the binary protocol described in
+ * {@link ClassProtocol}.
+ *
+ * <P>Connections are kept open and pooled, so a lookup costs one round
+ * trip rather than a connect and a handshake. Several classes can be asked
+ * for in one request (<CODE>fetchClasses</CODE>), and by default the first
+ * lookup in a package fetches the whole package, after which the rest of
+ * its classes (and its misses) are answered locally. Entries may be
+ * deflated on the wire.
+ *
+ * <P>Class versions (the class file's size and modification time on the
+ * server) are fetched a package at a time, once, so a
+ * CachingClassLoaderStrategy can serve its persisted copies after one
+ * round trip per package instead of refetching the bytes. A server that
+ * doesn't answer versions gets none asked, and nothing is persisted.
  */
 public class SocketClassLoader extends ClassLoader
-    implements IClassLoaderStrategy
+    implements IClassLoaderStrategy, IVersioningStrategy
 {
+    static
+    {
+        registerAsParallelCapable();
+    }
+
+    /**
+     * One open connection to the server
+     */
+    private static final class Connection
+    {
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+        final boolean versions;
+
+        Connection(Socket socket, boolean wantDeflate)
+            throws IOException
+        {
+            this.socket = socket;
+            in = new DataInputStream(
+                new BufferedInputStream(socket.getInputStream(), 1 << 16));
+            out = new DataOutputStream(
+                new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+
+            out.writeInt(ClassProtocol.MAGIC);
+            out.writeInt(ClassProtocol.VERSION);
+            out.writeInt(ClassProtocol.FLAG_VERSIONS
+                | (wantDeflate ? ClassProtocol.FLAG_DEFLATE : 0));
+            out.flush();
+            if (in.readInt() != ClassProtocol.MAGIC
+                || in.readInt() != ClassProtocol.VERSION)
+            {
+                socket.close();
+                throw new IOException("not a class server");
+            }
+            // Flags the server accepted; each entry says whether it is
+            // deflated, so only OP_VERSIONS needs remembering
+            versions = (in.readInt() & ClassProtocol.FLAG_VERSIONS) != 0;
+        }
+
+        void close()
+        {
+            try
+            {
+                out.writeByte(ClassProtocol.OP_CLOSE);
+                out.flush();
+            }
+            catch (IOException ioEx)
+            {
+                // Closing anyway
+            }
+            try
+            {
+                socket.close();
+            }
+            catch (IOException ioEx)
+            {
+                // Nothing more to do
+            }
+        }
+    }
+
     /**
      * Constructor.
      *
@@ -27,7 +109,7 @@ public class SocketClassLoader extends ClassLoader
      * @param host TCP/IP host name to contact
      * @param port TCP/IP port to contact host on
      */
-    public SocketClassLoader(ClassLoader parent, 
+    public SocketClassLoader(ClassLoader parent,
                              String host, int port)
     {
         // Establish the parent ClassLoader
@@ -39,7 +121,32 @@ public class SocketClassLoader extends ClassLoader
         m_host = host;
         m_port = port;
     }
-    
+
+
+    /**
+     * Ask the server to deflate entries worth compressing; takes effect
+     * on new connections.
+     */
+    public void setCompression(boolean compression)
+    {
+        m_compression = compression;
+    }
+    public boolean isCompression()
+    {
+        return m_compression;
+    }
+
+    /**
+     * Fetch a whole package on the first lookup in it (the default).
+     */
+    public void setPackagePrefetch(boolean prefetch)
+    {
+        m_packagePrefetch = prefetch;
+    }
+    public boolean isPackagePrefetch()
+    {
+        return m_packagePrefetch;
+    }
 
     /**
      * Return byte array (which will be turned into a Class instance
@@ -47,59 +154,188 @@ public class SocketClassLoader extends ClassLoader
      */
     public byte[] findClassBytes(String className)
     {
-        try
+        int dot = className.lastIndexOf('.');
+        String pkg = dot < 0 ? "" : className.substring(0, dot);
+
+        if (m_versionedPackages.contains(pkg)
+            && !m_versions.containsKey(className))
         {
-            // Connect to the host on port
-            Socket socket = new Socket(m_host, m_port);
-
-            BufferedReader reader =
-                new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            PrintWriter writer =
-                new PrintWriter(socket.getOutputStream());
-            
-            // Send the classname
-            writer.println("Classname:" + className);
-            writer.flush();
-            
-            // Get back the resulting bytecode, or get nothing back (an error)
-            String line = reader.readLine();
-            if (line.equals("Error"))
-                return null;
-            else if (line.startsWith("Content-Length"))
-            {
-                // Find out how much we're expecting back
-                int colonLoc = line.indexOf(":");
-                Integer l = 
-                    new Integer(line.substring(colonLoc + 1, line.length()));
-                byte[] classBytes = new byte[l.intValue()];
-                
-                // Throw away any data between our current point in the stream
-                // and the first magic number of the Java .class file ('CA')
-                while (reader.read() != (int)0xCA)
-                    ;
-
-                // We already pulled back the first magic number of the class,
-                // so manually insert it into the byte array. Read the rest
-                // from the socket
-                classBytes[0] = (byte)0xCA;
-                for (int i=1; i<classBytes.length; i++)
-                    classBytes[i] = (byte)reader.read();
-
-                return classBytes;
-            }
-            else
-                return null;
+            // The server listed the package's versions; a class not in
+            // the list doesn't exist
+            return null;
+        }
+        if (m_packagePrefetch && !m_fetchedPackages.contains(pkg))
+        {
+            try
+            {
+                prefetchPackage(pkg);
+            }
+            catch (IOException ioEx)
+            {
+                // Fall back to asking for the class alone
+            }
         }
-        catch (UnknownHostException uhEx)
+        // Prefetched bytes are handed out once; the loader defines the
+        // class and has no use for them after that
+        byte[] prefetched = m_prefetched.remove(className);
+        if (prefetched != null)
         {
+            return prefetched;
+        }
+        if (m_fetchedPackages.contains(pkg)
+            && !m_prefetchedNames.contains(className))
+        {
+            // The whole package came over; anything not in it doesn't
+            // exist
             return null;
         }
+
+        try
+        {
+            return fetchClasses(new String[] { className })[0];
+        }
         catch (IOException ioEx)
         {
             return null;
         }
     }
-    
+
+    /**
+     * Fetch several classes in a single round trip.
+     *
+     * @param classNames
+     * @return bytes for each name, in order; null where not found
+     */
+    public byte[][] fetchClasses(final String[] classNames)
+        throws IOException
+    {
+        return exchange((Connection c) ->
+        {
+            c.out.writeByte(ClassProtocol.OP_CLASSES);
+            c.out.writeInt(classNames.length);
+            for (String name : classNames)
+            {
+                c.out.writeUTF(name);
+            }
+            c.out.flush();
+
+            byte[][] result = new byte[classNames.length][];
+            for (int i = 0; i < classNames.length; i++)
+            {
+                result[i] = ClassProtocol.readEntry(c.in);
+            }
+            return result;
+        });
+    }
+
+    /**
+     * Fetch every class of a package in a single round trip and keep them
+     * for the lookups that follow.
+     *
+     * @param pkg package name, "" for the default package
+     * @return number of classes fetched
+     */
+    public int prefetchPackage(final String pkg)
+        throws IOException
+    {
+        Map<String, byte[]> classes = exchange((Connection c) ->
+        {
+            c.out.writeByte(ClassProtocol.OP_PACKAGE);
+            c.out.writeUTF(pkg);
+            c.out.flush();
+
+            int n = c.in.readInt();
+            Map<String, byte[]> result = new HashMap<>();
+            for (int i = 0; i < n; i++)
+            {
+                String name = c.in.readUTF();
+                result.put(name, ClassProtocol.readEntry(c.in));
+            }
+            return result;
+        });
+        for (Map.Entry<String, byte[]> e : classes.entrySet())
+        {
+            if (e.getValue() != null)
+            {
+                m_prefetchedNames.add(e.getKey());
+                m_prefetched.putIfAbsent(e.getKey(), e.getValue());
+            }
+        }
+        m_fetchedPackages.add(pkg);
+        return classes.size();
+    }
+
+    /**
+     * The class file's size and modification time on the server, fetched
+     * with the rest of its package on the first call in it; null if the
+     * class isn't there or the server can't tell. Also null for bytes
+     * prefetched before the versions of their package were asked for, as
+     * the version might then be newer than the bytes.
+     */
+    public String getClassVersion(String className)
+    {
+        int dot = className.lastIndexOf('.');
+        final String pkg = dot < 0 ? "" : className.substring(0, dot);
+        if (!m_versionedPackages.contains(pkg))
+        {
+            if (m_noVersions || m_prefetched.containsKey(className))
+            {
+                return null;
+            }
+            try
+            {
+                Map<String, String> versions = exchange((Connection c) ->
+                {
+                    if (!c.versions)
+                    {
+                        return null;
+                    }
+                    Map<String, String> result = new HashMap<>();
+                    c.out.writeByte(ClassProtocol.OP_VERSIONS);
+                    c.out.writeUTF(pkg);
+                    c.out.flush();
+
+                    int n = c.in.readInt();
+                    for (int i = 0; i < n; i++)
+                    {
+                        String name = c.in.readUTF();
+                        String version = c.in.readUTF();
+                        if (!version.isEmpty())
+                        {
+                            result.put(name, version);
+                        }
+                    }
+                    return result;
+                });
+                if (versions == null)
+                {
+                    // The server doesn't answer versions; don't ask again
+                    m_noVersions = true;
+                    return null;
+                }
+                m_versions.putAll(versions);
+                m_versionedPackages.add(pkg);
+            }
+            catch (IOException ioEx)
+            {
+                return null;
+            }
+        }
+        return m_versions.get(className);
+    }
+
+    /**
+     * Close the pooled connections; later lookups open new ones.
+     */
+    public void close()
+    {
+        Connection c;
+        while ((c = m_idle.poll()) != null)
+        {
+            c.close();
+        }
+    }
+
     /**
      * Return URL for resource given by resourceName
      */
@@ -115,7 +351,7 @@ public class SocketClassLoader extends ClassLoader
     {
         return null;
     }
-    
+
     /**
      * Return full path to native library given by the name
      * libraryName.
@@ -131,25 +367,114 @@ public class SocketClassLoader extends ClassLoader
     public Class findClass(String className)
         throws ClassNotFoundException
     {
-        byte[] classBytes = findClassBytes(className);
-        if (classBytes==null)
+        synchronized (getClassLoadingLock(className))
         {
-            throw new ClassNotFoundException();
+            Class loaded = findLoadedClass(className);
+            if (loaded != null)
+            {
+                return loaded;
+            }
+
+            byte[] classBytes = findClassBytes(className);
+            if (classBytes==null)
+            {
+                throw new ClassNotFoundException();
+            }
+
+            return defineClass(className, classBytes, 0, classBytes.length);
         }
-                
-        return defineClass(className, classBytes, 0, classBytes.length);
     }
 
-    // Internal members    
+    /**
+     * A request/response pair on one connection
+     */
+    private interface Exchange<T>
+    {
+        T run(Connection c) throws IOException;
+    }
+
+    /**
+     * Run an exchange on a pooled connection. A connection that fails is
+     * closed, and the exchange is retried once on a fresh one in case the
+     * pooled connection had gone stale.
+     */
+    private <T> T exchange(Exchange<T> exchange)
+        throws IOException
+    {
+        IOException failure = null;
+        for (int attempt = 0; attempt < 2; attempt++)
+        {
+            Connection c = m_idle.poll();
+            if (c == null)
+            {
+                Socket socket = new Socket();
+                try
+                {
+                    socket.setTcpNoDelay(true);
+                    socket.connect(new InetSocketAddress(m_host, m_port),
+                        CONNECT_TIMEOUT_MS);
+                    socket.setSoTimeout(READ_TIMEOUT_MS);
+                    c = new Connection(socket, m_compression);
+                }
+                catch (IOException | RuntimeException ex)
+                {
+                    // Connect or handshake failed; don't leak the socket
+                    try
+                    {
+                        socket.close();
+                    }
+                    catch (IOException closeEx)
+                    {
+                        ex.addSuppressed(closeEx);
+                    }
+                    throw ex;
+                }
+            }
+            try
+            {
+                T result = exchange.run(c);
+                if (!m_idle.offer(c))
+                {
+                    c.close();
+                }
+                return result;
+            }
+            catch (IOException ioEx)
+            {
+                c.close();
+                failure = ioEx;
+            }
+        }
+        throw failure;
+    }
+
+    // Internal members
     //
+    private static final int CONNECT_TIMEOUT_MS
+        = Integer.getInteger("jisis.classserver.connectTimeout", 5000);
+    private static final int READ_TIMEOUT_MS
+        = Integer.getInteger("jisis.classserver.readTimeout", 30000);
+
     String m_host;
     int m_port;
-    
+    private volatile boolean m_compression = Boolean.parseBoolean(
+        System.getProperty("jisis.classserver.compression", "false"));
+    private volatile boolean m_packagePrefetch = Boolean.parseBoolean(
+        System.getProperty("jisis.classserver.prefetch", "true"));
+    private final BlockingQueue<Connection> m_idle = new ArrayBlockingQueue<>(
+        Integer.getInteger("jisis.classserver.connections", 4));
+    private final Map<String, byte[]> m_prefetched = new ConcurrentHashMap<>();
+    private final Set<String> m_fetchedPackages = ConcurrentHashMap.newKeySet();
+    // Every class a package prefetch brought, served or not
+    private final Set<String> m_prefetchedNames = ConcurrentHashMap.newKeySet();
+    private final Map<String, String> m_versions = new ConcurrentHashMap<>();
+    private final Set<String> m_versionedPackages = ConcurrentHashMap.newKeySet();
+    private volatile boolean m_noVersions = false;
+
 
-    // To test this effectively from the CD, copy 
-    // SocketClassLoader.class to a directory elsewhere on your 
-    // hard drive. Start GJAS in a separate directory,
-    // then run SocketClassLoader from the command-line.    
+    // Start a ClassServer on a directory of classes (see ClassServer.main),
+    // then run SocketClassLoader from the command-line, from somewhere
+    // the classes are not on the CLASSPATH.
     public static void main(String[] args)
         throws Exception
     {
@@ -164,9 +489,10 @@ public class SocketClassLoader extends ClassLoader
                 "to retrieve the file; the primordial ClassLoader will.");
 
         // Connect to the local host on port 8085 to see if Hello can be
-        // loaded.    
+        // loaded.
         SocketClassLoader scl = new SocketClassLoader("localhost", 8085);
-        Class cls = scl.loadClass("Hello");
+        Class cls = scl.loadClass(args.length > 0 ? args[0] : "Hello");
         Object h = cls.newInstance();
+        scl.close();
     }
-}    
\ No newline at end of file
+}
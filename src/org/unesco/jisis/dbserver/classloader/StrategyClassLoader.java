@@ -19,6 +19,16 @@ import java.util.Enumeration;
 public class StrategyClassLoader extends ClassLoader
     implements IClassLoaderStrategy
 {
+    // Loads of different classes may run in parallel: ClassLoader then
+    // locks per class name (getClassLoadingLock) rather than on the
+    // whole loader, so Services starting concurrently don't queue up
+    // behind one lock. Each subclass has to register itself as well.
+    //
+    static
+    {
+        registerAsParallelCapable();
+    }
+
     // Internal members
     //
     private IClassLoaderStrategy m_strategy =
@@ -108,30 +118,38 @@ public class StrategyClassLoader extends ClassLoader
     
     /**
      * Find the class bytecode; defers to the Strategy's
-     * <CODE>findClassBytes</CODE> method.
+     * <CODE>findClassBytes</CODE> method. Runs under the class name's
+     * loading lock, so a class is defined once even when findClass is
+     * reached by several threads, or called directly. A Strategy that
+     * is an IReleasingStrategy is told once the class is defined.
      */
     protected Class findClass(String name)
         throws ClassNotFoundException
     {
-        byte[] classBytes = findClassBytes(name);
-        
-        if (classBytes == null)
+        synchronized (getClassLoadingLock(name))
         {
-            throw new ClassNotFoundException();
-        }
+            Class loaded = findLoadedClass(name);
+            if (loaded != null)
+            {
+                return loaded;
+            }
+
+            byte[] classBytes = findClassBytes(name);
         
-        return defineClass(name, classBytes, 0, classBytes.length);
-    }
-    
-    
-    /**
-     * For JDK1.1 use, uncomment the following method
-     */
-    /*
-    public synchronized Class loadClass()
-    {
+            if (classBytes == null)
+            {
+                throw new ClassNotFoundException();
+            }
+        
+            Class defined =
+                defineClass(name, classBytes, 0, classBytes.length);
+            if (m_strategy instanceof IReleasingStrategy)
+            {
+                ((IReleasingStrategy)m_strategy).classDefined(name);
+            }
+            return defined;
+        }
     }
-    */
     
     
     // Test driver
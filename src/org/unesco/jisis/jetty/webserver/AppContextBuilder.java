@@ -4,6 +4,12 @@
  */
 package org.unesco.jisis.jetty.webserver;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
 import org.apache.jasper.servlet.JspServlet;   // jasper.jar in Tomcat
 import org.eclipse.jetty.server.Handler;
 import org.eclipse.jetty.server.handler.ContextHandlerCollection;
@@ -12,6 +18,8 @@ import org.eclipse.jetty.servlet.DefaultServlet;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
 import org.eclipse.jetty.webapp.WebAppContext;
+import org.slf4j.LoggerFactory;
+import org.unesco.jisis.corelib.server.DbServerService;
 
 /**
  *
@@ -19,6 +27,7 @@ import org.eclipse.jetty.webapp.WebAppContext;
  */
 
 public class AppContextBuilder {
+   private static final org.slf4j.Logger LOGGER = LoggerFactory.getLogger(AppContextBuilder.class);
    private WebAppContext webAppContext;
    private ServletContextHandler servletContextHandler;
    
@@ -40,6 +49,16 @@ public class AppContextBuilder {
       return contexts;
    }
     public ContextHandlerCollection buildContext(String dbHomePath) {
+        return buildContext(dbHomePath, new JettyConfig());
+    }
+
+    /**
+     *
+     * @param dbHomePath the directory served
+     * @param config the jetty.static.* settings of the DefaultServlet
+     * @return
+     */
+    public ContextHandlerCollection buildContext(String dbHomePath, JettyConfig config) {
 
        ContextHandlerCollection contexts = new ContextHandlerCollection();
 
@@ -66,20 +85,110 @@ public class AppContextBuilder {
        
         servletContextHandler.setClassLoader(Thread.currentThread().getContextClassLoader());
 
-        servletContextHandler.addServlet(DefaultServlet.class, "/");
+        final ServletHolder files =
+                servletContextHandler.addServlet(DefaultServlet.class, "/");
+        if (config.isStaticEnabled()) {
+            configureStaticContent(files, config);
+        }
 
         final ServletHolder jsp =
                 servletContextHandler.addServlet(JspServlet.class, "*.jsp");
         
         System.out.println("classpath="+ servletContextHandler.getClassPath());
         jsp.setInitParameter("classpath", servletContextHandler.getClassPath());
+        File scratchDir = jspScratchDir(dbHomePath, config);
+        if (scratchDir != null) {
+            jsp.setInitParameter("scratchdir", scratchDir.getPath());
+        }
         
         
 
+        if (config.isApiEnabled()) {
+            String apiPath = config.getApiPath().endsWith("/")
+                    ? config.getApiPath().substring(0, config.getApiPath().length() - 1)
+                    : config.getApiPath();
+            final ServletHolder records =
+                    servletContextHandler.addServlet(RecordServlet.class, apiPath + "/*");
+            records.setInitParameter("maxPage", Integer.toString(config.getApiMaxPage()));
+            records.setInitParameter("remote", Boolean.toString(config.isApiRemote()));
+            records.setInitParameter("maxDatabases", Integer.toString(config.getApiMaxDatabases()));
+        }
+
         // add your own additional servlets like this:
         // context.addServlet(JSONServlet.class, "/json");
         contexts.setHandlers(new Handler[] { servletContextHandler, new DefaultHandler() });
 
         return contexts;
     }
+
+    /**
+     * Jasper's scratch directory. Jetty's default is a temporary directory
+     * removed at shutdown, so every restart recompiled every page; this
+     * one is kept, one per database home, under work/jsp of the J-ISIS
+     * home. Jasper loads whatever classes it finds there, so a directory
+     * this process can't create, or one owned by another user, is refused.
+     *
+     * @return the directory, or null to leave Jetty's temporary one
+     */
+    static File jspScratchDir(String dbHomePath, JettyConfig config) {
+        File dir;
+        if (config.getJspScratchDir() != null) {
+            dir = new File(config.getJspScratchDir());
+        } else if (DbServerService.getJIsisHome() != null) {
+            String home = new File(dbHomePath).getAbsolutePath();
+            dir = new File(DbServerService.getJIsisHome() + File.separator + "work"
+                    + File.separator + "jsp", Integer.toHexString(home.hashCode()));
+        } else {
+            return null;
+        }
+        Path path = dir.toPath();
+        try {
+            boolean posix = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+            if (!Files.isDirectory(path)) {
+                Files.createDirectories(path.toAbsolutePath().getParent());
+                if (posix) {
+                    Files.createDirectory(path, PosixFilePermissions.asFileAttribute(
+                            PosixFilePermissions.fromString("rwx------")));
+                } else {
+                    Files.createDirectory(path);
+                }
+            }
+            String owner = posix ? Files.getOwner(path).getName() : null;
+            if (owner != null && !owner.equals(System.getProperty("user.name"))) {
+                LOGGER.warn("JSP scratch directory [{}] is owned by {}, using a temporary one",
+                        dir, owner);
+                return null;
+            }
+        } catch (IOException | UnsupportedOperationException ex) {
+            LOGGER.warn("Cannot create JSP scratch directory [{}], using a temporary one: {}",
+                    dir, ex.toString());
+            return null;
+        }
+        return dir;
+    }
+
+    /**
+     * Tune the DefaultServlet for serving database files and reports:
+     * hot files are kept in a bounded cache (memory-mapped rather than
+     * copied on the heap when useFileMappedBuffer is set) and written from
+     * it by the NIO connector without going through the servlet's stream;
+     * foo.gz is sent for foo to clients that accept gzip; ETags and Range
+     * requests let clients revalidate and resume big exports. Files above
+     * maxCachedFileSize, big exports among them, are never cached and so
+     * never mapped: they are streamed from disk.
+     */
+    private static void configureStaticContent(ServletHolder files, JettyConfig config) {
+        files.setInitParameter("maxCacheSize", Integer.toString(config.getStaticMaxCacheSize()));
+        files.setInitParameter("maxCachedFileSize",
+                Integer.toString(config.getStaticMaxCachedFileSize()));
+        files.setInitParameter("maxCachedFiles", Integer.toString(config.getStaticMaxCachedFiles()));
+        files.setInitParameter("useFileMappedBuffer", Boolean.toString(config.isStaticFileMapped()));
+        files.setInitParameter("gzip", Boolean.toString(config.isStaticGzip()));
+        files.setInitParameter("etags", Boolean.toString(config.isStaticEtags()));
+        files.setInitParameter("acceptRanges", Boolean.toString(config.isStaticAcceptRanges()));
+        files.setInitParameter("dirAllowed", Boolean.toString(config.isStaticDirAllowed()));
+        if (config.getStaticCacheControl() != null) {
+            files.setInitParameter("cacheControl", config.getStaticCacheControl());
+        }
+    }
 }
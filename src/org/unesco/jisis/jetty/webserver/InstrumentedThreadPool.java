@@ -0,0 +1,152 @@
+package org.unesco.jisis.jetty.webserver;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.slf4j.LoggerFactory;
+import org.unesco.jisis.dbserver.LatencyHistogram;
+
+/**
+ * InstrumentedThreadPool is Jetty's QueuedThreadPool over a job queue it
+ * can see, measuring how saturated it gets: how long jobs wait in the
+ * queue for a thread, how many were turned away by a full queue, and the
+ * most threads ever busy at once. Running low on threads, and each
+ * rejection, are logged (at most once every ten seconds).
+ *
+ * <P>Only jobs dispatched once the server is serving are measured; the
+ * connector's acceptor and selector loops are dispatched while it
+ * starts, and would otherwise hold busy at their count for good and put
+ * their startup waits in the queue-wait figures.
+ */
+public class InstrumentedThreadPool extends QueuedThreadPool {
+
+    private static final org.slf4j.Logger LOGGER = LoggerFactory.getLogger(InstrumentedThreadPool.class);
+    private static final long WARN_INTERVAL_MS = 10 * 1000;
+
+    private final BlockingQueue<Runnable> jobs_;
+    private final LatencyHistogram queueWait_ = new LatencyHistogram();
+    private final AtomicLong dispatched_ = new AtomicLong();
+    private final AtomicLong rejected_ = new AtomicLong();
+    private final AtomicInteger busy_ = new AtomicInteger();
+    private final AtomicInteger peakBusy_ = new AtomicInteger();
+    private final AtomicLong lastWarning_ = new AtomicLong();
+    private volatile boolean serving_;
+
+    /**
+     *
+     * @param jobs the queue jobs wait in; bounded to cap the backlog
+     */
+    public InstrumentedThreadPool(BlockingQueue<Runnable> jobs) {
+        super(jobs);
+        jobs_ = jobs;
+    }
+
+    /**
+     * Start or stop measuring the jobs dispatched from now on.
+     *
+     * @param serving whether the server has started and is serving requests
+     */
+    public void setServing(boolean serving) {
+        serving_ = serving;
+    }
+
+    @Override
+    public boolean dispatch(final Runnable job) {
+        if (!serving_) {
+            return super.dispatch(job);
+        }
+        final long queued = System.nanoTime();
+        boolean ok = super.dispatch(() -> {
+            queueWait_.recordNanos(System.nanoTime() - queued);
+            int busy = busy_.incrementAndGet();
+            int peak = peakBusy_.get();
+            while (busy > peak && !peakBusy_.compareAndSet(peak, busy)) {
+                peak = peakBusy_.get();
+            }
+            try {
+                job.run();
+            } finally {
+                busy_.decrementAndGet();
+            }
+        });
+
+        if (ok) {
+            dispatched_.incrementAndGet();
+            if (isLowOnThreads()) {
+                warn("Jetty thread pool is low on threads: {}");
+            }
+        } else {
+            rejected_.incrementAndGet();
+            warn("Jetty thread pool rejected a job: {}");
+        }
+        return ok;
+    }
+
+    private void warn(String msg) {
+        long now = System.currentTimeMillis();
+        long last = lastWarning_.get();
+        if (now - last >= WARN_INTERVAL_MS && lastWarning_.compareAndSet(last, now)) {
+            LOGGER.warn(msg, this);
+        }
+    }
+
+    /**
+     * @return how long jobs waited for a thread
+     */
+    public LatencyHistogram getQueueWait() {
+        return queueWait_;
+    }
+
+    /**
+     * @return jobs waiting for a thread right now
+     */
+    public int getQueueSize() {
+        return jobs_.size();
+    }
+
+    public long getDispatchedCount() {
+        return dispatched_.get();
+    }
+
+    /**
+     * @return jobs turned away because the queue was full
+     */
+    public long getRejectedCount() {
+        return rejected_.get();
+    }
+
+    /**
+     * @return threads running a job right now, not counting the
+     * connector's own loops
+     */
+    public int getBusyThreads() {
+        return busy_.get();
+    }
+
+    public int getPeakBusyThreads() {
+        return peakBusy_.get();
+    }
+
+    /**
+     * Forget the wait times and counts recorded so far.
+     */
+    public void resetMetrics() {
+        queueWait_.reset();
+        dispatched_.set(0);
+        rejected_.set(0);
+        peakBusy_.set(busy_.get());
+    }
+
+    @Override
+    public String toString() {
+        return "threads=" + getThreads()
+                + " busy=" + getBusyThreads() + "/" + getMaxThreads()
+                + " peakBusy=" + getPeakBusyThreads()
+                + " queued=" + getQueueSize()
+                + " dispatched=" + getDispatchedCount()
+                + " rejected=" + getRejectedCount()
+                + " lowOnThreads=" + isLowOnThreads()
+                + " queueWait: " + queueWait_;
+    }
+}
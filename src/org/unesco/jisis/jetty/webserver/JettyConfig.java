@@ -0,0 +1,463 @@
+package org.unesco.jisis.jetty.webserver;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import org.slf4j.LoggerFactory;
+
+/**
+ * JettyConfig holds the tunables of the embedded web server: its connector
+ * and its thread pool. They are read from the jetty.* keys of
+ * conf/server.conf, and a system property of the same name overrides the
+ * file. Unset keys keep Jetty's own defaults.
+ *
+ * <PRE>
+ * jetty.port                      8585
+ * jetty.host                      all interfaces
+ * jetty.startTimeout             ms the database server waits for the
+ *                                 connector to listen, 30000
+ * jetty.acceptors                 (cores + 3) / 4; Jetty 8 runs one
+ *                                 selector per acceptor
+ * jetty.acceptQueueSize           accept backlog, 0 for the OS default
+ * jetty.maxIdleTime               connection idle timeout, ms
+ * jetty.lowResourcesConnections   connections above which the server
+ *                                 counts as low on resources
+ * jetty.lowResourcesMaxIdleTime   idle timeout when low on resources, ms
+ * jetty.threads.min               8
+ * jetty.threads.max               254
+ * jetty.threads.idleTimeout       ms before an idle thread exits
+ * jetty.threads.queueCapacity     jobs waiting for a thread, 0 unbounded
+ *
+ * jetty.static.enabled            true: tune the DefaultServlet serving
+ *                                 the database home as below
+ * jetty.static.maxCacheSize       bytes of hot files cached, 32MB
+ * jetty.static.maxCachedFileSize  larger files are not cached, 4MB
+ * jetty.static.maxCachedFiles     2048
+ * jetty.static.useFileMappedBuffer  cache memory-mapped files rather
+ *                                 than heap copies, false by default:
+ *                                 a mapped file the database truncates
+ *                                 kills the JVM (SIGBUS). Only cached
+ *                                 files are mapped, so files above
+ *                                 maxCachedFileSize are streamed either way
+ * jetty.static.gzip               serve foo.gz for foo to clients that
+ *                                 accept gzip
+ * jetty.static.etags              send ETags, answer If-None-Match
+ * jetty.static.acceptRanges       answer Range requests
+ * jetty.static.dirAllowed         list directories
+ * jetty.static.cacheControl       Cache-Control header, none by default
+ *
+ * jetty.jsp.scratchdir            where Jasper keeps compiled JSPs, kept
+ *                                 across restarts; by default a directory
+ *                                 under work/jsp of the J-ISIS home named
+ *                                 after the database home. Refused if
+ *                                 owned by another user
+ * jetty.jsp.precompile            false: compile every JSP at startup
+ * jetty.jsp.precompile.threads    JSPs compiled at once, one per core
+ *
+ * jetty.api.enabled               false: serve records as JSON (see
+ *                                 RecordServlet); no authentication
+ * jetty.api.path                  /api/records
+ * jetty.api.maxPage               most records in one page, 1000
+ * jetty.api.remote                false: answer clients other than
+ *                                 localhost too
+ * jetty.api.maxDatabases          most databases the API keeps open, 16
+ * </PRE>
+ */
+public class JettyConfig {
+
+    private static final org.slf4j.Logger LOGGER = LoggerFactory.getLogger(JettyConfig.class);
+
+    private int port = 8585;
+    private String host = null;
+    private int startTimeout = 30000;
+    private int acceptors = Math.max(1, (Runtime.getRuntime().availableProcessors() + 3) / 4);
+    private int acceptQueueSize = 0;
+    private int maxIdleTime = 200000;
+    private int lowResourcesConnections = -1;
+    private int lowResourcesMaxIdleTime = -1;
+    private int minThreads = 8;
+    private int maxThreads = 254;
+    private int threadIdleTimeout = 60000;
+    private int queueCapacity = 0;
+    private boolean staticEnabled = true;
+    private int staticMaxCacheSize = 32 * 1024 * 1024;
+    private int staticMaxCachedFileSize = 4 * 1024 * 1024;
+    private int staticMaxCachedFiles = 2048;
+    private boolean staticFileMapped = false;
+    private boolean staticGzip = true;
+    private boolean staticEtags = true;
+    private boolean staticAcceptRanges = true;
+    private boolean staticDirAllowed = true;
+    private String staticCacheControl = null;
+    private String jspScratchDir = null;
+    private boolean jspPrecompile = false;
+    private int jspPrecompileThreads = Runtime.getRuntime().availableProcessors();
+    private boolean apiEnabled = false;
+    private String apiPath = "/api/records";
+    private int apiMaxPage = 1000;
+    private boolean apiRemote = false;
+    private int apiMaxDatabases = 16;
+
+    /**
+     * Jetty's defaults, overridden by any jetty.* system properties
+     */
+    public JettyConfig() {
+        apply(new Properties());
+    }
+
+    /**
+     * Read the jetty.* keys of a configuration file; a missing or
+     * unreadable file leaves the defaults.
+     *
+     * @param serverConf usually conf/server.conf
+     * @return the configuration, system properties applied
+     */
+    public static JettyConfig load(File serverConf) {
+        Properties props = new Properties();
+        if (serverConf != null && serverConf.isFile()) {
+            try (InputStream in = new FileInputStream(serverConf)) {
+                props.load(in);
+            } catch (IOException ex) {
+                LOGGER.warn("Cannot read Jetty settings from [{}]", serverConf, ex);
+            }
+        }
+        JettyConfig config = new JettyConfig();
+        config.apply(props);
+        return config;
+    }
+
+    private void apply(Properties props) {
+        port = intValue(props, "jetty.port", port);
+        host = value(props, "jetty.host", host);
+        startTimeout = intValue(props, "jetty.startTimeout", startTimeout);
+        acceptors = intValue(props, "jetty.acceptors", acceptors);
+        acceptQueueSize = intValue(props, "jetty.acceptQueueSize", acceptQueueSize);
+        maxIdleTime = intValue(props, "jetty.maxIdleTime", maxIdleTime);
+        lowResourcesConnections = intValue(props, "jetty.lowResourcesConnections",
+                lowResourcesConnections);
+        lowResourcesMaxIdleTime = intValue(props, "jetty.lowResourcesMaxIdleTime",
+                lowResourcesMaxIdleTime);
+        minThreads = intValue(props, "jetty.threads.min", minThreads);
+        maxThreads = intValue(props, "jetty.threads.max", maxThreads);
+        threadIdleTimeout = intValue(props, "jetty.threads.idleTimeout", threadIdleTimeout);
+        queueCapacity = intValue(props, "jetty.threads.queueCapacity", queueCapacity);
+        staticEnabled = booleanValue(props, "jetty.static.enabled", staticEnabled);
+        staticMaxCacheSize = intValue(props, "jetty.static.maxCacheSize", staticMaxCacheSize);
+        staticMaxCachedFileSize = intValue(props, "jetty.static.maxCachedFileSize",
+                staticMaxCachedFileSize);
+        staticMaxCachedFiles = intValue(props, "jetty.static.maxCachedFiles", staticMaxCachedFiles);
+        staticFileMapped = booleanValue(props, "jetty.static.useFileMappedBuffer", staticFileMapped);
+        staticGzip = booleanValue(props, "jetty.static.gzip", staticGzip);
+        staticEtags = booleanValue(props, "jetty.static.etags", staticEtags);
+        staticAcceptRanges = booleanValue(props, "jetty.static.acceptRanges", staticAcceptRanges);
+        staticDirAllowed = booleanValue(props, "jetty.static.dirAllowed", staticDirAllowed);
+        staticCacheControl = value(props, "jetty.static.cacheControl", staticCacheControl);
+        jspScratchDir = value(props, "jetty.jsp.scratchdir", jspScratchDir);
+        jspPrecompile = booleanValue(props, "jetty.jsp.precompile", jspPrecompile);
+        jspPrecompileThreads = intValue(props, "jetty.jsp.precompile.threads", jspPrecompileThreads);
+        apiEnabled = booleanValue(props, "jetty.api.enabled", apiEnabled);
+        apiPath = value(props, "jetty.api.path", apiPath);
+        apiMaxPage = intValue(props, "jetty.api.maxPage", apiMaxPage);
+        apiRemote = booleanValue(props, "jetty.api.remote", apiRemote);
+        apiMaxDatabases = intValue(props, "jetty.api.maxDatabases", apiMaxDatabases);
+    }
+
+    private static String value(Properties props, String key, String dflt) {
+        String v = System.getProperty(key, props.getProperty(key));
+        return v == null || v.trim().isEmpty() ? dflt : v.trim();
+    }
+
+    private static int intValue(Properties props, String key, int dflt) {
+        String v = value(props, key, null);
+        if (v == null) {
+            return dflt;
+        }
+        try {
+            return Integer.parseInt(v);
+        } catch (NumberFormatException ex) {
+            LOGGER.warn("Ignoring {}={}, not a number", key, v);
+            return dflt;
+        }
+    }
+
+    private static boolean booleanValue(Properties props, String key, boolean dflt) {
+        String v = value(props, key, null);
+        return v == null ? dflt : Boolean.parseBoolean(v);
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public void setHost(String host) {
+        this.host = host;
+    }
+
+    public int getStartTimeout() {
+        return startTimeout;
+    }
+
+    public void setStartTimeout(int startTimeout) {
+        this.startTimeout = startTimeout;
+    }
+
+    public int getAcceptors() {
+        return acceptors;
+    }
+
+    public void setAcceptors(int acceptors) {
+        this.acceptors = acceptors;
+    }
+
+    public int getAcceptQueueSize() {
+        return acceptQueueSize;
+    }
+
+    public void setAcceptQueueSize(int acceptQueueSize) {
+        this.acceptQueueSize = acceptQueueSize;
+    }
+
+    public int getMaxIdleTime() {
+        return maxIdleTime;
+    }
+
+    public void setMaxIdleTime(int maxIdleTime) {
+        this.maxIdleTime = maxIdleTime;
+    }
+
+    public int getLowResourcesConnections() {
+        return lowResourcesConnections;
+    }
+
+    public void setLowResourcesConnections(int lowResourcesConnections) {
+        this.lowResourcesConnections = lowResourcesConnections;
+    }
+
+    public int getLowResourcesMaxIdleTime() {
+        return lowResourcesMaxIdleTime;
+    }
+
+    public void setLowResourcesMaxIdleTime(int lowResourcesMaxIdleTime) {
+        this.lowResourcesMaxIdleTime = lowResourcesMaxIdleTime;
+    }
+
+    public int getMinThreads() {
+        return minThreads;
+    }
+
+    public void setMinThreads(int minThreads) {
+        this.minThreads = minThreads;
+    }
+
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+
+    public void setMaxThreads(int maxThreads) {
+        this.maxThreads = maxThreads;
+    }
+
+    public int getThreadIdleTimeout() {
+        return threadIdleTimeout;
+    }
+
+    public void setThreadIdleTimeout(int threadIdleTimeout) {
+        this.threadIdleTimeout = threadIdleTimeout;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * @return false to serve the database home with the DefaultServlet's
+     * own defaults, ignoring the jetty.static.* settings
+     */
+    public boolean isStaticEnabled() {
+        return staticEnabled;
+    }
+
+    public void setStaticEnabled(boolean staticEnabled) {
+        this.staticEnabled = staticEnabled;
+    }
+
+    public int getStaticMaxCacheSize() {
+        return staticMaxCacheSize;
+    }
+
+    public void setStaticMaxCacheSize(int staticMaxCacheSize) {
+        this.staticMaxCacheSize = staticMaxCacheSize;
+    }
+
+    public int getStaticMaxCachedFileSize() {
+        return staticMaxCachedFileSize;
+    }
+
+    public void setStaticMaxCachedFileSize(int staticMaxCachedFileSize) {
+        this.staticMaxCachedFileSize = staticMaxCachedFileSize;
+    }
+
+    public int getStaticMaxCachedFiles() {
+        return staticMaxCachedFiles;
+    }
+
+    public void setStaticMaxCachedFiles(int staticMaxCachedFiles) {
+        this.staticMaxCachedFiles = staticMaxCachedFiles;
+    }
+
+    public boolean isStaticFileMapped() {
+        return staticFileMapped;
+    }
+
+    public void setStaticFileMapped(boolean staticFileMapped) {
+        this.staticFileMapped = staticFileMapped;
+    }
+
+    public boolean isStaticGzip() {
+        return staticGzip;
+    }
+
+    public void setStaticGzip(boolean staticGzip) {
+        this.staticGzip = staticGzip;
+    }
+
+    public boolean isStaticEtags() {
+        return staticEtags;
+    }
+
+    public void setStaticEtags(boolean staticEtags) {
+        this.staticEtags = staticEtags;
+    }
+
+    public boolean isStaticAcceptRanges() {
+        return staticAcceptRanges;
+    }
+
+    public void setStaticAcceptRanges(boolean staticAcceptRanges) {
+        this.staticAcceptRanges = staticAcceptRanges;
+    }
+
+    public boolean isStaticDirAllowed() {
+        return staticDirAllowed;
+    }
+
+    public void setStaticDirAllowed(boolean staticDirAllowed) {
+        this.staticDirAllowed = staticDirAllowed;
+    }
+
+    public String getStaticCacheControl() {
+        return staticCacheControl;
+    }
+
+    public void setStaticCacheControl(String staticCacheControl) {
+        this.staticCacheControl = staticCacheControl;
+    }
+
+    /**
+     * @return Jasper's scratch directory, or null for the default
+     */
+    public String getJspScratchDir() {
+        return jspScratchDir;
+    }
+
+    public void setJspScratchDir(String jspScratchDir) {
+        this.jspScratchDir = jspScratchDir;
+    }
+
+    public boolean isJspPrecompile() {
+        return jspPrecompile;
+    }
+
+    public void setJspPrecompile(boolean jspPrecompile) {
+        this.jspPrecompile = jspPrecompile;
+    }
+
+    public int getJspPrecompileThreads() {
+        return jspPrecompileThreads;
+    }
+
+    public void setJspPrecompileThreads(int jspPrecompileThreads) {
+        this.jspPrecompileThreads = jspPrecompileThreads;
+    }
+
+    public boolean isApiEnabled() {
+        return apiEnabled;
+    }
+
+    public void setApiEnabled(boolean apiEnabled) {
+        this.apiEnabled = apiEnabled;
+    }
+
+    /**
+     * @return context path the record API is mounted under
+     */
+    public String getApiPath() {
+        return apiPath;
+    }
+
+    public void setApiPath(String apiPath) {
+        this.apiPath = apiPath;
+    }
+
+    public int getApiMaxPage() {
+        return apiMaxPage;
+    }
+
+    public void setApiMaxPage(int apiMaxPage) {
+        this.apiMaxPage = apiMaxPage;
+    }
+
+    /**
+     * @return whether the record API answers clients other than localhost
+     */
+    public boolean isApiRemote() {
+        return apiRemote;
+    }
+
+    public void setApiRemote(boolean apiRemote) {
+        this.apiRemote = apiRemote;
+    }
+
+    public int getApiMaxDatabases() {
+        return apiMaxDatabases;
+    }
+
+    public void setApiMaxDatabases(int apiMaxDatabases) {
+        this.apiMaxDatabases = apiMaxDatabases;
+    }
+
+    @Override
+    public String toString() {
+        return "JettyConfig[port=" + port
+                + (host == null ? "" : " host=" + host)
+                + " acceptors=" + acceptors
+                + " acceptQueueSize=" + acceptQueueSize
+                + " maxIdleTime=" + maxIdleTime
+                + " threads=" + minThreads + ".." + maxThreads
+                + " threadIdleTimeout=" + threadIdleTimeout
+                + " queueCapacity=" + (queueCapacity > 0 ? queueCapacity : "unbounded")
+                + (staticEnabled
+                        ? " static[cache=" + staticMaxCacheSize + "/" + staticMaxCachedFileSize
+                        + "/" + staticMaxCachedFiles + " mapped=" + staticFileMapped
+                        + " gzip=" + staticGzip + " etags=" + staticEtags
+                        + " ranges=" + staticAcceptRanges + "]"
+                        : "")
+                + (jspPrecompile ? " jspPrecompile=" + jspPrecompileThreads : "")
+                + (apiEnabled ? " api=" + apiPath + (apiRemote ? " apiRemote" : "") : "")
+                + "]";
+    }
+}
@@ -4,12 +4,13 @@
  */
 package org.unesco.jisis.jetty.webserver;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.eclipse.jetty.server.Handler;
 import org.eclipse.jetty.server.handler.ContextHandlerCollection;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.component.LifeCycle;
 import org.slf4j.LoggerFactory;
 
 /**
@@ -18,35 +19,73 @@ import org.slf4j.LoggerFactory;
  */
 public class JettyRunner {
 
-    private ExecutorService exec_;
+    private final CompletableFuture<JettyServer> ready_;
     private static final org.slf4j.Logger LOGGER = LoggerFactory.getLogger(JettyRunner.class);
 
     private JettyServer jettyServer; 
     public JettyRunner(String dbHomePath) {
-        ContextHandlerCollection contexts = new AppContextBuilder().buildContext(dbHomePath);
+        this(dbHomePath, new JettyConfig());
+    }
+
+    /**
+     *
+     * @param dbHomePath the directory served
+     * @param config connector and thread pool settings
+     */
+    public JettyRunner(String dbHomePath, JettyConfig config) {
+        ContextHandlerCollection contexts = new AppContextBuilder().buildContext(dbHomePath, config);
 
-        jettyServer = new JettyServer();
+        LOGGER.info("Jetty Web Server settings: {}", config);
+        jettyServer = new JettyServer(config);
         jettyServer.setHandler(contexts);
-        
-        Runnable runner = new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    jettyServer.start();
-                } catch (Exception exception) {
-                    LOGGER.debug("Cannot Start Jetty Web Server [{}]", exception);
-                    exception.printStackTrace();
+        if (config.isJspPrecompile()) {
+            jettyServer.addLifeCycleListener(new AbstractLifeCycle.AbstractLifeCycleListener() {
+                @Override
+                public void lifeCycleStarted(LifeCycle event) {
+                    new JspPrecompiler(dbHomePath, config.getHost(), jettyServer.getLocalPort(),
+                            config.getJspPrecompileThreads()).startAsync();
                 }
-
-            }
-        };
+            });
+        }
+        
         LOGGER.debug("Starting Jetty Web Server ...");
-        exec_ = Executors.newSingleThreadExecutor();
-        exec_.execute(runner);
-        LOGGER.debug("Jetty Web Server Started");
+        ready_ = jettyServer.startAsync();
+        ready_.whenComplete((server, exception) -> {
+            if (exception != null) {
+                LOGGER.error("Cannot Start Jetty Web Server", exception);
+            } else {
+                LOGGER.info("Jetty Web Server listening on port {} after {} ms",
+                        server.getLocalPort(), server.getStartupMillis());
+            }
+        });
     }
     
+    public JettyServer getServer() {
+        return jettyServer;
+    }
+
+    /**
+     * Completes with the server once its connector is listening, or
+     * exceptionally with the reason it could not start.
+     */
+    public CompletableFuture<JettyServer> getReady() {
+        return ready_;
+    }
+
+    /**
+     * Stop the server. One still starting is stopped as soon as its start
+     * completes, so a start that timed out doesn't leave it listening.
+     */
     public void stop() {
+        if (!ready_.isDone()) {
+            LOGGER.info("Jetty Web Server still starting, stopping it once started");
+            ready_.thenAccept(server -> stopServer());
+            return;
+        }
+        stopServer();
+    }
+
+    private void stopServer() {
         try {
             jettyServer.stop();
         } catch (Exception ex) {
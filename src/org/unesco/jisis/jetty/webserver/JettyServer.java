@@ -4,8 +4,16 @@
  */
 package org.unesco.jisis.jetty.webserver;
 
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import org.eclipse.jetty.server.Connector;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.handler.ContextHandlerCollection;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.component.LifeCycle;
 
 /**
  *
@@ -14,24 +22,134 @@ import org.eclipse.jetty.server.handler.ContextHandlerCollection;
 public class JettyServer {
 
     private Server server;
+    private SelectChannelConnector connector;
+    private InstrumentedThreadPool threadPool;
+    private final JettyConfig config;
+    private volatile long startupMillis = -1;
 
     public JettyServer() {
         this(8585);
     }
 
     public JettyServer(Integer runningPort) {
-        server = new Server(runningPort);
+        this(portConfig(runningPort));
+    }
+
+    /**
+     * Build the server with the connector and thread pool described by
+     * the configuration.
+     *
+     * @param config
+     */
+    public JettyServer(JettyConfig config) {
+        this.config = config;
+
+        BlockingQueue<Runnable> jobs = config.getQueueCapacity() > 0
+                ? new ArrayBlockingQueue<>(config.getQueueCapacity())
+                : new LinkedBlockingQueue<>();
+        threadPool = new InstrumentedThreadPool(jobs);
+        threadPool.setName("jetty");
+        threadPool.setMinThreads(config.getMinThreads());
+        threadPool.setMaxThreads(config.getMaxThreads());
+        threadPool.setMaxIdleTimeMs(config.getThreadIdleTimeout());
+
+        connector = new SelectChannelConnector();
+        connector.setPort(config.getPort());
+        if (config.getHost() != null) {
+            connector.setHost(config.getHost());
+        }
+        connector.setAcceptors(config.getAcceptors());
+        connector.setAcceptQueueSize(config.getAcceptQueueSize());
+        connector.setMaxIdleTime(config.getMaxIdleTime());
+        if (config.getLowResourcesConnections() > 0) {
+            connector.setLowResourcesConnections(config.getLowResourcesConnections());
+        }
+        if (config.getLowResourcesMaxIdleTime() >= 0) {
+            connector.setLowResourcesMaxIdleTime(config.getLowResourcesMaxIdleTime());
+        }
+
+        server = new Server();
+        server.setThreadPool(threadPool);
+        server.setConnectors(new Connector[] { connector });
+        server.addLifeCycleListener(new AbstractLifeCycle.AbstractLifeCycleListener() {
+            @Override
+            public void lifeCycleStarted(LifeCycle event) {
+                threadPool.setServing(true);
+            }
+
+            @Override
+            public void lifeCycleStopping(LifeCycle event) {
+                threadPool.setServing(false);
+            }
+        });
+    }
+
+    private static JettyConfig portConfig(int port) {
+        JettyConfig config = new JettyConfig();
+        config.setPort(port);
+        return config;
     }
 
     public void setHandler(ContextHandlerCollection contexts) {
         server.setHandler(contexts);
     }
 
+    /**
+     * Be told when the server has started, failed or stopped.
+     *
+     * @param listener
+     */
+    public void addLifeCycleListener(LifeCycle.Listener listener) {
+        server.addLifeCycleListener(listener);
+    }
+
     public void start() throws Exception {
         server.start();
         server.join();
     }
 
+    /**
+     * Start the server on a thread of its own and return at once, rather
+     * than parking the caller in join().
+     *
+     * @return completes with this server once its connector is listening,
+     * or exceptionally with the reason it could not start (the port in
+     * use, most often), in which case the server has been stopped again
+     */
+    public CompletableFuture<JettyServer> startAsync() {
+        final CompletableFuture<JettyServer> ready = new CompletableFuture<>();
+        Thread starter = new Thread(() -> {
+            long begin = System.nanoTime();
+            try {
+                server.start();
+                if (connector.getLocalPort() <= 0) {
+                    throw new IllegalStateException("Jetty connector is not listening on port "
+                            + config.getPort());
+                }
+                startupMillis = (System.nanoTime() - begin) / 1000000;
+                ready.complete(this);
+            } catch (Throwable ex) {
+                try {
+                    server.stop();
+                } catch (Exception stopEx) {
+                    ex.addSuppressed(stopEx);
+                }
+                ready.completeExceptionally(ex);
+            }
+        }, "jetty-start");
+        starter.setDaemon(true);
+        starter.start();
+        return ready;
+    }
+
+    /**
+     * @return ms startAsync() took until the connector was listening, or
+     * -1 if it hasn't got there
+     */
+    public long getStartupMillis() {
+        return startupMillis;
+    }
+
     public void stop() throws Exception {
         server.stop();
         server.join();
@@ -44,4 +162,22 @@ public class JettyServer {
     public boolean isStopped() {
         return server.isStopped();
     }
+
+    public JettyConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * @return the thread pool, with its saturation and queue-wait figures
+     */
+    public InstrumentedThreadPool getThreadPool() {
+        return threadPool;
+    }
+
+    /**
+     * @return the port the connector listens on, or -1 if it isn't open
+     */
+    public int getLocalPort() {
+        return connector.getLocalPort();
+    }
 }
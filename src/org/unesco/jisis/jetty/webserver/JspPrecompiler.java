@@ -0,0 +1,217 @@
+package org.unesco.jisis.jetty.webserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.LoggerFactory;
+
+/**
+ * JspPrecompiler compiles every JSP of the database home once the web
+ * server is up, so the first visitor of a report page doesn't wait for
+ * Jasper. Each page is requested with the jsp_precompile parameter, which
+ * makes the JspServlet translate and compile it without running it; pages
+ * are requested in parallel from a small pool of daemon threads.
+ *
+ * <P>Jasper writes the classes to its scratch directory (jetty.jsp.scratchdir)
+ * and stamps each with the modification time of its JSP, recompiling only
+ * when the two differ. With a scratch directory that outlives the server,
+ * a restart finds the classes already there and precompiling an unchanged
+ * page costs a class load.
+ *
+ * <P>A page gets CONNECT_TIMEOUT_MS to connect and READ_TIMEOUT_MS to
+ * compile, and precompile() gives up waiting after MAX_WAIT_MS, so a
+ * server that hangs can't keep the precompiler around for good.
+ */
+public class JspPrecompiler {
+
+    private static final org.slf4j.Logger LOGGER = LoggerFactory.getLogger(JspPrecompiler.class);
+    private static final int CONNECT_TIMEOUT_MS = 10 * 1000;
+    private static final int READ_TIMEOUT_MS = 2 * 60 * 1000;
+    private static final long MAX_WAIT_MS = 15 * 60 * 1000;
+
+    private final File root_;
+    private final String baseUrl_;
+    private final int threads_;
+    private final AtomicInteger compiled_ = new AtomicInteger();
+    private final AtomicInteger failed_ = new AtomicInteger();
+    private final AtomicLong slowestMs_ = new AtomicLong();
+    private volatile String slowest_ = null;
+
+    /**
+     *
+     * @param dbHomePath the directory served, scanned for *.jsp
+     * @param host host the connector listens on, or null for localhost
+     * @param port port the connector listens on
+     * @param threads pages compiled at once
+     */
+    public JspPrecompiler(String dbHomePath, String host, int port, int threads) {
+        root_ = new File(dbHomePath);
+        baseUrl_ = "http://" + (host == null || host.isEmpty() || "0.0.0.0".equals(host)
+                ? "localhost" : host) + ":" + port;
+        threads_ = Math.max(1, threads);
+    }
+
+    /**
+     * The JSPs under the root, as context paths. Pages under WEB-INF and
+     * META-INF can't be requested, so they are left to Jasper. Symbolic
+     * links to directories are not followed, so a link loop can't trap
+     * the scan.
+     *
+     * @return paths such as /reports/list.jsp
+     */
+    public List<String> findPages() {
+        final List<String> pages = new ArrayList<>();
+        final Path root = root_.toPath();
+        if (!Files.isDirectory(root)) {
+            return pages;
+        }
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    String name = dir.equals(root) ? "" : dir.getFileName().toString();
+                    return "WEB-INF".equalsIgnoreCase(name) || "META-INF".equalsIgnoreCase(name)
+                            ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (file.getFileName().toString().toLowerCase().endsWith(".jsp")) {
+                        StringBuilder path = new StringBuilder();
+                        for (Path segment : root.relativize(file)) {
+                            path.append('/').append(segment);
+                        }
+                        pages.add(path.toString());
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException ex) {
+                    // Unreadable; skip it
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException ex) {
+            LOGGER.warn("Cannot scan [{}] for JSP: {}", root_, ex.toString());
+        }
+        return pages;
+    }
+
+    /**
+     * Precompile every page on background threads and return at once.
+     */
+    public void startAsync() {
+        Thread t = new Thread(() -> precompile(), "jsp-precompile");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Precompile every page, waiting for the last one.
+     *
+     * @return pages compiled successfully
+     */
+    public int precompile() {
+        List<String> pages = findPages();
+        if (pages.isEmpty()) {
+            LOGGER.debug("No JSP to precompile under [{}]", root_);
+            return 0;
+        }
+
+        long begin = System.nanoTime();
+        ExecutorService exec = Executors.newFixedThreadPool(Math.min(threads_, pages.size()), r -> {
+            Thread t = new Thread(r, "jsp-precompile-worker");
+            t.setDaemon(true);
+            return t;
+        });
+        for (String page : pages) {
+            exec.execute(() -> compile(page));
+        }
+        exec.shutdown();
+        try {
+            if (!exec.awaitTermination(MAX_WAIT_MS, TimeUnit.MILLISECONDS)) {
+                LOGGER.warn("Gave up waiting for JSP precompilation after {} ms", MAX_WAIT_MS);
+                exec.shutdownNow();
+            }
+        } catch (InterruptedException ex) {
+            exec.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+
+        LOGGER.info("Precompiled {} of {} JSP in {} ms with {} threads (slowest: {} in {} ms)",
+                new Object[]{compiled_.get(), pages.size(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin),
+                    threads_, slowest_, slowestMs_.get()});
+        return compiled_.get();
+    }
+
+    private void compile(String page) {
+        long begin = System.nanoTime();
+        try {
+            HttpURLConnection conn = (HttpURLConnection) new URL(baseUrl_ + encode(page)
+                    + "?jsp_precompile=true").openConnection();
+            conn.setUseCaches(false);
+            conn.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            conn.setReadTimeout(READ_TIMEOUT_MS);
+            int status = conn.getResponseCode();
+            try (InputStream in = status < 400 ? conn.getInputStream() : conn.getErrorStream()) {
+                if (in != null) {
+                    byte[] buf = new byte[4096];
+                    while (in.read(buf) >= 0) {
+                        // drain, so the connection can be reused
+                    }
+                }
+            }
+            long ms = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+            if (status >= 400) {
+                failed_.incrementAndGet();
+                LOGGER.warn("JSP [{}] did not compile: HTTP {}", page, status);
+                return;
+            }
+            compiled_.incrementAndGet();
+            LOGGER.debug("Precompiled JSP [{}] in {} ms", page, ms);
+            long slowest = slowestMs_.get();
+            while (ms > slowest && !slowestMs_.compareAndSet(slowest, ms)) {
+                slowest = slowestMs_.get();
+            }
+            if (ms >= slowestMs_.get()) {
+                slowest_ = page;
+            }
+        } catch (IOException ex) {
+            failed_.incrementAndGet();
+            LOGGER.warn("Cannot precompile JSP [{}]: {}", page, ex.toString());
+        }
+    }
+
+    private static String encode(String page) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (String segment : page.substring(1).split("/")) {
+            sb.append('/').append(URLEncoder.encode(segment, "UTF-8").replace("+", "%20"));
+        }
+        return sb.toString();
+    }
+
+    public int getCompiledCount() {
+        return compiled_.get();
+    }
+
+    public int getFailedCount() {
+        return failed_.get();
+    }
+}
@@ -0,0 +1,363 @@
+package org.unesco.jisis.jetty.webserver;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.slf4j.LoggerFactory;
+import org.unesco.jisis.corelib.common.IDatabase;
+import org.unesco.jisis.corelib.exceptions.DbException;
+import org.unesco.jisis.corelib.record.IField;
+import org.unesco.jisis.corelib.record.IRecord;
+import org.unesco.jisis.corelib.server.DbServerService;
+
+/**
+ * RecordServlet gives HTTP clients read access to the records of the
+ * databases the DbServerService has in this process, without going
+ * through a ConnectionNIO client connection.
+ *
+ * <PRE>
+ * GET {path}/{dbHome}/{dbName}/{mfn}                   one record
+ * GET {path}/{dbHome}/{dbName}?from=1&amp;limit=50         records from an MFN on
+ * GET {path}/{dbHome}/{dbName}?q=...&amp;offset=0&amp;limit=50  records matching a query
+ * </PRE>
+ *
+ * Pages are written as they are read, without a Content-Length, so a
+ * large page goes out chunked instead of being built in memory first;
+ * "next" gives the from (or offset) of the following page, or null after
+ * the last one. A page holds at most maxPage records (init parameter,
+ * 1000 by default). A browse page probes at most PROBE_FACTOR MFNs per
+ * record asked for, so over a run of deleted records it can come back
+ * short, or empty, with "next" where the scan stopped. A read that fails
+ * once the page has started going out ends it early, with an "error"
+ * member and "next" at the record that failed.
+ *
+ * <P>The API has no authentication of its own, so it answers only
+ * clients on this host unless the remote init parameter is true.
+ *
+ * <P>The servlet opens its own instance of each database on first use
+ * and closes them in destroy(); only databases of the homes the
+ * DbServerService knows are opened, and at most maxDatabases of them
+ * (init parameter, 16 by default). IDatabase isn't thread-safe, so
+ * requests on the same database read it one at a time.
+ */
+public class RecordServlet extends HttpServlet {
+
+    private static final org.slf4j.Logger LOGGER = LoggerFactory.getLogger(RecordServlet.class);
+    private static final int DEFAULT_LIMIT = 50;
+    private static final int FLUSH_EVERY = 100;
+    private static final int PROBE_FACTOR = 10;
+
+    private final ConcurrentHashMap<String, IDatabase> databases_ = new ConcurrentHashMap<>();
+    private int maxPage_ = 1000;
+    private int maxDatabases_ = 16;
+    private boolean remote_ = false;
+
+    @Override
+    public void init() throws ServletException {
+        maxPage_ = intParameter("maxPage", maxPage_);
+        maxDatabases_ = intParameter("maxDatabases", maxDatabases_);
+        String remote = getInitParameter("remote");
+        if (remote != null) {
+            remote_ = Boolean.parseBoolean(remote.trim());
+        }
+    }
+
+    private int intParameter(String name, int dflt) throws ServletException {
+        String value = getInitParameter(name);
+        if (value == null) {
+            return dflt;
+        }
+        try {
+            return Math.max(1, Integer.parseInt(value.trim()));
+        } catch (NumberFormatException ex) {
+            throw new ServletException(name + " is not a number: " + value);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        for (IDatabase db : databases_.values()) {
+            synchronized (db) {
+                try {
+                    db.close();
+                } catch (DbException ex) {
+                    LOGGER.warn("Cannot close database: {}", ex.toString());
+                }
+            }
+        }
+        databases_.clear();
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        if (!remote_ && !isLocal(request)) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN,
+                    "The record API answers local clients only");
+            return;
+        }
+        String path = request.getPathInfo();
+        String[] parts = path == null ? new String[0] : path.substring(1).split("/");
+        if (parts.length < 2 || parts.length > 3 || parts[0].isEmpty() || parts[1].isEmpty()) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                    "Expected /{dbHome}/{dbName}[/{mfn}]");
+            return;
+        }
+
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        try {
+            IDatabase db = database(parts[0], parts[1]);
+            if (parts.length == 3) {
+                read(db, parseLong(parts[2], "mfn"), response);
+            } else if (request.getParameter("q") != null) {
+                search(db, request, response);
+            } else {
+                browse(db, request, response);
+            }
+        } catch (IllegalArgumentException ex) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, ex.getMessage());
+        } catch (IllegalStateException ex) {
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, ex.getMessage());
+        } catch (DbException ex) {
+            LOGGER.error("Cannot serve [{}]", request.getRequestURI(), ex);
+            if (!response.isCommitted()) {
+                response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, ex.getMessage());
+            }
+        }
+    }
+
+    private static boolean isLocal(HttpServletRequest request) {
+        try {
+            // An address literal, so no lookup
+            return InetAddress.getByName(request.getRemoteAddr()).isLoopbackAddress();
+        } catch (UnknownHostException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * The database, opened through the DbServerService on first use
+     *
+     * @throws IllegalArgumentException if the home isn't one the
+     *         DbServerService knows, or there is no such database
+     * @throws IllegalStateException if maxDatabases are open already
+     */
+    private IDatabase database(String dbHome, String dbName) throws DbException {
+        String key = dbHome + "/" + dbName;
+        IDatabase db = databases_.get(key);
+        if (db == null) {
+            String[] homes = DbServerService.getDbHomeManager().getDbHomeNames();
+            if (homes == null || !Arrays.asList(homes).contains(dbHome)) {
+                throw new IllegalArgumentException("No database home " + dbHome);
+            }
+            if (dbName.startsWith(".") || dbName.indexOf('\\') >= 0) {
+                throw new IllegalArgumentException("No database " + key);
+            }
+            if (databases_.size() >= maxDatabases_) {
+                throw new IllegalStateException("Too many databases open, at most "
+                        + maxDatabases_);
+            }
+            db = DbServerService.getDatabase(dbHome, dbName);
+            if (db == null) {
+                throw new IllegalArgumentException("No database " + key);
+            }
+            IDatabase prev = databases_.putIfAbsent(key, db);
+            if (prev != null) {
+                // Another request opened it first
+                db.close();
+                db = prev;
+            }
+        }
+        return db;
+    }
+
+    private static IRecord record(IDatabase db, long mfn) throws DbException {
+        // Requests share the instance, one reader at a time
+        synchronized (db) {
+            return db.getRecord(mfn);
+        }
+    }
+
+    private void read(IDatabase db, long mfn, HttpServletResponse response)
+            throws DbException, IOException {
+        IRecord rec = record(db, mfn);
+        if (rec == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "No record " + mfn);
+            return;
+        }
+        Writer out = response.getWriter();
+        writeRecord(out, rec);
+        out.flush();
+    }
+
+    private void browse(IDatabase db, HttpServletRequest request, HttpServletResponse response)
+            throws DbException, IOException {
+        long from = Math.max(1, parseLong(request.getParameter("from"), "from", 1));
+        int limit = limit(request);
+        long lastMfn;
+        synchronized (db) {
+            lastMfn = db.getLastMfn();
+        }
+
+        Writer out = response.getWriter();
+        out.write("{\"lastMfn\":" + lastMfn + ",\"records\":[");
+        int written = 0;
+        long mfn = from;
+        long probeEnd = from + (long) limit * PROBE_FACTOR;
+        try {
+            for (; mfn <= lastMfn && mfn < probeEnd && written < limit; mfn++) {
+                IRecord rec = record(db, mfn);
+                if (rec == null) {
+                    continue;
+                }
+                if (written > 0) {
+                    out.write(',');
+                }
+                writeRecord(out, rec);
+                if (++written % FLUSH_EVERY == 0) {
+                    out.flush();
+                }
+            }
+        } catch (DbException ex) {
+            failed(ex, mfn, out, response);
+            return;
+        }
+        out.write("],\"next\":" + (mfn <= lastMfn ? Long.toString(mfn) : "null") + "}");
+        out.flush();
+    }
+
+    private void search(IDatabase db, HttpServletRequest request, HttpServletResponse response)
+            throws DbException, IOException {
+        String query = request.getParameter("q");
+        long offset = Math.max(0, parseLong(request.getParameter("offset"), "offset", 0));
+        int limit = limit(request);
+        long[] hits;
+        synchronized (db) {
+            hits = db.searchLucene(query);
+        }
+        if (hits == null) {
+            hits = new long[0];
+        }
+
+        Writer out = response.getWriter();
+        out.write("{\"query\":");
+        writeString(out, query);
+        out.write(",\"total\":" + hits.length + ",\"offset\":" + offset + ",\"records\":[");
+        int start = (int) Math.min(offset, hits.length);
+        int end = (int) Math.min(hits.length, (long) start + limit);
+        int written = 0;
+        int i = start;
+        try {
+            for (; i < end; i++) {
+                IRecord rec = record(db, hits[i]);
+                if (rec == null) {
+                    continue;
+                }
+                if (written > 0) {
+                    out.write(',');
+                }
+                writeRecord(out, rec);
+                if (++written % FLUSH_EVERY == 0) {
+                    out.flush();
+                }
+            }
+        } catch (DbException ex) {
+            failed(ex, i, out, response);
+            return;
+        }
+        out.write("],\"next\":" + (end < hits.length ? Integer.toString(end) : "null") + "}");
+        out.flush();
+    }
+
+    /**
+     * A record couldn't be read part way through a page. Before anything
+     * went out, doGet() can still answer 500; after that the status is
+     * gone, so the page is closed with the error and "next" at the
+     * record that failed.
+     */
+    private static void failed(DbException ex, long next, Writer out,
+            HttpServletResponse response) throws DbException, IOException {
+        if (!response.isCommitted()) {
+            throw ex;
+        }
+        LOGGER.error("Cannot read record {}, page cut short", next, ex);
+        out.write("],\"error\":");
+        writeString(out, ex.getMessage());
+        out.write(",\"next\":" + next + "}");
+        out.flush();
+    }
+
+    private int limit(HttpServletRequest request) {
+        long limit = parseLong(request.getParameter("limit"), "limit", DEFAULT_LIMIT);
+        return (int) Math.max(1, Math.min(limit, maxPage_));
+    }
+
+    private static long parseLong(String value, String name, long dflt) {
+        return value == null || value.isEmpty() ? dflt : parseLong(value, name);
+    }
+
+    private static long parseLong(String value, String name) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException(name + " is not a number: " + value);
+        }
+    }
+
+    private static void writeRecord(Writer out, IRecord rec) throws IOException {
+        out.write("{\"mfn\":" + rec.getMfn() + ",\"fields\":[");
+        for (int i = 0; i < rec.getFieldCount(); i++) {
+            IField field = rec.getFieldByIndex(i);
+            if (i > 0) {
+                out.write(',');
+            }
+            out.write("{\"tag\":" + field.getTag() + ",\"value\":");
+            writeString(out, field.getStringFieldValue());
+            out.write('}');
+        }
+        out.write("]}");
+    }
+
+    private static void writeString(Writer out, String s) throws IOException {
+        if (s == null) {
+            out.write("null");
+            return;
+        }
+        out.write('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    out.write("\\\"");
+                    break;
+                case '\\':
+                    out.write("\\\\");
+                    break;
+                case '\n':
+                    out.write("\\n");
+                    break;
+                case '\r':
+                    out.write("\\r");
+                    break;
+                case '\t':
+                    out.write("\\t");
+                    break;
+                default:
+                    if (c < 0x20 || c == 0x2028 || c == 0x2029) {
+                        out.write(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.write(c);
+                    }
+            }
+        }
+        out.write('"');
+    }
+}